@@ -1,7 +1,10 @@
+import java.io.IOException;
 import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
 
 import chat.server.ChatServer;
 import http.server.HttpServer;
+import net.TlsContext;
 
 /**
  * Sockets application that provides an http server (reachable from a common browser) and a simple chat 
@@ -31,8 +34,9 @@ public class Application {
 	 * @param args Application settings.
 	 */
 	public static void main(String[] args) {
+		long start = System.nanoTime();
 		ChatServer chat = null; 
-		HttpServer http = null;
+		HttpServer http = null, https = null;
 		Thread chatThread = null, httpThread = null;
 		parseArgs(args);
 		if(launchChat) {
@@ -45,11 +49,15 @@ public class Application {
 		if(launchHTTP) {
 			// run http server on port [httpServerPort]
 			http = new HttpServer(httpServerPort);
+			http.setChatServer(chat); // WebSocket clients join the chat, if running
 			httpThread = new Thread(http);
 			// launch another thread, so server can do other things
 			httpThread.start();
+			https = startHttps(http, chat);
 		}
 		
+		reportReady(chat, http, start);
+		
 		// listening for commands: QUIT CHAT and QUIT HTTP to stop services
 		@SuppressWarnings("resource")
 		Scanner sc = new Scanner(System.in);
@@ -64,6 +72,10 @@ public class Application {
 				launchHTTP = false;
 				http.running = false;
 				http = null;
+				if (https != null) {
+					https.running = false;
+					https = null;
+				}
 				System.out.println("HTTP SERVICE CLOSED");
 			}
 		}
@@ -71,6 +83,40 @@ public class Application {
 		System.exit(0);
 	}
 
+	// run an HTTPS server next to the http server if https.port is set (see TlsContext.fromProperties), returns null if not running
+	private static HttpServer startHttps(HttpServer http, ChatServer chat) {
+		int port = Integer.getInteger("https.port", 0);
+		if (port <= 0) {
+			return null;
+		}
+		HttpServer https = new HttpServer(port);
+		try {
+			https.setTls(TlsContext.fromProperties());
+		} catch (IOException e) {
+			System.out.println("HTTPS server not started: " + e.getMessage());
+			return null;
+		}
+		https.setLogger(http.getLogger()); // same log files
+		https.setSlowRequestLog(http.getSlowRequestLog());
+		https.setChatServer(chat); // secure WebSocket clients too
+		https.setWarmUp(0); // the code is the one of the http server, warmed up by it
+		new Thread(https).start();
+		return https;
+	}
+
+	// print when all the launched servers listen (after their warm-up, if any), without blocking the commands
+	private static void reportReady(ChatServer chat, HttpServer http, long start) {
+		Thread reporter = new Thread(() -> {
+			try {
+				if ((chat == null || chat.awaitListening(5, TimeUnit.MINUTES)) && (http == null || http.awaitListening(5, TimeUnit.MINUTES))) {
+					System.out.println("Application ready in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+				}
+			} catch (InterruptedException e) {}
+		});
+		reporter.setDaemon(true);
+		reporter.start();
+	}
+
 	// try to get an integer from a string. If not possible returns null.
 	private static Integer tryParse(String integer) {
 		try {
@@ -0,0 +1,198 @@
+package chat.loadtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import chat.server.ChatServer;
+
+/**
+ * <p>Load test of the broadcast service: it starts a chat server on an ephemeral port of localhost, connects the simulated clients
+ * and makes some of them send messages at a constant rate, then reports the fanout latency percentiles, the delivered messages per second
+ * and the messages not delivered.</p>
+ * <p>Usage: java -classpath out chat.loadtest.ChatLoadTest [clients N] [senders M] [rate R] [seconds S] [size B] [loops L]<br>
+ * 1) clients: connected clients, all in the default room (default 100)<br>
+ * 2) senders: clients sending messages (default 10)<br>
+ * 3) rate: messages per second of each sender (default 10)<br>
+ * 4) seconds: duration of the test (default 10)<br>
+ * 5) size: minimum size of a message in bytes (default 64)<br>
+ * 6) loops: event loops of the server, 0 for a thread for each client (default 0)</p>
+ * <p>The server reads its other settings from the system properties as usual. The connection limit is removed and, unless chat.rateLimit
+ * is set, the inbound rate limit too, so they don't hide the fanout cost.</p>
+ * @author Antonio Terpin
+ */
+public class ChatLoadTest {
+	// time waited for the last messages, once the senders have stopped
+	private static final long drainMillis = 5000;
+	private int clients = 100, senders = 10, rate = 10, seconds = 10, size = 64, loops = 0;
+	private final List<SimulatedClient> connected = new ArrayList<SimulatedClient>();
+
+	/**
+	 * Load test entry point.
+	 * @param args Settings of the test, as name value pairs.
+	 */
+	public static void main(String[] args) {
+		ChatLoadTest test = new ChatLoadTest();
+		if (!test.parseArgs(args)) {
+			System.out.println("Usage: ChatLoadTest [clients N] [senders M] [rate R] [seconds S] [size B] [loops L]");
+			System.exit(1);
+		}
+		int status = 0;
+		try {
+			test.run();
+		} catch (IOException | InterruptedException e) {
+			System.out.println("Load test failed: " + e.getMessage());
+			status = 1;
+		}
+		System.exit(status); // the server threads are not daemons
+	}
+
+	// read the settings, returns false if they are not valid
+	private boolean parseArgs(String[] args) {
+		if (args.length % 2 != 0) {
+			return false;
+		}
+		try {
+			for (int i = 0; i < args.length; i += 2) {
+				int value = Integer.parseInt(args[i + 1]);
+				switch (args[i]) {
+				case "clients": clients = value; break;
+				case "senders": senders = value; break;
+				case "rate": rate = value; break;
+				case "seconds": seconds = value; break;
+				case "size": size = value; break;
+				case "loops": loops = value; break;
+				default: return false;
+				}
+			}
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		return clients > 1 && senders > 0 && senders <= clients && rate > 0 && seconds > 0;
+	}
+
+	// start the server, run the clients and print the report
+	private void run() throws IOException, InterruptedException {
+		ChatServer server = new ChatServer(0);
+		server.setEventLoops(loops);
+		server.getAdmissionControl().setMaxConnections(0);
+		server.getAdmissionControl().setMaxConnectionsPerAddress(0);
+		if (System.getProperty("chat.rateLimit") == null) {
+			server.getRateLimiter().setLimit(0, 1);
+		}
+		new Thread(server, "chat-server").start();
+		if (!server.awaitListening(10, TimeUnit.SECONDS)) {
+			throw new IOException("The chat server is not listening");
+		}
+		try {
+			// connect the clients one at a time, each one is in the room once connected
+			long start = System.nanoTime();
+			for (int i = 0; i < clients; i++) {
+				SimulatedClient client = new SimulatedClient(i, server.getServerPort(), size);
+				connected.add(client);
+				new Thread(client, "load-client-" + i).start();
+			}
+			double connectSeconds = (System.nanoTime() - start) / 1e9;
+			System.out.printf(Locale.ROOT, "%d clients connected in %.2f s (%.0f handshakes/s)%n", clients, connectSeconds, clients / connectSeconds);
+			long elapsed = send(connected.subList(0, senders));
+			report(server, elapsed);
+		} finally {
+			for (SimulatedClient client : connected) {
+				client.close();
+			}
+			server.stopRunning();
+		}
+	}
+
+	// make the senders send at the configured rate for the duration of the test, returns the nanoseconds until the last delivery
+	private long send(List<SimulatedClient> sending) throws InterruptedException {
+		ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(Math.min(sending.size(), Runtime.getRuntime().availableProcessors()));
+		AtomicLong failed = new AtomicLong();
+		long period = TimeUnit.SECONDS.toNanos(1) / rate, start = System.nanoTime();
+		for (int i = 0; i < sending.size(); i++) {
+			SimulatedClient sender = sending.get(i);
+			// the senders don't start together, so the messages are spread over the period
+			scheduler.scheduleAtFixedRate(() -> {
+				try {
+					sender.send();
+				} catch (IOException e) {
+					failed.incrementAndGet();
+					throw new IllegalStateException(e); // stop this sender
+				}
+			}, period * i / sending.size(), period, TimeUnit.NANOSECONDS);
+		}
+		TimeUnit.SECONDS.sleep(seconds);
+		scheduler.shutdownNow();
+		scheduler.awaitTermination(1, TimeUnit.SECONDS);
+		if (failed.get() > 0) {
+			System.out.println(failed.get() + " senders disconnected");
+		}
+		// wait for the last messages, until everything is delivered or nothing arrives for a while
+		long expected = expected(), delivered = delivered(), end = System.nanoTime(), lastProgress = end;
+		while (delivered < expected && System.nanoTime() - lastProgress < TimeUnit.MILLISECONDS.toNanos(drainMillis)) {
+			Thread.sleep(10);
+			long now = delivered();
+			if (now != delivered) {
+				delivered = now;
+				lastProgress = end = System.nanoTime();
+			}
+		}
+		return end - start;
+	}
+
+	// messages the clients should receive: each message is delivered to all the clients but its sender
+	private long expected() {
+		long sent = 0;
+		for (SimulatedClient client : connected) {
+			sent += client.getSent();
+		}
+		return sent * (clients - 1);
+	}
+
+	// messages of the load test received so far by all the clients
+	private long delivered() {
+		long received = 0;
+		for (SimulatedClient client : connected) {
+			received += client.getReceived();
+		}
+		return received;
+	}
+
+	// print the results
+	private void report(ChatServer server, long elapsed) {
+		long expected = expected(), delivered = delivered();
+		long[] latencies = new long[(int) Math.min(delivered, Integer.MAX_VALUE - 8)];
+		int n = 0;
+		for (SimulatedClient client : connected) {
+			long[] own = client.getLatencies();
+			int length = Math.min(own.length, latencies.length - n);
+			System.arraycopy(own, 0, latencies, n, length);
+			n += length;
+		}
+		Arrays.sort(latencies, 0, n);
+		double seconds = elapsed / 1e9;
+		System.out.printf(Locale.ROOT, "%d clients, %d senders at %d msg/s for %d s (%s)%n", clients, senders, rate, this.seconds,
+				loops > 0 ? loops + " event loops" : "thread per client");
+		System.out.printf(Locale.ROOT, "sent %d, delivered %d of %d (%.0f msg/s), not delivered %d%n",
+				expected / (clients - 1), delivered, expected, delivered / seconds, expected - delivered);
+		System.out.printf(Locale.ROOT, "dropped by the outbound queues %d, slow consumers disconnected %d%n",
+				server.getDroppedMessages(), server.getSlowConsumersDisconnected());
+		if (n > 0) {
+			System.out.printf(Locale.ROOT, "fanout latency ms: p50 %.3f, p90 %.3f, p99 %.3f, p99.9 %.3f, max %.3f%n",
+					percentile(latencies, n, 50), percentile(latencies, n, 90), percentile(latencies, n, 99), percentile(latencies, n, 99.9),
+					latencies[n - 1] / 1e6);
+		}
+	}
+
+	// percentile of the first n sorted latencies, in milliseconds
+	private static double percentile(long[] sorted, int n, double percentile) {
+		int index = (int) Math.ceil(percentile / 100 * n) - 1;
+		return sorted[Math.max(0, Math.min(n - 1, index))] / 1e6;
+	}
+}
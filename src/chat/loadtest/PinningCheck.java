@@ -0,0 +1,256 @@
+package chat.loadtest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import chat.server.ChatServer;
+
+/**
+ * <p>Diagnostic of the virtual threads: it runs the chat server with the redirectors and the chat services on virtual threads, in a child
+ * JVM started with -Djdk.tracePinnedThreads=full, and fails if a virtual thread blocks while pinned to its carrier.</p>
+ * <p>The child JVM goes through the paths where the services block: broadcast clients sending and receiving, a broadcast client which
+ * never reads (its writer blocks on the socket), an echo client writing, tailing, reading and following the log file, and a follower
+ * which never reads. The output of the child is printed and every pinned thread stack trace it reports is counted.</p>
+ * <p>Usage: java -classpath out chat.loadtest.PinningCheck [clients N] [senders M] [seconds S]<br>
+ * 1) clients: connected broadcast clients (default 20)<br>
+ * 2) senders: clients sending messages (default 4)<br>
+ * 3) seconds: duration of the traffic (default 5)</p>
+ * <p>Exit status: 0 if no thread was pinned, 1 if a thread was pinned or the check failed, 2 if the JVM has no virtual threads (before
+ * Java 21).</p>
+ * @author Antonio Terpin
+ */
+public class PinningCheck {
+	// first argument of the child JVM, which runs the server and the clients
+	private static final String scenario = "scenario";
+	// messages per second of each sender and minimum size of a message in bytes
+	private static final int rate = 20, size = 512;
+	private int clients = 20, senders = 4, seconds = 5;
+	private final List<SimulatedClient> connected = new ArrayList<SimulatedClient>();
+	private final List<Socket> sockets = new ArrayList<Socket>();
+	private final AtomicLong logLines = new AtomicLong();
+
+	/**
+	 * Diagnostic entry point.
+	 * @param args Settings of the check, as name value pairs.
+	 */
+	public static void main(String[] args) {
+		PinningCheck check = new PinningCheck();
+		boolean child = args.length > 0 && scenario.equals(args[0]);
+		String[] settings = child ? Arrays.copyOfRange(args, 1, args.length) : args;
+		if (!check.parseArgs(settings)) {
+			System.out.println("Usage: PinningCheck [clients N] [senders M] [seconds S]");
+			System.exit(1);
+		}
+		if (Runtime.version().feature() < 21) {
+			System.out.println("Pinning check skipped: virtual threads need Java 21 or later, this JVM is " + Runtime.version());
+			System.exit(2);
+		}
+		int status = 0;
+		try {
+			status = child ? check.runScenario() : check.runChild(settings);
+		} catch (IOException | InterruptedException e) {
+			System.out.println("Pinning check failed: " + e.getMessage());
+			status = 1;
+		}
+		System.exit(status); // the server threads are not daemons
+	}
+
+	// read the settings, returns false if they are not valid
+	private boolean parseArgs(String[] args) {
+		if (args.length % 2 != 0) {
+			return false;
+		}
+		try {
+			for (int i = 0; i < args.length; i += 2) {
+				int value = Integer.parseInt(args[i + 1]);
+				switch (args[i]) {
+				case "clients": clients = value; break;
+				case "senders": senders = value; break;
+				case "seconds": seconds = value; break;
+				default: return false;
+				}
+			}
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		return clients > 1 && senders > 0 && senders <= clients && seconds > 0;
+	}
+
+	// run the scenario in a child JVM tracing the pinned threads, returns the exit status of the check
+	private int runChild(String[] settings) throws IOException, InterruptedException {
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.add("-Djdk.tracePinnedThreads=full");
+		command.add("-classpath");
+		command.add(System.getProperty("java.class.path"));
+		command.add(PinningCheck.class.getName());
+		command.add(scenario);
+		for (String setting : settings) {
+			command.add(setting);
+		}
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		int pinned = 0;
+		try (BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = output.readLine()) != null) {
+				System.out.println(line);
+				if (isPinnedTrace(line)) {
+					pinned++;
+				}
+			}
+		}
+		int exit = process.waitFor();
+		if (exit != 0) {
+			System.out.println("Pinning check failed: the scenario exited with status " + exit);
+			return 1;
+		}
+		if (pinned > 0) {
+			System.out.println("Pinning check failed: " + pinned + " pinned thread stack traces reported");
+			return 1;
+		}
+		System.out.println("Pinning check passed: no virtual thread was pinned");
+		return 0;
+	}
+
+	// true if the line starts the stack trace of a pinned thread, headed by its carrier: "Thread[#22,ForkJoinPool-1-worker-1,5,CarrierThreads]"
+	private static boolean isPinnedTrace(String line) {
+		return line.startsWith("Thread[") && line.contains("CarrierThreads");
+	}
+
+	// start the server on virtual threads, go through the blocking paths, returns 1 if some path was not exercised
+	private int runScenario() throws IOException, InterruptedException {
+		ChatServer server = new ChatServer(0);
+		server.setVirtualThreads(true);
+		server.getAdmissionControl().setMaxConnections(0);
+		server.getAdmissionControl().setMaxConnectionsPerAddress(0);
+		server.getRateLimiter().setLimit(0, 1);
+		new Thread(server, "chat-server").start();
+		if (!server.awaitListening(10, TimeUnit.SECONDS)) {
+			throw new IOException("The chat server is not listening");
+		}
+		int port = server.getServerPort();
+		try {
+			for (int i = 0; i < clients; i++) {
+				SimulatedClient client = new SimulatedClient(i, port, size);
+				connected.add(client);
+				new Thread(client, "pinning-client-" + i).start();
+			}
+			// clients which never read, so the threads writing to them block
+			connect(port, "BROADCAST_SERVER", "Joined room");
+			connect(port, "ECHO_SERVER", "Selected").getOutputStream().write("LOG FOLLOW\n".getBytes(StandardCharsets.UTF_8));
+			Thread logClient = new Thread(() -> useLog(port), "pinning-log-client");
+			logClient.start();
+			long sent = send(connected.subList(0, senders));
+			logClient.join();
+			TimeUnit.SECONDS.sleep(1); // last deliveries
+			long received = 0;
+			for (SimulatedClient client : connected) {
+				received += client.getReceived();
+			}
+			System.out.println("Broadcast: sent " + sent + ", received " + received + "; log client: received " + logLines.get() + " lines");
+			return sent > 0 && received > 0 && logLines.get() > 0 ? 0 : 1;
+		} finally {
+			for (SimulatedClient client : connected) {
+				client.close();
+			}
+			for (Socket socket : sockets) {
+				try {
+					socket.close();
+				} catch (IOException e) {}
+			}
+			server.stopRunning();
+			TimeUnit.SECONDS.sleep(1); // the services closing their connections can block too
+		}
+	}
+
+	// connect a client with a small receive buffer and select the service, waiting for the line starting with the given prefix
+	private Socket connect(int port, String service, String selected) throws IOException {
+		Socket socket = new Socket();
+		sockets.add(socket);
+		socket.setReceiveBufferSize(4096);
+		socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+		socket.getOutputStream().write((service + "\n").getBytes(StandardCharsets.UTF_8));
+		BufferedReader receiver = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+		String line;
+		while ((line = receiver.readLine()) != null) {
+			if (line.startsWith(selected)) {
+				return socket;
+			}
+		}
+		throw new IOException(service + " refused the client");
+	}
+
+	// echo client: follows the log while writing it, tails it and reads it all, for the duration of the check
+	private void useLog(int port) {
+		try (Socket socket = connect(port, "ECHO_SERVER", "Selected")) {
+			BufferedReader receiver = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			Thread reader = new Thread(() -> {
+				try {
+					while (receiver.readLine() != null) {
+						logLines.incrementAndGet();
+					}
+				} catch (IOException e) {} // closed at the end of the check
+			}, "pinning-log-reader");
+			reader.start();
+			OutputStream out = socket.getOutputStream();
+			write(out, "LOG FOLLOW");
+			long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+			for (int i = 0; System.nanoTime() < end; i++) {
+				write(out, "pinning check " + i);
+				if (i % 10 == 0) {
+					write(out, "LOG TAIL 5");
+				}
+				Thread.sleep(20);
+			}
+			write(out, "LOG UNFOLLOW");
+			write(out, "LOG");
+			write(out, "QUIT");
+			reader.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (IOException | InterruptedException e) {
+			System.out.println("Log client failed: " + e.getMessage());
+		}
+	}
+
+	// write a request line
+	private static void write(OutputStream out, String request) throws IOException {
+		out.write((request + "\n").getBytes(StandardCharsets.UTF_8));
+		out.flush();
+	}
+
+	// make the senders send at a constant rate for the duration of the check, returns the messages sent
+	private long send(List<SimulatedClient> sending) throws InterruptedException {
+		ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(sending.size());
+		long period = TimeUnit.SECONDS.toNanos(1) / rate;
+		for (SimulatedClient sender : sending) {
+			scheduler.scheduleAtFixedRate(() -> {
+				try {
+					sender.send();
+				} catch (IOException e) {
+					throw new IllegalStateException(e); // stop this sender
+				}
+			}, 0, period, TimeUnit.NANOSECONDS);
+		}
+		TimeUnit.SECONDS.sleep(seconds);
+		scheduler.shutdownNow();
+		scheduler.awaitTermination(1, TimeUnit.SECONDS);
+		long sent = 0;
+		for (SimulatedClient sender : sending) {
+			sent += sender.getSent();
+		}
+		return sent;
+	}
+}
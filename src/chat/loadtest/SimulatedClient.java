@@ -0,0 +1,156 @@
+package chat.loadtest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+import chat.server.ClientConnection;
+
+/**
+ * A client of the load test: it selects the broadcast service through the redirector handshake, then reads the messages of the room
+ * recording the latency of the ones sent by the load test.<br>
+ * Each message carries the id of its sender, its sequence number and its send time (System.nanoTime, the clients run in the same JVM).
+ * Heartbeat pings are answered, so the clients which only receive are not disconnected by the server.
+ * @author Antonio Terpin
+ */
+class SimulatedClient implements Runnable {
+	// marker of the messages sent by the load test
+	static final String marker = "LT ";
+	private final int id;
+	private final Socket socket;
+	private final BufferedReader receiver;
+	private final OutputStream out;
+	// the sender and the reader (answering pings) write the connection
+	private final ReentrantLock writeLock = new ReentrantLock();
+	private final String padding;
+	// latencies (ns) of the received messages, written only by the reader thread
+	private long[] latencies = new long[1024];
+	private volatile int received = 0;
+	private long sent = 0;
+
+	/**
+	 * Constructor which connects the client and selects the broadcast service.
+	 * @param id Id of the client, written in its messages.
+	 * @param port Port of the chat server, on localhost.
+	 * @param messageSize Minimum size of the messages sent, padded if needed.
+	 * @throws IOException if the connection fails or the server refuses the client.
+	 */
+	SimulatedClient(int id, int port, int messageSize) throws IOException {
+		this.id = id;
+		this.socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		this.socket.setTcpNoDelay(true);
+		this.receiver = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+		this.out = socket.getOutputStream();
+		char[] pad = new char[Math.max(0, messageSize - 40)];
+		Arrays.fill(pad, 'x');
+		this.padding = new String(pad);
+		handshake();
+	}
+
+	// select the service, then wait to be in the default room so no message sent from now on is missed
+	private void handshake() throws IOException {
+		out.write("BROADCAST_SERVER\n".getBytes(StandardCharsets.UTF_8));
+		out.flush();
+		String line;
+		while ((line = receiver.readLine()) != null) {
+			if (line.startsWith("Joined room")) {
+				return;
+			}
+			if (line.startsWith("Server full") || line.startsWith("Too many connections")) {
+				break;
+			}
+		}
+		socket.close();
+		throw new IOException("Client " + id + " refused: " + line);
+	}
+
+	/**
+	 * This method sends the next message of the client, it is called by one thread at a time.
+	 * @throws IOException if the connection can't be written.
+	 */
+	void send() throws IOException {
+		write(marker + id + " " + sent++ + " " + System.nanoTime() + " " + padding + "\n");
+	}
+
+	// write a line, shared by the sender and the reader
+	private void write(String line) throws IOException {
+		writeLock.lock();
+		try {
+			out.write(line.getBytes(StandardCharsets.UTF_8));
+			out.flush();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Method to retrieve the number of messages sent.
+	 * @return sent Number of messages.
+	 */
+	long getSent() {
+		return sent;
+	}
+
+	/**
+	 * Method to retrieve the number of messages of the load test received so far.
+	 * @return received Number of messages.
+	 */
+	int getReceived() {
+		return received;
+	}
+
+	/**
+	 * Method to retrieve the latencies of the messages received so far.
+	 * @return latencies Latencies in nanoseconds, in arrival order.
+	 */
+	long[] getLatencies() {
+		int n = received; // read before the array, which is replaced only after n
+		return Arrays.copyOf(latencies, n);
+	}
+
+	/**
+	 * Reader of the messages: pings are answered, everything else but the load test messages (replays, notices) is ignored.
+	 */
+	@Override
+	public void run() {
+		try {
+			String line;
+			while ((line = receiver.readLine()) != null) {
+				long now = System.nanoTime();
+				if (line.equals(ClientConnection.heartbeatPing)) {
+					write(ClientConnection.heartbeatPong + "\n");
+					continue;
+				}
+				int start = line.indexOf(marker);
+				if (start < 0) {
+					continue;
+				}
+				// "[sender]: LT [id] [seq] [nanos] [padding]"
+				String[] fields = line.substring(start + marker.length()).split(" ", 4);
+				if (fields.length < 3) {
+					continue;
+				}
+				if (received == latencies.length) {
+					latencies = Arrays.copyOf(latencies, received * 2);
+				}
+				latencies[received] = now - Long.parseLong(fields[2]);
+				received++;
+			}
+		} catch (IOException | NumberFormatException e) {} // closed by the load test
+	}
+
+	/**
+	 * This method closes the connection, the reader stops.
+	 */
+	void close() {
+		try {
+			socket.close();
+		} catch (IOException e) {}
+	}
+}
@@ -0,0 +1,128 @@
+package chat.server;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control of the chat server: it decides, without blocking, if a new connection can be served.<br>
+ * A connection takes a slot when accepted and gives it back when it is closed, whether it is still selecting the service or already served,
+ * so the count is always the real number of open connections. Limits can be changed at runtime.
+ * @author Antonio Terpin
+ */
+public class AdmissionControl {
+	/**
+	 * Result of an admission request.
+	 */
+	public enum Result { ADMITTED, SERVER_FULL, TOO_MANY_FROM_ADDRESS }
+
+	private volatile int maxConnections, maxConnectionsPerAddress;
+	private AtomicInteger connections = new AtomicInteger(0);
+	// open connections of each address, the entry is removed with the last connection
+	private ConcurrentHashMap<InetAddress, Integer> perAddress = new ConcurrentHashMap<InetAddress, Integer>();
+	private AtomicLong rejected = new AtomicLong(0);
+
+	/**
+	 * Constructor which allows to set the limits.
+	 * @param maxConnections Maximum number of open connections, 0 for no limit.
+	 * @param maxConnectionsPerAddress Maximum number of open connections from the same address, 0 for no limit.
+	 */
+	public AdmissionControl(int maxConnections, int maxConnectionsPerAddress) {
+		this.maxConnections = maxConnections;
+		this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+	}
+
+	/**
+	 * This method tries to take a slot for a new connection, it never blocks.
+	 * @param address Address of the client.
+	 * @return result ADMITTED if the connection took a slot (to release when closed), the reason of the refusal otherwise.
+	 */
+	public Result tryAdmit(InetAddress address) {
+		// global limit
+		int current;
+		do {
+			current = connections.get();
+			int max = maxConnections;
+			if (max > 0 && current >= max) {
+				rejected.incrementAndGet();
+				return Result.SERVER_FULL;
+			}
+		} while (!connections.compareAndSet(current, current + 1));
+		// per-address limit, checked and updated atomically
+		final int maxPerAddress = maxConnectionsPerAddress;
+		final boolean[] admitted = { true };
+		perAddress.compute(address, (a, count) -> {
+			int n = (count == null) ? 0 : count;
+			if (maxPerAddress > 0 && n >= maxPerAddress) {
+				admitted[0] = false;
+				return count;
+			}
+			return n + 1;
+		});
+		if (!admitted[0]) {
+			connections.decrementAndGet();
+			rejected.incrementAndGet();
+			return Result.TOO_MANY_FROM_ADDRESS;
+		}
+		return Result.ADMITTED;
+	}
+
+	/**
+	 * This method gives back the slot of a closed connection.
+	 * @param address Address of the client.
+	 */
+	public void release(InetAddress address) {
+		connections.decrementAndGet();
+		// the entry is removed with its last connection
+		perAddress.computeIfPresent(address, (a, count) -> count <= 1 ? null : count - 1);
+	}
+
+	/**
+	 * Method to retrieve the number of open connections.
+	 * @return connections Number of admitted connections not yet released.
+	 */
+	public int getConnections() {
+		return connections.get();
+	}
+
+	/**
+	 * Method to retrieve the number of refused connections.
+	 * @return rejected Number of refused connections since the server started.
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * Method to retrieve the global limit.
+	 * @return maxConnections Maximum number of open connections, 0 for no limit.
+	 */
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * Method to change the global limit, open connections are not closed.
+	 * @param maxConnections Maximum number of open connections, 0 for no limit.
+	 */
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * Method to retrieve the per-address limit.
+	 * @return maxConnectionsPerAddress Maximum number of open connections from the same address, 0 for no limit.
+	 */
+	public int getMaxConnectionsPerAddress() {
+		return maxConnectionsPerAddress;
+	}
+
+	/**
+	 * Method to change the per-address limit, open connections are not closed.
+	 * @param maxConnectionsPerAddress Maximum number of open connections from the same address, 0 for no limit.
+	 */
+	public void setMaxConnectionsPerAddress(int maxConnectionsPerAddress) {
+		this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+	}
+}
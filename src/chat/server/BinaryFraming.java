@@ -0,0 +1,60 @@
+package chat.server;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Length-prefixed binary framing of the chat protocol, selected by adding BINARY after the service name.<br>
+ * Each frame is a 1-byte opcode, a 4-byte big-endian payload length and the UTF-8 payload.
+ * Messages can contain any character and never collide with the control words, which travel in COMMAND frames.
+ * The server acknowledges the client frames in batches, with the number of frames processed so far.
+ * @author Antonio Terpin
+ */
+public final class BinaryFraming {
+	/**
+	 * Opcodes of the frames: messages and commands are sent by the client, messages and acknowledgements by the server.
+	 */
+	public static final int MESSAGE = 0x1, COMMAND = 0x2, ACK = 0x3;
+	/**
+	 * Size of the header of each frame.
+	 */
+	public static final int HEADER_LENGTH = 5;
+
+	private BinaryFraming() {}
+
+	/**
+	 * This method encodes a text frame.
+	 * @param opcode MESSAGE or COMMAND.
+	 * @param text The payload.
+	 * @return frame The encoded frame.
+	 */
+	public static byte[] encode(int opcode, String text) {
+		byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+		byte[] frame = new byte[HEADER_LENGTH + payload.length];
+		writeHeader(frame, opcode, payload.length);
+		System.arraycopy(payload, 0, frame, HEADER_LENGTH, payload.length);
+		return frame;
+	}
+
+	/**
+	 * This method encodes an acknowledgement.
+	 * @param processed Number of client frames processed since the connection started.
+	 * @return frame The encoded frame, with an 8-byte big-endian payload.
+	 */
+	public static byte[] encodeAck(long processed) {
+		byte[] frame = new byte[HEADER_LENGTH + 8];
+		writeHeader(frame, ACK, 8);
+		for (int i = 0; i < 8; i++) {
+			frame[HEADER_LENGTH + i] = (byte) (processed >>> (56 - 8 * i));
+		}
+		return frame;
+	}
+
+	// opcode and payload length
+	private static void writeHeader(byte[] frame, int opcode, int length) {
+		frame[0] = (byte) opcode;
+		frame[1] = (byte) (length >>> 24);
+		frame[2] = (byte) (length >>> 16);
+		frame[3] = (byte) (length >>> 8);
+		frame[4] = (byte) length;
+	}
+}
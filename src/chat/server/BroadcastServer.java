@@ -1,18 +1,15 @@
 package chat.server;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.Socket;
-import java.util.Vector;
 
 /**
- * Chat service which allows the client to join a global room where he can communicates with all the others clients.
+ * Chat service which allows the client to join a room where he can communicates with all the others clients of the room.<br>
+ * Each client starts in the default room (RoomRegistry.defaultRoom), then it can move to other rooms.
  * @author Antonio Terpin
  * @year 2016
  */
-public class BroadcastServer extends Server {
+public class BroadcastServer extends Server implements RoomMember {
 	/**
 	 * Constructor matching Server constructor which allows to set clientSocket and chatServer
 	 * @param clientSocket Client socket to provide socket connection.
@@ -22,24 +19,87 @@ public class BroadcastServer extends Server {
 		super(clientSocket, chatServer);
 	}
 
-	private PrintWriter sender = null;
-	private String username = null;
+	// default number of messages sent by HISTORY
+	private static final int defaultHistory = 10;
+	// messages to send to this client, written by its own writer thread
+	private volatile OutboundQueue outbound = null;
+	private volatile String username = null;
+	// the room the client is in, null if none
+	private volatile Room room = null;
+	// requests of the client, created at first use
+	private ClientConnection connection = null;
+	// inbound rate limits of the client
+	private RateLimiter.Client limits = null;
 	
 	/**
-	 * Synchronized method which can be used by other clients to communicate with this.
+	 * Method which can be used by other clients to communicate with this.<br>
+	 * The message is queued, so the method never blocks even if this client is slow.
 	 * @param message Message to sent to this client.
 	 */
-	synchronized public void sendMessage(String message) {
-		sender.println(message);
+	public void sendMessage(String message) {
+		sendMessage(Frame.of(message));
+	}
+	
+	/**
+	 * Method which can be used by other clients to communicate with this, with an already encoded message.<br>
+	 * The frame is shared, so the same message can be sent to many clients encoding it once.
+	 * @param message Message to sent to this client.
+	 */
+	@Override
+	public void sendMessage(Frame message) {
+		OutboundQueue queue = outbound;
+		if (queue != null) {
+			queue.offer(message);
+		}
+	}
+	
+	/**
+	 * The ping is written between two batches of the outbound queue: as a line, or as a COMMAND frame in binary mode.
+	 */
+	@Override
+	protected void sendHeartbeat() throws IOException {
+		OutboundQueue queue = outbound;
+		ClientConnection c = getConnection();
+		if (queue != null && c != null) {
+			c.expectPong(); // before the client can answer
+			queue.writeNow(isBinaryFraming() ? BinaryFraming.encode(BinaryFraming.COMMAND, ClientConnection.heartbeatPing)
+					: (ClientConnection.heartbeatPing + System.lineSeparator()).getBytes());
+		}
+	}
+	
+	/**
+	 * Method to retrieve the queue of the messages waiting to be sent to this client.
+	 * @return outbound The outbound queue, null if the client is not ready yet.
+	 */
+	public OutboundQueue getOutboundQueue() {
+		return outbound;
 	}
 	
 	/**
 	 * Method that can be used by other clients to retrieve this username. <br>
-	 * This method owns the monitor on username, so it checks the effective username.
+	 * The username is volatile, so it is the effective username.
 	 * @return username This client's username.
 	 */
 	public String getUsername() {
-		synchronized (username) { return username; }
+		return username;
+	}
+	
+	/**
+	 * Method that can be used by other clients to know how this client is seen.
+	 * @return displayName This client's username, or its IP if it has no username.
+	 */
+	@Override
+	public String getDisplayName() {
+		String name = username;
+		return (name == null) ? clientSocket.getInetAddress().toString() : name;
+	}
+	
+	/**
+	 * Method to retrieve the room the client is in.
+	 * @return room The current room, null if none.
+	 */
+	public Room getRoom() {
+		return room;
 	}
 
 	/**
@@ -47,7 +107,12 @@ public class BroadcastServer extends Server {
 	 * <p>Particular strings used are:<br>
 	 * 1) ChatServer.getConn --> get number of active connections<br>
 	 * 2) ChatServer.quit --> close connection<br>
-	 * 3) ChatServer.changeUsername --> change username (messages arrives to other clients as from the selected username, no more from the IP)</p>
+	 * 3) ChatServer.changeUsername --> change username (messages arrives to other clients as from the selected username, no more from the IP)<br>
+	 * 4) ChatServer.joinRoom [room] --> leave the current room and join the selected one<br>
+	 * 5) ChatServer.leaveRoom --> leave the current room and go back to the default one<br>
+	 * 6) ChatServer.listRooms --> get the existing rooms and their number of members<br>
+	 * 7) ChatServer.listMembers --> get the members of the current room<br>
+	 * 8) ChatServer.history [n] --> get the last n messages of the current room (default 10)</p>
 	 * <p>Example:<br> 
 	 * type: USERNAME<br>
 	 * Press enter.<br>
@@ -58,77 +123,191 @@ public class BroadcastServer extends Server {
 	@Override
 	protected void doJob() {
 		try {
-			sender = new PrintWriter(clientSocket.getOutputStream(), true);
-			BufferedReader receiver = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-			String receivedString = "";
-			// bulk operation to send broadcast messages
-			BroadcastSender sendToAll = new BroadcastSender();
-			// bulk operation to change username
-			UsernameChanger changeUsername = new UsernameChanger();
+			outbound = newOutboundQueue();
+			chatServer.newThread(outbound).start();
+			ClientConnection.Request request;
+			limits = chatServer.getRateLimiter().open(clientSocket.getInetAddress());
+			// every client starts in the default room
+			joinRoom(RoomRegistry.defaultRoom);
 			// while not quit or stopped by father
-			while(!(receivedString = receiver.readLine()).equals(chatServer.quit) && running) {
+			while((request = nextRequest()) != null && !chatServer.quit.equals(request.getCommand()) && running) {
+				String receivedString = request.getText(), command = request.getCommand();
+				// over the rate limit: the request waited for its token (DELAY), or it is dropped or the client disconnected
+				if (!limits.acquire()) {
+					if (chatServer.getRateLimiter().getPolicy() == RateLimiter.Policy.DISCONNECT) {
+						break;
+					}
+					acknowledge(); // dropped, but processed
+					continue;
+				}
 				// write log
 				chatServer.logger.write(chatServer.cb, 
 						clientSocket.getInetAddress(), 
 						receivedString,
 						ChatServer.server_type.BROADCAST_SERVER.getName());
 				// check if it is a special string
-				if(receivedString.equals(chatServer.getConn)) {
+				if(chatServer.getConn.equals(command)) {
 					// tell the client the number of active connections (just for try, not really a good idea in a real implementation).
-					sender.println(chatServer.getNumberOfConnections());
+					sendMessage(String.valueOf(chatServer.getNumberOfConnections()));
+				}
+				else if(chatServer.changeUsername.equals(command)) {
+					// change username, the next request is the new one
+					ClientConnection.Request newUsername = nextRequest();
+					if (newUsername != null) {
+						acknowledge();
+						changeUsername(newUsername.getText());
+					}
+				}
+				else if(command != null && command.startsWith(chatServer.joinRoom + " ")) {
+					joinRoom(command.substring(chatServer.joinRoom.length() + 1).trim());
+				}
+				else if(chatServer.leaveRoom.equals(command)) {
+					joinRoom(RoomRegistry.defaultRoom);
+				}
+				else if(chatServer.listRooms.equals(command)) {
+					for (Room r : chatServer.getRooms().getRooms()) {
+						sendMessage(r.getName() + " (" + r.size() + ")");
+					}
+				}
+				else if(command != null && (command.equals(chatServer.history) || command.startsWith(chatServer.history + " "))) {
+					// recent messages of the room, from memory
+					Room current = room;
+					if (current != null) {
+						for (Frame message : current.getHistory(ChatServer.parseCount(command, chatServer.history, defaultHistory))) {
+							sendMessage(message);
+						}
+					}
 				}
-				else if(receivedString.equals(chatServer.changeUsername)) {
-					// change username
-					chatServer.doBulkOperationOnSockets(changeUsername, receiver.readLine());
+				else if(chatServer.listMembers.equals(command)) {
+					Room current = room;
+					if (current != null) {
+						for (RoomMember m : current.getMembers()) {
+							sendMessage(m.getDisplayName());
+						}
+					}
 				}
 				else {
-					// if it isn't a special string, it is a message to all the others connected clients.
-					chatServer.doBulkOperationOnSockets(sendToAll, receivedString);
+					// if it isn't a special string, it is a message to all the others clients of the room (encoded once for all of them).
+					Room current = room;
+					if (current != null) {
+						chatServer.broadcast(current, this, Frame.of(getDisplayName() + ": " + receivedString));
+					}
 				}
+				acknowledge();
 			}
 			clientSocket.close(); // close connection
-		} catch(IOException | NullPointerException ex) {}
+		} catch(IOException | InterruptedException | NullPointerException ex) {}
+		if (outbound != null) {
+			outbound.close(); // stop the writer thread
+		}
+		if (limits != null) {
+			limits.close();
+		}
+		if (room != null) {
+			chatServer.getRooms().leave(room, this);
+		}
+		String name = username;
+		if (name != null) {
+			chatServer.getConnectedClients().releaseUsername(name, this);
+			chatServer.usernameReleased(name);
+		}
 		chatServer.disconnectClient(this); // tell the server this client is no more connected.
 	}
 	
 	/**
-	 * Implementation of BulkOperation which sends to all the connected clients the message string in the first argument.
-	 * @author Antonio Terpin
+	 * This method creates the queue of the messages to send to this client.
+	 * @return outbound The outbound queue, its writer thread is started by doJob.
 	 */
-	protected class BroadcastSender implements BulkOperation {
-		@Override
-		public void doOperation(Vector<Server> threads, Object... args) {
-			for (Server s : threads) {
-				// send to all the server of the type Broadcast exception of the sender 
-				if(!s.equals(BroadcastServer.this) && s instanceof BroadcastServer) {
-					String sender = (BroadcastServer.this.username == null)? 
-							// the sender field is optionally the IP or the username of the sender socket
-							BroadcastServer.this.clientSocket.getInetAddress().toString(): BroadcastServer.this.username;
-					((BroadcastServer) s).sendMessage(sender + ": " + (String)args[0]);
-				}
-			}
+	protected OutboundQueue newOutboundQueue() {
+		OutboundQueue queue = chatServer.newOutboundQueue(this, ChatServer.server_type.BROADCAST_SERVER);
+		if (isBinaryFraming()) {
+			queue.setEncoding(Frame.Encoding.BINARY);
 		}
+		return queue;
 	}
 	
 	/**
-	 * Implementation of BulkOperation which checks if the desired username is unique in this session and eventually updates it.
-	 * @author Antonio Terpin
+	 * This method waits for the next request of the client: a line or a binary frame of the socket.
+	 * @return request The request, null if the client closed the connection.
+	 * @throws IOException if the connection can't be read.
 	 */
-	protected class UsernameChanger implements BulkOperation {
-		@Override
-		public void doOperation(Vector<Server> threads, Object... args) {
-			String newUsername = (String) args[0];
-			for (Server s : threads) {
-				// check all the server of the type Broadcast exception of the one who wants to change the username
-				try {
-					if(!s.equals(BroadcastServer.this) && s instanceof BroadcastServer && ((BroadcastServer) s).getUsername().equals(newUsername)) {
-						BroadcastServer.this.sender.println("Username not available"); // tells the client that the selected username is no available.
-						return; // if the username have been already assigned no update is performed.
-					}
-				} catch (Exception e) {}
-			}
-			// no other client has the same username
-			BroadcastServer.this.username = newUsername; // update the username of the broadcast server client who performed this bulk operation. 
+	protected ClientConnection.Request nextRequest() throws IOException {
+		if (connection == null) {
+			connection = openConnection(ChatServer.server_type.BROADCAST_SERVER);
+		}
+		return connection.next();
+	}
+	
+	// acknowledge the processed request, if due (binary framing only)
+	private void acknowledge() throws IOException {
+		byte[] ack = (connection == null) ? null : connection.acknowledge();
+		if (ack != null) {
+			outbound.writeNow(ack); // between two batches of messages
+		}
+	}
+	
+	/**
+	 * This method moves the client to another room. If the room is full the client stays in the current one.
+	 * @param name Name of the room to join.
+	 */
+	private void joinRoom(String name) {
+		if (name.isEmpty()) {
+			sendMessage("Room name missing");
+			return;
+		}
+		RoomRegistry rooms = chatServer.getRooms();
+		Room current = room;
+		if (current != null && current.getName().equals(name)) {
+			return; // already there
+		}
+		Room joined = rooms.join(name, this);
+		if (joined == null) {
+			sendMessage("Room " + name + " is full");
+			return;
+		}
+		room = joined;
+		if (current != null) {
+			rooms.leave(current, this);
+		}
+		sendMessage("Joined room " + name);
+	}
+	
+	/**
+	 * This method reserves the desired username if it is unique in this session (and in the cluster) and eventually updates it.<br>
+	 * The registry reserves usernames atomically, so no other client is checked.
+	 * @param newUsername The desired username.
+	 */
+	private void changeUsername(String newUsername) {
+		if (newUsername == null) {
+			return; // client disconnected
+		}
+		if (newUsername.equals(username)) {
+			return;
+		}
+		ClientRegistry registry = chatServer.getConnectedClients();
+		if (chatServer.isUsernameTakenInCluster(newUsername) || !registry.reserveUsername(newUsername, this)) {
+			sendMessage("Username not available"); // tells the client that the selected username is no available.
+			return; // if the username have been already assigned no update is performed.
+		}
+		// no other client has the same username
+		String oldUsername = username;
+		username = newUsername;
+		chatServer.usernameClaimed(newUsername);
+		if (oldUsername != null) {
+			registry.releaseUsername(oldUsername, this);
+			chatServer.usernameReleased(oldUsername);
+		}
+	}
+	
+	/**
+	 * This method takes the username back, because another node of the cluster assigned it first.
+	 * @param revoked The username to give back, nothing happens if the client has changed it meanwhile.
+	 */
+	void revokeUsername(String revoked) {
+		if (revoked.equals(username)) {
+			username = null;
+			chatServer.getConnectedClients().releaseUsername(revoked, this);
+			sendMessage("Username " + revoked + " taken on another node");
 		}
 	}
 }
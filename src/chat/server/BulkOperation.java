@@ -1,6 +1,6 @@
 package chat.server;
 
-import java.util.Vector;
+import java.util.Collection;
 
 /**
  * Interface used to perform operation on multiple chat services in a safe (synchronized) way.
@@ -13,5 +13,5 @@ public interface BulkOperation {
 	 * @param threads The chat services for the connected clients.
 	 * @param args Other parameters the method needs.
 	 */
-	public void doOperation(Vector<Server> threads, Object... args);
+	public void doOperation(Collection<Server> threads, Object... args);
 }
@@ -3,13 +3,30 @@ package chat.server;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.PrintWriter;
-import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.Date;
-import java.util.Vector;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
 
+import chat.server.cluster.ClusterNode;
+import chat.server.nio.ChatSession;
+import chat.server.nio.NioChatEngine;
+import net.ListenerGroup;
 import logger.Logger;
 import logger.LoggerCallback;
 
@@ -19,15 +36,125 @@ import logger.LoggerCallback;
  * @year 2016
  */
 public class ChatServer implements Runnable {
-	private int serverPort = 12345, // default server port
-				numberOfMaximumConnections = 5, // maximum number of connections
-				numberOfClientsSelectingService = 0; // number of clients which are selecting the service
+	private volatile int serverPort = 12345; // default server port, replaced by the bound one if 0
+	// released once the server is listening
+	private final CountDownLatch listening = new CountDownLatch(1);
+	// number of clients which are selecting the service
+	private AtomicInteger numberOfClientsSelectingService = new AtomicInteger(0);
 	/**
 	 * Set this to false to safely stop the thread.
 	 */
 	private boolean running = true;
-	// vector of services clients are currently connected to
-	private Vector<Server> connectedClients = new Vector<Server>();
+	/**
+	 * Number of event loops of the event-driven engine, 0 to serve each client with its own thread.<br>
+	 * Default is the value of the system property chat.eventLoops.
+	 */
+	private int eventLoops = Integer.getInteger("chat.eventLoops", 0);
+	/**
+	 * Number of worker threads doing the log file I/O of the event-driven engine, so the event loops never wait for the disk.<br>
+	 * Default is the value of the system property chat.eventLoopWorkers.
+	 */
+	private int eventLoopWorkers = Integer.getInteger("chat.eventLoopWorkers", 2);
+	/**
+	 * Limits on the open connections: the system properties chat.maxConnections (default 5, no limit with the event-driven engine)
+	 * and chat.maxConnectionsPerIp (default 0, no limit).
+	 */
+	private AdmissionControl admission = new AdmissionControl(Integer.getInteger("chat.maxConnections", eventLoops > 0 ? 0 : 5),
+			Integer.getInteger("chat.maxConnectionsPerIp", 0));
+	/**
+	 * Handshakes (service selection): number of threads, maximum number of accepted connections waiting for a thread,
+	 * time (ms) a client has to select the service and seconds a refused client is told to wait.<br>
+	 * Defaults are the system properties chat.handshakeThreads (8), chat.pendingHandshakes (64), chat.handshakeTimeout (30000) and chat.retryAfter (5).
+	 */
+	private int handshakeThreads = Integer.getInteger("chat.handshakeThreads", 8),
+				pendingHandshakes = Integer.getInteger("chat.pendingHandshakes", 64),
+				handshakeTimeout = Integer.getInteger("chat.handshakeTimeout", 30000),
+				retryAfter = Integer.getInteger("chat.retryAfter", 5);
+	// executor of the redirectors, created when the server runs
+	private ThreadPoolExecutor handshakes = null;
+	/**
+	 * Acceptor threads and accept backlog of each listening channel (0 for the system default).<br>
+	 * Defaults are the system properties chat.acceptors (1) and chat.acceptBacklog (0), see ListenerGroup.
+	 */
+	private int acceptors = Integer.getInteger("chat.acceptors", 1), acceptBacklog = Integer.getInteger("chat.acceptBacklog", 0);
+	// listening channels of the thread-per-client engine, once bound
+	private volatile ListenerGroup listeners = null;
+	// event-driven engine, if used
+	private volatile NioChatEngine engine = null;
+	/**
+	 * Factory of the threads running redirectors and chat services.<br>
+	 * Virtual threads are used if the system property chat.virtualThreads is true (Java 21 or later).
+	 */
+	private ServiceThreadFactory threadFactory = new ServiceThreadFactory(Boolean.getBoolean("chat.virtualThreads"));
+	/**
+	 * Size of the outbound queue of each broadcast client, policy when it is full and number of overflows before disconnecting (DISCONNECT policy).<br>
+	 * Defaults are the system properties chat.outboundQueueSize, chat.slowConsumerPolicy and chat.maxOverflows.
+	 */
+	private int outboundQueueSize = Integer.getInteger("chat.outboundQueueSize", 1024),
+				maxOverflows = Integer.getInteger("chat.maxOverflows", 64);
+	private OutboundQueue.SlowConsumerPolicy slowConsumerPolicy = OutboundQueue.SlowConsumerPolicy.valueOf(
+			System.getProperty("chat.slowConsumerPolicy", OutboundQueue.SlowConsumerPolicy.DROP_OLDEST.name()));
+	/**
+	 * Socket and output options of each service type, applied to the clients connected from now on.<br>
+	 * Defaults are the system properties chat.[service].tcpNoDelay, chat.[service].sendBufferSize, chat.[service].coalesce,
+	 * chat.[service].flushBatch and chat.[service].flushLinger (see ServiceOptions).
+	 */
+	private Map<String, ServiceOptions> serviceOptions = new ConcurrentHashMap<String, ServiceOptions>();
+	/**
+	 * Services the clients can select: the built-in ones and the ones found with ServiceLoader (see ChatServiceFactory).
+	 */
+	private ChatServiceRegistry services = new ChatServiceRegistry();
+	// messages dropped by the outbound queues and clients disconnected for being too slow
+	private AtomicLong droppedMessages = new AtomicLong(), slowConsumersDisconnected = new AtomicLong();
+	// messages broadcast and delivered to the room members, time spent handing each message to its recipients
+	private LongAdder messagesIn = new LongAdder(), messagesOut = new LongAdder();
+	private LatencyHistogram fanoutLatency = new LatencyHistogram();
+	// management bean, registered while the server runs
+	private final ChatServerManagement management = new ChatServerManagement(this);
+	/**
+	 * Rooms of the broadcast service.<br>
+	 * Number of shards and members cap are the system properties chat.roomShards (default 16) and chat.maxRoomMembers (default 0, no limit),
+	 * messages kept by each room and replayed on join are chat.roomHistory (default 100) and chat.replayOnJoin (default 10).
+	 */
+	private RoomRegistry rooms = new RoomRegistry(Integer.getInteger("chat.roomShards", 16), Integer.getInteger("chat.maxRoomMembers", 0),
+			Integer.getInteger("chat.roomHistory", 100), Integer.getInteger("chat.replayOnJoin", 10));
+	/**
+	 * Inbound rate limits of the broadcast clients, per connection and per address (see RateLimiter).<br>
+	 * Defaults are the system properties chat.rateLimit (10 requests per second), chat.rateBurst (20), chat.rateLimitPerIp (0, no limit),
+	 * chat.rateBurstPerIp (50) and chat.rateLimitPolicy (DELAY).
+	 */
+	private RateLimiter rateLimiter = RateLimiter.fromProperties();
+	/**
+	 * Synthetic clients of each framing run before listening (see ChatWarmUp).<br>
+	 * Default is the system property chat.warmUp (0, no warm-up).
+	 */
+	private int warmUp = Integer.getInteger("chat.warmUp", 0);
+	// when the server started running, to report when it is ready
+	private long startNanos = 0;
+	/**
+	 * Maximum length of a client line or frame payload, checked before allocating it: longer requests close the connection.<br>
+	 * Default is the system property chat.maxLineLength (65536).
+	 */
+	private int maxLineLength = Integer.getInteger("chat.maxLineLength", 64 * 1024);
+	/**
+	 * Cluster of chat servers sharing the rooms of the broadcast service (see ClusterNode), disabled if the port is 0.<br>
+	 * Defaults are the system properties chat.cluster.port (0), chat.cluster.peers (comma-separated host:port of the other nodes)
+	 * and chat.cluster.nodeId (node-[serverPort]).
+	 */
+	private int clusterPort = Integer.getInteger("chat.cluster.port", 0);
+	private String clusterPeers = System.getProperty("chat.cluster.peers", ""), clusterNodeId = System.getProperty("chat.cluster.nodeId");
+	// node of the cluster, created when the server runs
+	private volatile ClusterNode cluster = null;
+	/**
+	 * Reaper of the silent clients of the thread-per-client services and of the WebSocket clients (see IdleReaper), the timeouts
+	 * and the heartbeat are options of each service (see ServiceOptions).<br>
+	 * The resolution is the system property chat.idleTick (default 1000 ms).
+	 */
+	private final IdleReaper idleReaper = new IdleReaper(this, Integer.getInteger("chat.idleTick", 1000), 512);
+	// lock on the server state (not a monitor, so virtual threads are not pinned while owning it)
+	private final ReentrantLock lock = new ReentrantLock();
+	// services clients are currently connected to, by type and username
+	private ClientRegistry connectedClients = new ClientRegistry();
 	/**
 	 * Instance of logger which provides synchronized access to the file "log/chatLog.txt"
 	 */
@@ -39,7 +166,15 @@ public class ChatServer implements Runnable {
 	/**
 	 * <p>Particular string which allows some functionality in the services that decide to provide it.<br>
 	 */
-	public final String quit = "QUIT", getConn = "CONN", changeUsername = "USERNAME", getLogs = "LOG";
+	public final String quit = "QUIT", getConn = "CONN", changeUsername = "USERNAME", getLogs = "LOG",
+			tailLogs = "LOG TAIL", followLogs = "LOG FOLLOW", unfollowLogs = "LOG UNFOLLOW",
+			joinRoom = "JOIN", leaveRoom = "LEAVE", listRooms = "ROOMS", listMembers = "WHO", history = "HISTORY";
+	/**
+	 * Added after the service name to select the binary framing (see BinaryFraming).
+	 */
+	public final String binaryFraming = "BINARY";
+	// maximum length of the line selecting the service
+	private static final int maxSelectionLength = 256;
 	
 	/**
 	 * Constructor which allows to customize the port the server is running on.
@@ -57,88 +192,544 @@ public class ChatServer implements Runnable {
 		return serverPort;
 	}
 	
+	/**
+	 * This method is called by the engine once the listening channels are bound: with port 0 the server port becomes the ephemeral one.
+	 * @param group The listening channels.
+	 */
+	public void listening(ListenerGroup group) {
+		serverPort = group.getLocalPort();
+		management.register(); // named after the bound port
+		listening.countDown();
+		System.out.println("Chat server ready in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + " ms");
+	}
+	
+	/**
+	 * Method to set the warm-up, before running the server.
+	 * @param iterations Number of synthetic clients of each framing run before listening, 0 for no warm-up.
+	 */
+	public void setWarmUp(int iterations) {
+		this.warmUp = iterations;
+	}
+	
+	/**
+	 * This method waits for the server to listen, useful when it has been started with port 0.
+	 * @param timeout Maximum time to wait.
+	 * @param unit Unit of the timeout.
+	 * @return listening True if the server is listening (getServerPort is the bound port), false if the time elapsed.
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public boolean awaitListening(long timeout, TimeUnit unit) throws InterruptedException {
+		return listening.await(timeout, unit);
+	}
+	
+	/**
+	 * Method to choose how the clients are served, it must be called before running the server.
+	 * @param eventLoops Number of event loops serving all the clients with non-blocking sockets, 0 to use a thread for each client.
+	 */
+	public void setEventLoops(int eventLoops) {
+		this.eventLoops = eventLoops;
+	}
+	
+	/**
+	 * Method to choose the type of threads running redirectors and chat services, it must be called before running the server.
+	 * @param virtual True to use virtual threads (if supported by the JVM), false to use platform threads.
+	 */
+	public void setVirtualThreads(boolean virtual) {
+		this.threadFactory = new ServiceThreadFactory(virtual);
+	}
+	
+	/**
+	 * Method to set the acceptor threads, before running the server.
+	 * @param acceptors Number of acceptor threads, each with its own listening channel where SO_REUSEPORT is available.
+	 * @param backlog Maximum number of connections waiting to be accepted by each channel, 0 for the system default.
+	 */
+	public void setAcceptors(int acceptors, int backlog) {
+		this.acceptors = acceptors;
+		this.acceptBacklog = backlog;
+	}
+	
+	/**
+	 * Method to retrieve the number of acceptor threads.
+	 * @return acceptors Number of acceptor threads.
+	 */
+	public int getAcceptors() {
+		return acceptors;
+	}
+	
+	/**
+	 * Method to retrieve the accept backlog of each listening channel.
+	 * @return backlog The backlog, 0 for the system default.
+	 */
+	public int getAcceptBacklog() {
+		return acceptBacklog;
+	}
+	
+	/**
+	 * Method to retrieve the admission control, whose limits can be changed while the server runs.
+	 * @return admission The admission control of the server.
+	 */
+	public AdmissionControl getAdmissionControl() {
+		return admission;
+	}
+	
+	/**
+	 * Method to retrieve the inbound rate limits, which can be changed while the server runs.
+	 * @return rateLimiter The rate limiter of the broadcast clients.
+	 */
+	public RateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+	
+	/**
+	 * Method to set the maximum length of a request, for the clients connected from now on.
+	 * @param maxLineLength Maximum number of bytes of a line or of a binary frame payload.
+	 */
+	public void setMaxLineLength(int maxLineLength) {
+		this.maxLineLength = maxLineLength;
+	}
+	
+	/**
+	 * Method to retrieve the maximum length of a request.
+	 * @return maxLineLength Maximum number of bytes of a line or of a binary frame payload.
+	 */
+	public int getMaxLineLength() {
+		return maxLineLength;
+	}
+	
+	/**
+	 * Method to configure the handshakes, it must be called before running the server.
+	 * @param threads Number of threads running the redirectors.
+	 * @param pending Maximum number of accepted connections waiting for a redirector thread, more are refused.
+	 * @param timeout Time (ms) a client has to select the service.
+	 */
+	public void setHandshakes(int threads, int pending, int timeout) {
+		this.handshakeThreads = threads;
+		this.pendingHandshakes = pending;
+		this.handshakeTimeout = timeout;
+	}
+	
+	/**
+	 * Method to configure the outbound queue of the broadcast clients connected from now on.
+	 * @param size Maximum number of messages waiting to be sent to a client.
+	 * @param policy What to do when a message arrives and the queue is full.
+	 * @param maxOverflows Number of overflows after which a client is disconnected, used by the DISCONNECT policy.
+	 */
+	public void setSlowConsumerPolicy(int size, OutboundQueue.SlowConsumerPolicy policy, int maxOverflows) {
+		this.outboundQueueSize = size;
+		this.slowConsumerPolicy = policy;
+		this.maxOverflows = maxOverflows;
+	}
+	
+	/**
+	 * Method to retrieve the size of the outbound queue of each broadcast client.
+	 * @return outboundQueueSize Maximum number of messages waiting to be sent to a client.
+	 */
+	public int getOutboundQueueSize() {
+		return outboundQueueSize;
+	}
+	
+	/**
+	 * Method to retrieve what is done when a message arrives and the outbound queue of a client is full.
+	 * @return slowConsumerPolicy The slow-consumer policy.
+	 */
+	public OutboundQueue.SlowConsumerPolicy getSlowConsumerPolicy() {
+		return slowConsumerPolicy;
+	}
+	
+	/**
+	 * Method to retrieve the number of overflows after which a client is disconnected, used by the DISCONNECT policy.
+	 * @return maxOverflows Number of overflows.
+	 */
+	public int getMaxOverflows() {
+		return maxOverflows;
+	}
+	
+	/**
+	 * Method to retrieve the options of a service type, they can be changed before the clients connect.
+	 * @param type The service type.
+	 * @return options Socket and output options of the service.
+	 */
+	public ServiceOptions getServiceOptions(server_type type) {
+		return getServiceOptions(type.getName());
+	}
+	
+	/**
+	 * Method to retrieve the options of a service, read from the system properties the first time.
+	 * @param service Name of the service.
+	 * @return options Socket and output options of the service.
+	 */
+	public ServiceOptions getServiceOptions(String service) {
+		return serviceOptions.computeIfAbsent(service, ServiceOptions::fromProperties);
+	}
+	
+	/**
+	 * Method to retrieve the services the clients can select, more can be registered before they connect.
+	 * @return services The registry of the chat services.
+	 */
+	public ChatServiceRegistry getServices() {
+		return services;
+	}
+	
+	/**
+	 * This method creates the outbound queue for a client, according to the configured policy.
+	 * @param client The chat service of the client.
+	 * @param type Type of the service, whose options decide how the messages are flushed.
+	 * @return queue The outbound queue, its writer thread has to be started.
+	 */
+	OutboundQueue newOutboundQueue(Server client, server_type type) {
+		return new OutboundQueue(client.clientSocket, client, this, outboundQueueSize, slowConsumerPolicy, maxOverflows, getServiceOptions(type));
+	}
+	
+	/**
+	 * This method counts a message dropped by an outbound queue, of either engine.
+	 */
+	public void messageDropped() {
+		droppedMessages.incrementAndGet();
+	}
 	
-	// SYNCHRONIZED METHODS
+	/**
+	 * This method counts a client disconnected by the DISCONNECT policy, of either engine.
+	 */
+	public void slowConsumerDisconnected() {
+		slowConsumersDisconnected.incrementAndGet();
+	}
+	
+	/**
+	 * Method to retrieve the number of messages dropped because a client outbound queue was full.
+	 * @return droppedMessages Number of dropped messages since the server started.
+	 */
+	public long getDroppedMessages() {
+		return droppedMessages.get();
+	}
+	
+	/**
+	 * Method to retrieve the number of clients disconnected because they were too slow.
+	 * @return slowConsumersDisconnected Number of disconnected clients since the server started.
+	 */
+	public long getSlowConsumersDisconnected() {
+		return slowConsumersDisconnected.get();
+	}
+	
+	/**
+	 * Method to set the cluster, before running the server.
+	 * @param port Port the other nodes connect to, 0 to disable the cluster.
+	 * @param peers Comma-separated host:port addresses of the other nodes.
+	 * @param nodeId Name of this node, unique in the cluster (null for node-[serverPort]).
+	 */
+	public void setCluster(int port, String peers, String nodeId) {
+		this.clusterPort = port;
+		this.clusterPeers = peers;
+		this.clusterNodeId = nodeId;
+	}
+	
+	/**
+	 * Method to retrieve the node of the cluster.
+	 * @return cluster The node, null if the cluster is disabled or the server is not running.
+	 */
+	public ClusterNode getCluster() {
+		return cluster;
+	}
+	
+	/**
+	 * This method sends a message to the members of a room, on this server and on the other nodes of the cluster.
+	 * @param room The room.
+	 * @param sender The member who sent the message, it doesn't receive it.
+	 * @param message The encoded message.
+	 */
+	public void broadcast(Room room, RoomMember sender, Frame message) {
+		long start = System.nanoTime();
+		int recipients = room.broadcast(sender, message);
+		fanoutLatency.record(System.nanoTime() - start);
+		messagesIn.increment();
+		messagesOut.add(recipients);
+		ClusterNode node = cluster;
+		if (node != null) {
+			node.publish(room.getName(), message.getText());
+		}
+	}
+	
+	// counters of the management bean
+	LongAdder getMessagesIn() {
+		return messagesIn;
+	}
+	
+	LongAdder getMessagesOut() {
+		return messagesOut;
+	}
+	
+	/**
+	 * Method to retrieve the time spent handing each broadcast message to the members of the room (queued, not written yet).
+	 * @return fanoutLatency The histogram of the fanout latencies since the server started.
+	 */
+	public LatencyHistogram getFanoutLatency() {
+		return fanoutLatency;
+	}
+	
+	// event-driven engine, null if not used
+	NioChatEngine getEngine() {
+		return engine;
+	}
+	
+	/**
+	 * Method to know if a client of another node of the cluster has a username.
+	 * @param username The username.
+	 * @return taken True if the username is assigned on another node.
+	 */
+	public boolean isUsernameTakenInCluster(String username) {
+		ClusterNode node = cluster;
+		return node != null && node.isUsernameTaken(username);
+	}
+	
+	/**
+	 * This method tells the other nodes of the cluster that a local client took a username.
+	 * @param username The username.
+	 */
+	public void usernameClaimed(String username) {
+		ClusterNode node = cluster;
+		if (node != null) {
+			node.usernameClaimed(username);
+		}
+	}
+	
+	/**
+	 * This method tells the other nodes of the cluster that a local client gave a username back.
+	 * @param username The username.
+	 */
+	public void usernameReleased(String username) {
+		ClusterNode node = cluster;
+		if (node != null) {
+			node.usernameReleased(username);
+		}
+	}
+	
+	/**
+	 * This method takes a username back from the local client which has it, because another node of the cluster assigned it first.
+	 * @param username The username.
+	 */
+	public void revokeUsername(String username) {
+		Object owner = connectedClients.findByUsername(username);
+		if (owner instanceof BroadcastServer) {
+			((BroadcastServer) owner).revokeUsername(username);
+		}
+		NioChatEngine e = engine;
+		if (e != null && owner instanceof ChatSession) {
+			e.revokeUsername((ChatSession) owner, username);
+		}
+	}
+	
+	/**
+	 * This method reserves a username for a client of the event-driven engine, atomically: the clients of both engines
+	 * (WebSocket clients included) share the usernames of the server.
+	 * @param username The desired username.
+	 * @param owner The session of the client.
+	 * @return reserved True if the username was free (or already owned by the session).
+	 */
+	public boolean reserveUsername(String username, ChatSession owner) {
+		return connectedClients.reserveUsername(username, owner);
+	}
+	
+	/**
+	 * This method releases a username of a client of the event-driven engine, only if owned by its session.
+	 * @param username The username to release.
+	 * @param owner The session of the client.
+	 * @return released False if the session didn't own it.
+	 */
+	public boolean releaseUsername(String username, ChatSession owner) {
+		return connectedClients.releaseUsername(username, owner);
+	}
+	
+	/**
+	 * Method to retrieve the rooms of the broadcast service.
+	 * @return rooms The room registry.
+	 */
+	public RoomRegistry getRooms() {
+		return rooms;
+	}
+	
+	/**
+	 * This method creates a thread of the type chosen for the chat services.
+	 * @param r The runnable the thread has to run.
+	 * @return thread The new thread, not started.
+	 */
+	Thread newThread(Runnable r) {
+		return threadFactory.newThread(r);
+	}
+	
+	
+	// THREAD-SAFE METHODS
 	
 	/**
 	 * This method remove a server from connectedClients, in fact removing a server which has finished satisfying a client tells the chat server that the client is no more connected.
+	 * The slot of the connection is released.
 	 * @param server Server which has finished to satisfying the client.
 	 */
-	synchronized void disconnectClient(Server server) {
-		connectedClients.remove(server);
-		this.notify(); // in case this thread was sleeping, wake up it
+	void disconnectClient(Server server) {
+		idleReaper.unwatch(server);
+		if (connectedClients.remove(server)) {
+			admission.release(server.clientSocket.getInetAddress());
+		}
+	}
+	
+	/**
+	 * This method retrieves the number following a control word (for example "HISTORY 20").
+	 * @param command The command received.
+	 * @param word The control word.
+	 * @param defaultValue Value if the number is missing or not valid.
+	 * @return number The number, at least 0.
+	 */
+	public static int parseCount(String command, String word, int defaultValue) {
+		try {
+			return Math.max(0, Integer.parseInt(command.substring(word.length()).trim()));
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+	
+	/**
+	 * This method starts serving a client connected through the WebSocket endpoint of the HTTP server.<br>
+	 * The client counts as a connection of the chat server, so it must have been admitted by the admission control.
+	 * @param clientSocket Client socket, the WebSocket handshake must be already completed.
+	 */
+	public void connectWebSocket(Socket clientSocket) {
+		Server client = new WebSocketClient(clientSocket, this);
+		try {
+			getServiceOptions(server_type.BROADCAST_SERVER).applyTo(clientSocket);
+		} catch (IOException e) {} // keep the default options
+		connectClient(client, server_type.BROADCAST_SERVER.getName());
+		try {
+			newThread(client).start();
+		} catch (RuntimeException e) {
+			disconnectClient(client);
+			try {
+				clientSocket.close();
+			} catch (IOException ex) {}
+		}
 	}
 	
 	/**
 	 * This method add a server to connectedClients, in fact adding a server which has to satisfy a client tells the chat server that a client has been connected.
+	 * The client is disconnected if it stays silent longer than the idle timeout of its service.
 	 * @param server Server which has to satisfy the client.
+	 * @param service Name of the service, whose options have the idle timeout and the heartbeat.
+	 */
+	void connectClient(Server server, String service) {
+		connectedClients.add(server);
+		idleReaper.watch(server, getServiceOptions(service));
+	}
+	
+	/**
+	 * Method to retrieve the number of clients disconnected because they were silent for the idle timeout of their service.
+	 * @return idleClientsReaped Number of disconnected clients since the server started.
+	 */
+	public long getIdleClientsReaped() {
+		return idleReaper.getIdleReaped();
+	}
+	
+	/**
+	 * Method to retrieve the number of clients disconnected because they didn't answer a heartbeat ping in time.
+	 * @return unresponsiveClientsReaped Number of disconnected clients since the server started.
+	 */
+	public long getUnresponsiveClientsReaped() {
+		return idleReaper.getHeartbeatReaped();
+	}
+	
+	/**
+	 * Method to retrieve the registry of the connected clients, which can be used without owning the server lock.
+	 * @return connectedClients The registry of the connected clients.
 	 */
-	synchronized void connectClient(Server server) {
-		connectedClients.addElement(server);
+	ClientRegistry getConnectedClients() {
+		return connectedClients;
 	}
 	
 	/**
 	 * This method allows to retrieve the number of connected clients. 
 	 * @return numberOfConnectedClients Number of connected clients.
 	 */
-	synchronized int getNumberOfConnections() {
+	int getNumberOfConnections() {
 		return connectedClients.size();
 	}
 	
 	/**
-	 * This method allows to understand if there are or not too much connections.
-	 * @return evaluation Result of comparisons between the current number of connections (and the possible new connections, represented by the clients selecting a service) and the maximum number.
+	 * This method allows to perform an operation on each connected client.
+	 * @param op A custom implementation of BulkOperation, the doOperation method will be call. 
+	 * @param args Variable number of arguments that will be pass to the BulkOperation.doOperation method.
 	 */
-	synchronized boolean tooMuchConnections() {
-		return connectedClients.size() + getNumberOfClientsSelectingService() >= numberOfMaximumConnections;
+	void doBulkOperationOnSockets(BulkOperation op, Object... args) {
+		lock.lock();
+		try {
+			op.doOperation(connectedClients.all(), args); // using this approach the bulk operation is done while owning the lock
+		} finally {
+			lock.unlock();
+		}
 	}
 	
 	/**
-	 * This method allows to perform an operation on each connected client.
-	 * @param op A custom implementation of BulkOperation, the doOperation method will be call. 
+	 * This method allows to perform an operation on the clients of a service, without owning the server lock.<br>
+	 * The operation works on a snapshot of the clients, so clients can connect and disconnect meanwhile.
+	 * @param type Class of the chat service.
+	 * @param op A custom implementation of BulkOperation, the doOperation method will be call.
 	 * @param args Variable number of arguments that will be pass to the BulkOperation.doOperation method.
 	 */
-	synchronized void doBulkOperationOnSockets(BulkOperation op, Object... args) {
-		op.doOperation(connectedClients, args); // using this approach the bulk operation is done inside a synchronized block
+	void doOperationOnService(Class<? extends Server> type, BulkOperation op, Object... args) {
+		op.doOperation(connectedClients.ofType(type), args);
 	}
 	
 	/**
 	 * This method allows to increment correctly the number of clients which are selecting the service (they are not properly connected but they could).
 	 */
-	synchronized void doingRedirection() {
-		numberOfClientsSelectingService++;
+	void doingRedirection() {
+		numberOfClientsSelectingService.incrementAndGet();
 	}
 	
 	/**
 	 * This method allows to decrement correctly the number of clients which are selecting the service (a client has selected a service or renounce to connect).
 	 */
-	synchronized void finishedRedirection() {
-		numberOfClientsSelectingService--;
+	void finishedRedirection() {
+		numberOfClientsSelectingService.decrementAndGet();
 	}
 	
 	/**
 	 * This method allows to get the correct number of clients which are selecting the service.
 	 * @return numberOfClientsSelectingService The number of clients which are selecting the service.
 	 */
-	synchronized int getNumberOfClientsSelectingService() {
-		return numberOfClientsSelectingService;
+	int getNumberOfClientsSelectingService() {
+		return numberOfClientsSelectingService.get();
 	}
 	
 	/** 
 	 * This method close all connections and the service
 	 */
-	synchronized public void stopRunning() {
-		running = false;
-		doBulkOperationOnSockets(new BulkOperation() {
-			
-			@Override
-			public void doOperation(Vector<Server> threads, Object... args) {
-				for(Server t : threads) {
-					t.stopRunning(); // stop thread safely
-				}
+	public void stopRunning() {
+		lock.lock();
+		try {
+			running = false;
+			idleReaper.stop();
+			if (engine != null) {
+				engine.stop();
+			}
+			if (cluster != null) {
+				cluster.stop();
+			}
+			if (listeners != null) {
+				listeners.close(); // unblock the acceptors
+			}
+			management.unregister();
+			doBulkOperationOnSockets(new BulkOperation() {
 				
+				@Override
+				public void doOperation(Collection<Server> threads, Object... args) {
+					for(Server t : threads) {
+						t.stopRunning(); // stop thread safely
+					}
+					
+				}
+			}, (Object) null);
+			if (handshakes != null) {
+				handshakes.shutdownNow();
 			}
-		}, (Object) null);
+		} finally {
+			lock.unlock();
+		}
 	}
 	
 	
@@ -152,7 +743,7 @@ public class ChatServer implements Runnable {
 				+ "Choose the type of chat you prefere, default is ECHO_SERVER.\n\r"
 				+ "Options are:\n\r";
 		// add every possible server type
-		for (server_type s : server_type.values()) {
+		for (ChatServiceFactory s : services.getFactories()) {
 			msg += s.getName() + "\n\r";
 		}
 		return msg;
@@ -164,73 +755,169 @@ public class ChatServer implements Runnable {
 	 */
 	@Override
 	public void run() {
-		ServerSocket welcomingSocket = null;
+		startNanos = System.nanoTime();
+		if (warmUp > 0) {
+			// before listening, so no client is served by cold code
+			try {
+				long messages = ChatWarmUp.run(this, warmUp);
+				System.out.println("Chat server warmed up in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + " ms ("
+						+ messages + " synthetic messages)");
+			} catch (IOException e) {
+				System.out.println("CS: Warm-up failed: " + e.getMessage());
+			}
+		}
+		if (clusterPort > 0) {
+			startCluster();
+		}
+		if (eventLoops > 0) {
+			runEventDriven();
+			return;
+		}
+		try {
+			// channels, so the client sockets have a channel too (used for gathering writes)
+			ListenerGroup group = ListenerGroup.open(getServerPort(), acceptors, acceptBacklog);
+			// redirectors run on a bounded pool, accepted connections wait in a bounded queue
+			handshakes = new ThreadPoolExecutor(handshakeThreads, handshakeThreads, 60, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(pendingHandshakes), threadFactory);
+			handshakes.allowCoreThreadTimeOut(true);
+			listeners = group;
+			System.out.println("Chat server running on port: " + group.getLocalPort() + " (" + group + ")");
+			listening(group);
+			// the other acceptors have their own threads, this thread is the first one
+			for (int i = 1; i < group.getAcceptors(); i++) {
+				final int acceptor = i;
+				new Thread(() -> accept(group, acceptor), "chat-acceptor-" + i).start();
+			}
+			accept(group, 0);
+			group.close(); // stop listening on port
+		} catch (IOException e) {
+			// unable to create new server socket on [serverPort]
+			System.out.println(e.getMessage());
+		}
+	}
+	
+	// accept the connections of a listener until the server is stopped
+	private void accept(ListenerGroup group, int acceptor) {
 		try {
-			welcomingSocket = new ServerSocket(getServerPort());
-			System.out.println("Chat server running on port: " + getServerPort());
 			// listen forever for connections
 			while (running) {
 				// get new connection
-				Socket clientSocket = welcomingSocket.accept();
+				Socket clientSocket = group.accept(acceptor).socket();
 				// if still running
 				if(running) {
-					// check if the maximum number of connections has been reached
-					if (tooMuchConnections()) {
-						try {
-							System.out.println("CS: Raggiunto il limite massimo di connessioni");
-							// refuse connection
-							clientSocket.close();
-							// the thread must own his monitor
-							synchronized(this) {
-								this.wait(); // pause, no more connections until a client will be disconnected.
-							}
-						} catch (InterruptedException e) { e.printStackTrace(); } // it shouldn't happen
+					// check the limits, without ever stopping to accept
+					AdmissionControl.Result admitted = admission.tryAdmit(clientSocket.getInetAddress());
+					if (admitted != AdmissionControl.Result.ADMITTED) {
+						refuse(clientSocket, admitted);
 					}
 					else {
-						// redirecting the new connection to the requested server
-						(new Thread(new Redirector(this, clientSocket))).start();
+						try {
+							// redirecting the new connection to the requested server
+							handshakes.execute(new Redirector(this, clientSocket));
+						} catch (RejectedExecutionException e) {
+							// too many connections waiting for the handshake
+							admission.release(clientSocket.getInetAddress());
+							refuse(clientSocket, AdmissionControl.Result.SERVER_FULL);
+						}
 					}
 				} else {
 					clientSocket.close();
 				}
 			}
-			if(welcomingSocket != null) {
-				welcomingSocket.close(); // stop listening on port
+		} catch (IOException e) {
+			if (running) {
+				System.out.println(e.getMessage());
 			}
+		}
+	}
+	
+	/**
+	 * This method tells the client why it can't be served and when to retry, then closes the connection.<br>
+	 * The reply is short and the socket is new, so the write doesn't block the welcoming socket.
+	 * @param clientSocket The refused client.
+	 * @param reason Why the client is refused.
+	 */
+	public void refuse(Socket clientSocket, AdmissionControl.Result reason) {
+		System.out.println("CS: Connection refused: " + reason);
+		try {
+			PrintWriter sender = new PrintWriter(clientSocket.getOutputStream(), true);
+			sender.println((reason == AdmissionControl.Result.SERVER_FULL ? "Server full" : "Too many connections from your address")
+					+ ", retry after " + retryAfter + " seconds");
+			clientSocket.close();
+		} catch (IOException e) {}
+	}
+	
+	// join the cluster, the server runs alone if the port can't be opened
+	private void startCluster() {
+		ClusterNode node = new ClusterNode(this, clusterNodeId != null ? clusterNodeId : "node-" + getServerPort(),
+				clusterPort, ClusterNode.parsePeers(clusterPeers));
+		try {
+			node.start();
+			cluster = node;
 		} catch (IOException e) {
-			// unable to create new server socket on [serverPort]
+			System.out.println("Cluster not started: " + e.getMessage());
+		}
+	}
+	
+	// serve the clients with the event-driven engine
+	private void runEventDriven() {
+		try {
+			lock.lock();
+			try {
+				if (!running) {
+					return;
+				}
+				engine = new NioChatEngine(this, eventLoops, Math.max(1, eventLoopWorkers));
+			} finally {
+				lock.unlock();
+			}
+			engine.run();
+		} catch (IOException e) {
+			// unable to open the selectors
 			System.out.println(e.getMessage());
 		}
 	}
 	
 	/**
-	 * Set of all the type of service provided by the Chat Server
+	 * Set of the built-in services provided by the Chat Server, other services are plugged in through the ChatServiceRegistry.
 	 * @author Antonio Terpin
 	 */
-	public enum server_type {
+	public enum server_type implements ChatServiceFactory {
 		// all the chat type proposed to the clients
-		ECHO_SERVER("ECHO_SERVER", EchoServer.class),
-		REVERSE_SERVER("REVERSE_SERVER", ReverseServer.class),
-		BROADCAST_SERVER("BROADCAST_SERVER", BroadcastServer.class);
+		ECHO_SERVER("ECHO_SERVER", EchoServer.class, EchoServer::new),
+		REVERSE_SERVER("REVERSE_SERVER", ReverseServer.class, ReverseServer::new),
+		BROADCAST_SERVER("BROADCAST_SERVER", BroadcastServer.class, BroadcastServer::new);
+		
+		// entries by upper-case name
+		private static final Map<String, server_type> byName = new HashMap<String, server_type>();
+		static {
+			for (server_type s : values()) {
+				byName.put(s.name.toUpperCase(Locale.ROOT), s);
+			}
+		}
 		
 		private String name;
-		// use class to instance a new object every time (otherwise always the same object is used...)
 		private Class<? extends Server> serverClass; // the class MUST extends Server
+		// creates a new object every time (otherwise always the same object is used...), without reflection
+		private BiFunction<Socket, ChatServer, Server> constructor;
 		
 		/**
-		 * Constructor which allows to choose a name and a class for the server_type.
+		 * Constructor which allows to choose a name, a class and a constructor for the server_type.
 		 * @param name The name of the chat service.
 		 * @param serverClass The class that provides a chat service and extends Server.
+		 * @param constructor The constructor of the class.
 		 */
-		server_type(String name, Class<? extends Server> serverClass) {
+		server_type(String name, Class<? extends Server> serverClass, BiFunction<Socket, ChatServer, Server> constructor) {
 			this.name = name;
 			this.serverClass = serverClass;
+			this.constructor = constructor;
 		}
 		
 		/**
 		 * Only-read access to server_type name.
 		 * @return name Server name
 		 */
+		@Override
 		public String getName() {
 			return name;
 		}
@@ -244,21 +931,23 @@ public class ChatServer implements Runnable {
 		}
 		
 		/**
-		 * This method allows to retrieve, if possible, a server_type with the searched name.
+		 * This method creates the chat service of a client.
+		 */
+		@Override
+		public Server newService(Socket clientSocket, ChatServer chatServer) {
+			return constructor.apply(clientSocket, chatServer);
+		}
+		
+		/**
+		 * This method allows to retrieve, if possible, a server_type with the searched name (case-insensitive, constant time).
 		 * @param name The name of the server_type to search
 		 * @return serverType The enumeration entry if exists, otherwise returns null.
 		 */
 		public static server_type fromString(String name) {
-			if (name != null) {
-				for (server_type s : server_type.values()) {
-					if(name.equalsIgnoreCase(s.name)) {
-						return s;
-					}
-				}
-			}
-			return null;
+			return (name == null) ? null : byName.get(name.trim().toUpperCase(Locale.ROOT));
 		}
 	}
+
 	
 	/**
 	 * This class implements the LoggerCallback interface to use the synchronized api of the logger to safely access to the log file. 
@@ -315,30 +1004,88 @@ public class ChatServer implements Runnable {
 		@Override
 		public void run() {
 			ChatServer.this.doingRedirection(); // start the redirection operation
+			HandshakeEvent event = new HandshakeEvent();
+			event.begin();
 			Server new_service = null;
 			try {
 				// to communicate with the client
 				PrintWriter sender = new PrintWriter(clientSocket.getOutputStream(), true);
-				BufferedReader receiver = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
 				
 				// tell the user between which server he can choose
 				sender.println(welcomingMessage());
-				// get choosed server
-				server_type choosedServer = server_type.fromString(receiver.readLine());
+				// get choosed server, the client can't keep the thread forever
+				clientSocket.setSoTimeout(handshakeTimeout);
+				String selection = readSelection();
+				clientSocket.setSoTimeout(0);
+				if (selection == null) {
+					throw new IOException("Client disconnected"); // gave up before selecting
+				}
+				// "SERVICE" or "SERVICE BINARY"
+				boolean binary = selection.endsWith(" " + binaryFraming);
+				if (binary) {
+					selection = selection.substring(0, selection.length() - binaryFraming.length() - 1).trim();
+				}
+				ChatServiceFactory choosedServer = services.find(selection);
 				if (choosedServer == null) {
 					choosedServer = server_type.ECHO_SERVER; // default server
 				}
-				System.out.println("CS: Selected server: " + choosedServer.getName());
-				// send feedback
-				sender.println("Selected server: " + choosedServer.getName());
+				System.out.println("CS: Selected server: " + choosedServer.getName() + (binary ? " " + binaryFraming : ""));
+				getServiceOptions(choosedServer.getName()).applyTo(clientSocket);
+				// send feedback, the last line before the binary frames
+				sender.println("Selected server: " + choosedServer.getName() + (binary ? " " + binaryFraming : ""));
 				// satisfy the user (start the service)
-				new_service = (Server) choosedServer.getServer().getConstructor(Socket.class, ChatServer.class).newInstance(clientSocket, server);
-				Thread newServer = new Thread(new_service);
+				new_service = choosedServer.newService(clientSocket, server);
+				new_service.setBinaryFraming(binary);
+				// add client to connected clients, before it can disconnect
+				connectClient(new_service, choosedServer.getName());
+				Thread newServer = newThread(new_service);
 				newServer.start();
-				// add client to connected clients
-				connectClient(new_service);
-			} catch (Exception e) {} // if something occurs, do nothing
+				event.succeeded = true;
+				event.service = choosedServer.getName();
+				event.binary = binary;
+			} catch (Exception e) {
+				// the client gave up or the service couldn't start
+				if (new_service != null) {
+					disconnectClient(new_service);
+				} else {
+					admission.release(clientSocket.getInetAddress());
+				}
+				try {
+					clientSocket.close();
+				} catch (IOException ex) {}
+			}
+			event.end();
+			if (event.shouldCommit()) {
+				event.client = String.valueOf(clientSocket.getInetAddress());
+				event.commit();
+			}
 			ChatServer.this.finishedRedirection(); // the redirection operation has been finished
 		}
+
+		/**
+		 * This method reads the line selecting the service one byte at a time, so nothing sent after it is consumed:
+		 * the service reads the requests the client pipelined, even binary frames.
+		 * @return selection The line, without terminator, null if the client closed the connection.
+		 * @throws IOException if the line can't be read or it is too long.
+		 */
+		private String readSelection() throws IOException {
+			InputStream in = clientSocket.getInputStream();
+			StringBuilder line = new StringBuilder();
+			int c;
+			while ((c = in.read()) != '\n') {
+				if (c < 0) {
+					return line.length() > 0 ? line.toString() : null;
+				}
+				if (line.length() == maxSelectionLength) {
+					throw new IOException("Selection too long");
+				}
+				line.append((char) c);
+			}
+			int end = line.length();
+			if (end > 0 && line.charAt(end - 1) == '\r') {
+				line.setLength(end - 1);
+			}
+			return line.toString();
+		}
 	}
 }
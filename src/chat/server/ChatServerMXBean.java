@@ -0,0 +1,167 @@
+package chat.server;
+
+import java.util.Map;
+
+/**
+ * Management interface of a running chat server, registered as chat.server:type=ChatServer,port=[port].<br>
+ * Statistics are read without taking the server lock, limits can be changed while the server runs (see jconsole or any JMX client).
+ * @author Antonio Terpin
+ */
+public interface ChatServerMXBean {
+	/**
+	 * Method to retrieve the number of open connections.
+	 * @return connections Number of open connections, admitted and not released yet.
+	 */
+	int getConnections();
+
+	/**
+	 * Method to retrieve the number of served clients of each service type.
+	 * @return connections Number of served clients of each service type, event loop sessions counted together.
+	 */
+	Map<String, Integer> getConnectionsByService();
+
+	/**
+	 * Method to retrieve the number of clients still selecting the service.
+	 * @return clients Number of clients still selecting the service.
+	 */
+	int getClientsInRedirection();
+
+	/**
+	 * Method to retrieve the number of connections refused by the admission control since the server started.
+	 * @return rejected Number of connections refused by the admission control since the server started.
+	 */
+	long getRejectedConnections();
+
+	/**
+	 * Method to retrieve the number of messages broadcast since the server started.
+	 * @return messages Number of messages broadcast since the server started.
+	 */
+	long getMessagesIn();
+
+	/**
+	 * Method to retrieve the number of messages delivered to the room members since the server started.
+	 * @return messages Number of messages delivered to the room members since the server started.
+	 */
+	long getMessagesOut();
+
+	/**
+	 * Method to retrieve the messages broadcast per second.
+	 * @return rate Messages broadcast per second, over the last second at least.
+	 */
+	double getMessagesInPerSecond();
+
+	/**
+	 * Method to retrieve the messages delivered per second.
+	 * @return rate Messages delivered per second, over the last second at least.
+	 */
+	double getMessagesOutPerSecond();
+
+	/**
+	 * Method to retrieve the upper bounds (microseconds) of the buckets of the fanout latency histogram.
+	 * @return bounds Upper bounds (microseconds) of the buckets of the fanout latency histogram, the last bucket has no bound.
+	 */
+	long[] getFanoutLatencyBoundsMicros();
+
+	/**
+	 * Method to retrieve the broadcasts of each bucket of the fanout latency histogram.
+	 * @return counts Broadcasts of each bucket of the fanout latency histogram.
+	 */
+	long[] getFanoutLatencyCounts();
+
+	/**
+	 * Method to retrieve the 99th percentile of the fanout latency.
+	 * @return latency 99th percentile of the fanout latency (bucket bound, microseconds), -1 if over the last bound.
+	 */
+	long getFanoutLatencyP99Micros();
+
+	/**
+	 * Method to retrieve the messages waiting in the outbound queue of each broadcast client (thread-per-client engine).
+	 * @return depths Messages waiting in the outbound queue of each broadcast client (thread-per-client engine).
+	 */
+	Map<String, Integer> getOutboundQueueDepths();
+
+	/**
+	 * Method to retrieve the messages dropped by the full outbound queues since the server started.
+	 * @return dropped Messages dropped by the full outbound queues since the server started.
+	 */
+	long getDroppedMessages();
+
+	/**
+	 * Method to retrieve the clients disconnected for being too slow since the server started.
+	 * @return disconnected Clients disconnected for being too slow since the server started.
+	 */
+	long getSlowConsumersDisconnected();
+
+	/**
+	 * Method to retrieve the clients disconnected for being silent longer than the idle timeout since the server started.
+	 * @return reaped Clients disconnected for being idle since the server started.
+	 */
+	long getIdleClientsReaped();
+
+	/**
+	 * Method to retrieve the clients disconnected for not answering a heartbeat ping since the server started.
+	 * @return reaped Clients disconnected for not answering the heartbeat since the server started.
+	 */
+	long getUnresponsiveClientsReaped();
+
+	/**
+	 * Method to retrieve the requests delayed or dropped and clients disconnected by the rate limiter since the server started.
+	 * @return rateLimited Requests delayed or dropped and clients disconnected by the rate limiter since the server started.
+	 */
+	long getRateLimited();
+
+	/**
+	 * Method to retrieve the maximum number of open connections.
+	 * @return maxConnections Maximum number of open connections, 0 for no limit.
+	 */
+	int getMaxConnections();
+
+	/**
+	 * Method to change the maximum number of open connections.
+	 * @param maxConnections Maximum number of open connections, 0 for no limit. Open connections are not closed.
+	 */
+	void setMaxConnections(int maxConnections);
+
+	/**
+	 * Method to retrieve the maximum number of open connections from the same address.
+	 * @return maxConnectionsPerIp Maximum number of open connections from the same address, 0 for no limit.
+	 */
+	int getMaxConnectionsPerIp();
+
+	/**
+	 * Method to change the maximum number of open connections from the same address.
+	 * @param maxConnectionsPerIp Maximum number of open connections from the same address, 0 for no limit.
+	 */
+	void setMaxConnectionsPerIp(int maxConnectionsPerIp);
+
+	/**
+	 * Method to retrieve the policy of the requests over the rate limit.
+	 * @return policy Policy of the requests over the rate limit (DELAY, DROP or DISCONNECT).
+	 */
+	String getRateLimitPolicy();
+
+	/**
+	 * Method to change the policy of the requests over the rate limit.
+	 * @param policy Policy of the requests over the rate limit (DELAY, DROP or DISCONNECT), applied to the open connections too.
+	 */
+	void setRateLimitPolicy(String policy);
+
+	/**
+	 * This operation changes the rate limit of the connections opened from now on.
+	 * @param rate Requests per second, 0 for no limit.
+	 * @param burst Requests a connection can send at once.
+	 */
+	void setRateLimit(double rate, int burst);
+
+	/**
+	 * Method to retrieve the maximum length of a request.
+	 * @return maxLineLength Maximum length of a request.
+	 */
+	int getMaxLineLength();
+
+	/**
+	 * Method to change the maximum length of a request.
+	 * @param maxLineLength Maximum length of a request, for the clients connected from now on.
+	 */
+	void setMaxLineLength(int maxLineLength);
+}
@@ -0,0 +1,231 @@
+package chat.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import chat.server.nio.NioChatEngine;
+
+/**
+ * Management bean of a chat server (see ChatServerMXBean), registered in the platform MBean server while the server runs.
+ * @author Antonio Terpin
+ */
+class ChatServerManagement implements ChatServerMXBean {
+	private final ChatServer chatServer;
+	private final Rate messagesIn, messagesOut;
+	private ObjectName name = null;
+
+	/**
+	 * Constructor which allows to set the chat server to manage.
+	 * @param chatServer The chat server.
+	 */
+	ChatServerManagement(ChatServer chatServer) {
+		this.chatServer = chatServer;
+		this.messagesIn = new Rate(chatServer.getMessagesIn());
+		this.messagesOut = new Rate(chatServer.getMessagesOut());
+	}
+
+	/**
+	 * This method registers the bean, once the server port is known.
+	 */
+	void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			name = new ObjectName("chat.server:type=ChatServer,port=" + chatServer.getServerPort());
+			if (!server.isRegistered(name)) {
+				server.registerMBean(this, name);
+			}
+		} catch (JMException e) {
+			System.out.println("CS: Management bean not registered: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * This method removes the bean, when the server stops.
+	 */
+	void unregister() {
+		if (name == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException e) {} // already removed
+		name = null;
+	}
+
+	@Override
+	public int getConnections() {
+		return chatServer.getAdmissionControl().getConnections();
+	}
+
+	@Override
+	public Map<String, Integer> getConnectionsByService() {
+		Map<String, Integer> connections = new TreeMap<String, Integer>(chatServer.getConnectedClients().sizeByType());
+		NioChatEngine engine = chatServer.getEngine();
+		if (engine != null) {
+			connections.put("EVENT_LOOP_SESSIONS", engine.getNumberOfConnections());
+		}
+		return connections;
+	}
+
+	@Override
+	public int getClientsInRedirection() {
+		return chatServer.getNumberOfClientsSelectingService();
+	}
+
+	@Override
+	public long getRejectedConnections() {
+		return chatServer.getAdmissionControl().getRejected();
+	}
+
+	@Override
+	public long getMessagesIn() {
+		return chatServer.getMessagesIn().sum();
+	}
+
+	@Override
+	public long getMessagesOut() {
+		return chatServer.getMessagesOut().sum();
+	}
+
+	@Override
+	public double getMessagesInPerSecond() {
+		return messagesIn.get();
+	}
+
+	@Override
+	public double getMessagesOutPerSecond() {
+		return messagesOut.get();
+	}
+
+	@Override
+	public long[] getFanoutLatencyBoundsMicros() {
+		return chatServer.getFanoutLatency().getBoundsMicros();
+	}
+
+	@Override
+	public long[] getFanoutLatencyCounts() {
+		return chatServer.getFanoutLatency().getCounts();
+	}
+
+	@Override
+	public long getFanoutLatencyP99Micros() {
+		return chatServer.getFanoutLatency().getPercentileMicros(99);
+	}
+
+	@Override
+	public Map<String, Integer> getOutboundQueueDepths() {
+		Map<String, Integer> depths = new TreeMap<String, Integer>();
+		for (Server client : chatServer.getConnectedClients().all()) {
+			if (client instanceof BroadcastServer) {
+				OutboundQueue queue = ((BroadcastServer) client).getOutboundQueue();
+				if (queue != null) {
+					// the address and port tell apart the clients without username
+					depths.put(((BroadcastServer) client).getDisplayName() + " " + client.clientSocket.getRemoteSocketAddress(), queue.getDepth());
+				}
+			}
+		}
+		return depths;
+	}
+
+	@Override
+	public long getDroppedMessages() {
+		return chatServer.getDroppedMessages();
+	}
+
+	@Override
+	public long getSlowConsumersDisconnected() {
+		return chatServer.getSlowConsumersDisconnected();
+	}
+
+	@Override
+	public long getIdleClientsReaped() {
+		return chatServer.getIdleClientsReaped();
+	}
+
+	@Override
+	public long getUnresponsiveClientsReaped() {
+		return chatServer.getUnresponsiveClientsReaped();
+	}
+
+	@Override
+	public long getRateLimited() {
+		RateLimiter limiter = chatServer.getRateLimiter();
+		return limiter.getDelayed() + limiter.getDropped() + limiter.getDisconnected();
+	}
+
+	@Override
+	public int getMaxConnections() {
+		return chatServer.getAdmissionControl().getMaxConnections();
+	}
+
+	@Override
+	public void setMaxConnections(int maxConnections) {
+		chatServer.getAdmissionControl().setMaxConnections(maxConnections);
+	}
+
+	@Override
+	public int getMaxConnectionsPerIp() {
+		return chatServer.getAdmissionControl().getMaxConnectionsPerAddress();
+	}
+
+	@Override
+	public void setMaxConnectionsPerIp(int maxConnectionsPerIp) {
+		chatServer.getAdmissionControl().setMaxConnectionsPerAddress(maxConnectionsPerIp);
+	}
+
+	@Override
+	public String getRateLimitPolicy() {
+		return chatServer.getRateLimiter().getPolicy().name();
+	}
+
+	@Override
+	public void setRateLimitPolicy(String policy) {
+		chatServer.getRateLimiter().setPolicy(RateLimiter.Policy.valueOf(policy.trim().toUpperCase()));
+	}
+
+	@Override
+	public void setRateLimit(double rate, int burst) {
+		chatServer.getRateLimiter().setLimit(rate, burst);
+	}
+
+	@Override
+	public int getMaxLineLength() {
+		return chatServer.getMaxLineLength();
+	}
+
+	@Override
+	public void setMaxLineLength(int maxLineLength) {
+		chatServer.setMaxLineLength(maxLineLength);
+	}
+
+	/**
+	 * Rate of a counter, measured between two reads at least one second apart: frequent reads see the last measured rate.
+	 */
+	private static class Rate {
+		private final LongAdder counter;
+		private long lastCount, lastTime = System.nanoTime();
+		private double rate = 0;
+
+		Rate(LongAdder counter) {
+			this.counter = counter;
+			this.lastCount = counter.sum();
+		}
+
+		synchronized double get() {
+			long now = System.nanoTime(), elapsed = now - lastTime;
+			if (elapsed >= 1000000000L) {
+				long count = counter.sum();
+				rate = (count - lastCount) * 1e9 / elapsed;
+				lastCount = count;
+				lastTime = now;
+			}
+			return rate;
+		}
+	}
+}
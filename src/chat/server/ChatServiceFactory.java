@@ -0,0 +1,47 @@
+package chat.server;
+
+import java.net.Socket;
+import java.util.function.BiFunction;
+
+/**
+ * Factory of a chat service, the way to plug a new service into the chat server.<br>
+ * The built-in services are registered by the server itself. Other services are discovered with ServiceLoader:
+ * list the implementation class in META-INF/services/chat.server.ChatServiceFactory on the classpath
+ * (it needs a public no-argument constructor), or register it through ChatServiceRegistry.register.
+ * @author Antonio Terpin
+ */
+public interface ChatServiceFactory {
+	/**
+	 * Method to retrieve the name the clients select the service with, case-insensitive.
+	 * @return name Name of the service.
+	 */
+	String getName();
+
+	/**
+	 * This method creates the chat service of a client, it is called once for each connection.
+	 * @param clientSocket Client socket to provide socket connection.
+	 * @param chatServer Chat server, useful in some cases.
+	 * @return service The chat service, started on its own thread by the chat server.
+	 */
+	Server newService(Socket clientSocket, ChatServer chatServer);
+
+	/**
+	 * This method creates a factory from a constructor reference or a lambda, for example of("MY_SERVER", MyServer::new).
+	 * @param name Name of the service.
+	 * @param constructor Creates the chat service of a client.
+	 * @return factory The factory of the service.
+	 */
+	static ChatServiceFactory of(String name, BiFunction<Socket, ChatServer, ? extends Server> constructor) {
+		return new ChatServiceFactory() {
+			@Override
+			public String getName() {
+				return name;
+			}
+
+			@Override
+			public Server newService(Socket clientSocket, ChatServer chatServer) {
+				return constructor.apply(clientSocket, chatServer);
+			}
+		};
+	}
+}
@@ -0,0 +1,73 @@
+package chat.server;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Chat services the clients can select, looked up by name in constant time and case-insensitively.<br>
+ * The built-in services come first, then the ones discovered with ServiceLoader, then the ones registered at runtime.
+ * @author Antonio Terpin
+ */
+public class ChatServiceRegistry {
+	// factories by upper-case name
+	private final ConcurrentHashMap<String, ChatServiceFactory> byName = new ConcurrentHashMap<String, ChatServiceFactory>();
+	// factories in registration order, for the welcoming message
+	private final List<ChatServiceFactory> factories = new CopyOnWriteArrayList<ChatServiceFactory>();
+
+	/**
+	 * Constructor which registers the built-in services and the ones found on the classpath.
+	 */
+	public ChatServiceRegistry() {
+		for (ChatServer.server_type type : ChatServer.server_type.values()) {
+			register(type);
+		}
+		try {
+			for (ChatServiceFactory factory : ServiceLoader.load(ChatServiceFactory.class)) {
+				if (!register(factory)) {
+					System.out.println("CS: Chat service " + factory.getName() + " already registered, ignored");
+				}
+			}
+		} catch (ServiceConfigurationError e) {
+			System.out.println("CS: Chat services not loaded: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * This method adds a service, if no other service has the same name.
+	 * @param factory Factory of the service.
+	 * @return registered False if the name was already taken.
+	 */
+	public boolean register(ChatServiceFactory factory) {
+		if (byName.putIfAbsent(key(factory.getName()), factory) != null) {
+			return false;
+		}
+		factories.add(factory);
+		return true;
+	}
+
+	/**
+	 * This method looks a service up by name.
+	 * @param name Name of the service, case-insensitive.
+	 * @return factory The factory of the service, null if there is none with that name.
+	 */
+	public ChatServiceFactory find(String name) {
+		return (name == null) ? null : byName.get(key(name.trim()));
+	}
+
+	/**
+	 * Method to retrieve the registered services.
+	 * @return factories The factories, in registration order.
+	 */
+	public List<ChatServiceFactory> getFactories() {
+		return factories;
+	}
+
+	// lookup key of a name
+	private static String key(String name) {
+		return name.toUpperCase(Locale.ROOT);
+	}
+}
@@ -0,0 +1,89 @@
+package chat.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import net.MemorySocket;
+
+/**
+ * Warm-up of the chat server, done before it listens: synthetic clients run through the line and binary framing, the encodings
+ * of the messages and the fanout of a private room, so the first clients don't pay for class loading and interpretation.<br>
+ * Nothing is logged and the rooms, the connections and the statistics of the server are not touched.
+ * @author Antonio Terpin
+ */
+class ChatWarmUp {
+	// members of the private room
+	private static final int members = 32;
+
+	/**
+	 * Room member which encodes the messages as the clients expect them, then discards them.
+	 */
+	private static class SilentMember implements RoomMember {
+		private final Frame.Encoding encoding;
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		SilentMember(Frame.Encoding encoding) {
+			this.encoding = encoding;
+		}
+
+		@Override
+		public void sendMessage(Frame message) {
+			try {
+				message.writeTo(out, encoding);
+			} catch (IOException e) {} // in memory
+			out.reset();
+		}
+
+		@Override
+		public String getDisplayName() {
+			return "warm-up";
+		}
+	}
+
+	/**
+	 * This method warms the server up.
+	 * @param chatServer The chat server, which provides commands and options.
+	 * @param iterations Number of synthetic clients of each framing.
+	 * @return messages Number of synthetic messages processed.
+	 * @throws IOException never, the synthetic clients are in memory.
+	 */
+	static long run(ChatServer chatServer, int iterations) throws IOException {
+		Room room = new Room("warm-up", 16);
+		Frame.Encoding[] encodings = Frame.Encoding.values();
+		for (int i = 0; i < members; i++) {
+			room.add(new SilentMember(encodings[i % encodings.length]), 0, 0);
+		}
+		RoomMember sender = new SilentMember(Frame.Encoding.LINE);
+		ServiceOptions options = chatServer.getServiceOptions(ChatServer.server_type.BROADCAST_SERVER);
+		// the requests of a client: messages and control words
+		String[] requests = { "hello from the warm-up", chatServer.getConn, chatServer.joinRoom + " warm-up", chatServer.history + " 5",
+				"a longer message, to have lines of different lengths in the buffers of the readers" };
+		ByteArrayOutputStream lines = new ByteArrayOutputStream(), frames = new ByteArrayOutputStream();
+		for (int i = 0; i < requests.length; i++) {
+			lines.write((requests[i] + (i % 2 == 0 ? "\r\n" : "\n")).getBytes());
+			frames.write(BinaryFraming.encode(i % 2 == 0 ? BinaryFraming.MESSAGE : BinaryFraming.COMMAND, requests[i]));
+		}
+		long processed = 0;
+		for (int i = 0; i < iterations; i++) {
+			for (boolean binary : new boolean[] { false, true }) {
+				MemorySocket socket = new MemorySocket(binary ? frames.toByteArray() : lines.toByteArray());
+				ClientConnection connection = new ClientConnection(socket, options, binary, chatServer.getMaxLineLength());
+				ClientConnection.Request request;
+				while ((request = connection.next()) != null) {
+					if (request.getCommand() == null || !request.getCommand().startsWith(chatServer.history)) {
+						room.broadcast(sender, Frame.of("warm-up: " + request.getText()));
+					} else {
+						for (Frame message : room.getHistory(5)) {
+							sender.sendMessage(message);
+						}
+					}
+					connection.send(request.getText());
+					connection.replied();
+					processed++;
+				}
+				connection.close(); // the pooled buffers are reused by the next synthetic client
+			}
+		}
+		return processed;
+	}
+}
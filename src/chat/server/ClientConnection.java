@@ -0,0 +1,399 @@
+package chat.server;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.PooledInputStream;
+import net.PooledOutputStream;
+
+/**
+ * Requests and replies of a client of the thread-per-client services, as lines or as binary frames (see BinaryFraming).<br>
+ * In line mode every line may be a control word. In binary mode only COMMAND frames are control words, MESSAGE frames are always text;
+ * the replies are buffered and the client frames are acknowledged in batches.<br>
+ * Input and output are buffered in direct buffers of the shared pool (see BufferPool), given back by close.<br>
+ * The heartbeat answers of the client (heartbeatPong) are consumed here, the services never see them.
+ * @author Antonio Terpin
+ */
+public class ClientConnection {
+	// default maximum length of a line or payload of a client frame
+	private static final int defaultMaxLength = 64 * 1024;
+	// size of the pooled input and output buffers
+	private static final int inputBufferSize = 4096, outputBufferSize = 8192;
+	/**
+	 * Heartbeat ping sent to a silent client (a line, or a COMMAND frame in binary mode) and answer expected from it (any request will do).
+	 */
+	public static final String heartbeatPing = "PING", heartbeatPong = "PONG";
+	private final Socket socket;
+	private final ServiceOptions options;
+	private final boolean binary;
+	// maximum length of a line or payload of a client frame, checked before allocating it
+	private final int maxLength;
+	private PooledInputStream input = null;
+	private PooledOutputStream output = null;
+	private LineReader lineReader = null;
+	private DataInputStream frameReader = null;
+	// created by the service or by a heartbeat, whichever comes first
+	private volatile PrintWriter sender = null;
+	private FrameWriter frameWriter = null;
+	// guards the creation of the writer and the release of the output, so a late heartbeat can't take a buffer after close
+	private final ReentrantLock writerLock = new ReentrantLock();
+	private boolean closed = false;
+	// when the last request (heartbeat answers included) was read, for the idle reaper
+	private volatile long lastInput = System.nanoTime();
+	// a heartbeat ping was sent and no request was read since: only then a PONG is an answer, not a request
+	private volatile boolean pingOutstanding = false;
+	// requests processed, replies not flushed and requests not acknowledged yet
+	private long processed = 0;
+	private int unflushed = 0, unacknowledged = 0;
+
+	/**
+	 * A request of the client.
+	 */
+	public static final class Request {
+		private final String text;
+		private final boolean command;
+
+		/**
+		 * Constructor which allows to set the text of the request and if it can be a control word.
+		 * @param text The text of the request.
+		 * @param command True if the text can be a control word.
+		 */
+		public Request(String text, boolean command) {
+			this.text = text;
+			this.command = command;
+		}
+
+		/**
+		 * Method to retrieve the text of the request.
+		 * @return text The text.
+		 */
+		public String getText() {
+			return text;
+		}
+
+		/**
+		 * Method to retrieve the request as a control word.
+		 * @return command The text if it can be a control word, null if it is a message.
+		 */
+		public String getCommand() {
+			return command ? text : null;
+		}
+	}
+
+	/**
+	 * Constructor which allows to set the socket, the options of the service and the framing.
+	 * @param socket The client socket.
+	 * @param options Options of the service.
+	 * @param binary True if the client selected the binary framing.
+	 */
+	public ClientConnection(Socket socket, ServiceOptions options, boolean binary) {
+		this(socket, options, binary, defaultMaxLength);
+	}
+
+	/**
+	 * Constructor which allows to set the socket, the options of the service, the framing and the maximum length of a request.
+	 * @param socket The client socket.
+	 * @param options Options of the service.
+	 * @param binary True if the client selected the binary framing.
+	 * @param maxLength Maximum number of bytes of a line or of a frame payload, longer requests close the connection.
+	 */
+	public ClientConnection(Socket socket, ServiceOptions options, boolean binary, int maxLength) {
+		this.socket = socket;
+		this.options = options;
+		this.binary = binary;
+		this.maxLength = maxLength;
+	}
+
+	/**
+	 * Method to know the framing of the connection.
+	 * @return binary True if the client selected the binary framing.
+	 */
+	public boolean isBinary() {
+		return binary;
+	}
+
+	/**
+	 * This method waits for the next request, skipping the answer to a heartbeat ping: a PONG line (a PONG COMMAND frame in binary mode)
+	 * read while a ping is outstanding. Otherwise PONG is a request like the others.
+	 * @return request The request, null if the client closed the connection.
+	 * @throws IOException if the connection can't be read or the client sent an invalid frame or a line too long.
+	 */
+	public Request next() throws IOException {
+		while (true) {
+			Request request = read();
+			lastInput = System.nanoTime();
+			if (request == null || !pingOutstanding) {
+				return request;
+			}
+			pingOutstanding = false; // any request answers the ping
+			if (!heartbeatPong.equals(request.getCommand())) { // a MESSAGE frame is never a command
+				return request;
+			}
+			if (binary) {
+				processed++; // a frame of the client, acknowledged with the next ones
+			}
+		}
+	}
+
+	// read the next request
+	private Request read() throws IOException {
+		if (!binary) {
+			if (lineReader == null) {
+				lineReader = new LineReader(input(), maxLength);
+			}
+			String line = lineReader.readLine();
+			return (line == null) ? null : new Request(line, true);
+		}
+		if (frameReader == null) {
+			frameReader = new DataInputStream(input());
+		}
+		int opcode = frameReader.read();
+		if (opcode < 0) {
+			return null;
+		}
+		try {
+			int length = frameReader.readInt();
+			if (length < 0 || length > maxLength) {
+				throw new IOException("Invalid frame length: " + length);
+			}
+			if (opcode != BinaryFraming.MESSAGE && opcode != BinaryFraming.COMMAND) {
+				throw new IOException("Invalid opcode: " + opcode);
+			}
+			byte[] payload = new byte[length];
+			frameReader.readFully(payload);
+			return new Request(new String(payload, StandardCharsets.UTF_8), opcode == BinaryFraming.COMMAND);
+		} catch (EOFException e) {
+			return null; // connection closed in the middle of a frame
+		}
+	}
+
+	// pooled input of the socket, taken at first use
+	private PooledInputStream input() throws IOException {
+		if (input == null) {
+			input = new PooledInputStream(socket, inputBufferSize);
+		}
+		return input;
+	}
+
+	/**
+	 * Method to retrieve when the client was last heard.
+	 * @return nanos System.nanoTime() of the last request read, or of the creation of the connection if none was.
+	 */
+	public long getLastInputNanos() {
+		return lastInput;
+	}
+
+	/**
+	 * This method sends the heartbeat ping and flushes it, from any thread.
+	 * @throws IOException if the connection can't be written.
+	 */
+	public void ping() throws IOException {
+		PrintWriter writer = getWriter();
+		expectPong();
+		if (binary) {
+			frameWriter.writeFrame(BinaryFraming.encode(BinaryFraming.COMMAND, heartbeatPing));
+		} else {
+			writer.println(heartbeatPing);
+		}
+		writer.flush();
+	}
+
+	/**
+	 * This method tells the connection a heartbeat ping is being sent by other means (for example by the outbound queue of the client),
+	 * so its answer is skipped by next. It must be called before sending the ping.
+	 */
+	public void expectPong() {
+		pingOutstanding = true;
+	}
+
+	// pooled output of the socket, taken at first use
+	private PooledOutputStream output() throws IOException {
+		if (output == null) {
+			output = new PooledOutputStream(socket, outputBufferSize);
+		}
+		return output;
+	}
+
+	/**
+	 * This method gives the buffers back to the pool, once the service has ended: the replies not flushed yet are written if possible.
+	 * The socket is closed by its owner.
+	 */
+	public void close() {
+		if (input != null) {
+			input.close();
+		}
+		writerLock.lock();
+		try {
+			closed = true;
+			if (output != null) {
+				output.close();
+			}
+		} catch (IOException e) { // the connection is already closed, the buffer is released anyway
+		} finally {
+			writerLock.unlock();
+		}
+	}
+
+	/**
+	 * This method tells if more requests have already arrived.
+	 * @return pending True if the next request can be (at least partially) read without waiting.
+	 * @throws IOException if the connection can't be read.
+	 */
+	public boolean hasPendingInput() throws IOException {
+		if (binary) {
+			return frameReader != null && frameReader.available() > 0;
+		}
+		return lineReader != null && lineReader.ready();
+	}
+
+	/**
+	 * This method gives the writer of the replies. Each line written is a message: in binary mode it is sent as a MESSAGE frame.
+	 * @return sender The writer of the replies, thread-safe.
+	 * @throws IOException if the connection can't be written.
+	 */
+	public PrintWriter getWriter() throws IOException {
+		PrintWriter writer = sender;
+		if (writer != null) {
+			return writer;
+		}
+		writerLock.lock();
+		try {
+			if (closed) {
+				throw new IOException("Connection closed");
+			}
+			if (sender == null) {
+				if (binary) {
+					frameWriter = new FrameWriter(output());
+					sender = new ReplyWriter(frameWriter, false);
+				} else {
+					sender = options.newWriter(output());
+				}
+			}
+			return sender;
+		} finally {
+			writerLock.unlock();
+		}
+	}
+
+	/**
+	 * This method sends a message, even a multi-line one in binary mode.
+	 * @param message The message.
+	 * @throws IOException if the connection can't be written.
+	 */
+	public void send(String message) throws IOException {
+		PrintWriter writer = getWriter();
+		if (binary) {
+			frameWriter.writeFrame(BinaryFraming.encode(BinaryFraming.MESSAGE, message));
+		} else {
+			writer.println(message);
+		}
+	}
+
+	/**
+	 * This method counts a processed request and tells if the client has to be acknowledged now:
+	 * when the batch is full or when no more requests are waiting.
+	 * @return ack The acknowledgement frame to send, null if none is due (always null in line mode).
+	 * @throws IOException if the connection can't be read.
+	 */
+	public byte[] acknowledge() throws IOException {
+		if (!binary) {
+			return null;
+		}
+		processed++;
+		if (++unacknowledged < options.getFlushBatch() && hasPendingInput()) {
+			return null;
+		}
+		unacknowledged = 0;
+		return BinaryFraming.encodeAck(processed);
+	}
+
+	/**
+	 * This method is called after each reply written with the writer of this connection. The replies are flushed together
+	 * (in coalescing or binary mode) when the batch is full or when no more requests are waiting, with the acknowledgement in binary mode.
+	 * @throws IOException if the connection can't be used.
+	 */
+	public void replied() throws IOException {
+		PrintWriter writer = getWriter();
+		byte[] ack = acknowledge();
+		if (ack != null) {
+			frameWriter.writeFrame(ack);
+		} else if ((binary || options.isCoalesce()) && ++unflushed < options.getFlushBatch() && hasPendingInput()) {
+			return; // more requests already arrived, their replies go with this one
+		}
+		unflushed = 0;
+		writer.flush();
+	}
+
+	/**
+	 * Writer which sends each line as a binary MESSAGE frame.
+	 */
+	private static class FrameWriter extends Writer {
+		private final OutputStream out;
+		private final StringBuilder line = new StringBuilder();
+		// not the monitor of the writer, so a virtual thread blocked writing to the socket is not pinned
+		private final ReentrantLock writeLock = new ReentrantLock();
+
+		FrameWriter(OutputStream out) {
+			this.out = out;
+		}
+
+		// write an encoded frame, between two lines
+		void writeFrame(byte[] frame) throws IOException {
+			writeLock.lock();
+			try {
+				out.write(frame);
+			} finally {
+				writeLock.unlock();
+			}
+		}
+
+		@Override
+		public void write(char[] buffer, int offset, int length) throws IOException {
+			writeLock.lock();
+			try {
+				for (int i = offset; i < offset + length; i++) {
+					char c = buffer[i];
+					if (c == '\n') {
+						int end = line.length();
+						if (end > 0 && line.charAt(end - 1) == '\r') {
+							line.setLength(end - 1);
+						}
+						out.write(BinaryFraming.encode(BinaryFraming.MESSAGE, line.toString()));
+						line.setLength(0);
+					} else {
+						line.append(c);
+					}
+				}
+			} finally {
+				writeLock.unlock();
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			writeLock.lock();
+			try {
+				out.flush();
+			} finally {
+				writeLock.unlock();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			writeLock.lock();
+			try {
+				out.close();
+			} finally {
+				writeLock.unlock();
+			}
+		}
+	}
+}
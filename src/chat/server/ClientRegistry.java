@@ -0,0 +1,135 @@
+package chat.server;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Concurrent registry of the connected clients, indexed by service type and by username.<br>
+ * Each service type has its own copy-on-write set, so a service iterates its clients on a snapshot without any lock
+ * and doesn't pay for the clients of the other services. Usernames are reserved atomically, for the clients of both engines.
+ * @author Antonio Terpin
+ */
+public class ClientRegistry {
+	// clients of each service type
+	private ConcurrentHashMap<Class<? extends Server>, Set<Server>> byType = new ConcurrentHashMap<Class<? extends Server>, Set<Server>>();
+	// assigned usernames, owned by a chat service or by a session of the event-driven engine
+	private ConcurrentHashMap<String, Object> usernames = new ConcurrentHashMap<String, Object>();
+	private AtomicInteger size = new AtomicInteger(0);
+
+	/**
+	 * This method adds a connected client.
+	 * @param server The chat service of the client.
+	 */
+	public void add(Server server) {
+		if (clientsOf(server.getClass()).add(server)) {
+			size.incrementAndGet();
+		}
+	}
+
+	/**
+	 * This method removes a disconnected client.
+	 * @param server The chat service of the client.
+	 * @return removed True if the client was registered.
+	 */
+	public boolean remove(Server server) {
+		if (clientsOf(server.getClass()).remove(server)) {
+			size.decrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Method to retrieve the number of connected clients.
+	 * @return size Number of registered clients.
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * Method to retrieve the number of connected clients of each service type.
+	 * @return sizes Number of clients by simple name of the service class, the types without clients excluded.
+	 */
+	public Map<String, Integer> sizeByType() {
+		Map<String, Integer> sizes = new HashMap<String, Integer>();
+		for (Map.Entry<Class<? extends Server>, Set<Server>> entry : byType.entrySet()) {
+			int n = entry.getValue().size();
+			if (n > 0) {
+				sizes.merge(entry.getKey().getSimpleName(), n, Integer::sum);
+			}
+		}
+		return sizes;
+	}
+
+	/**
+	 * Method to retrieve the clients of a service type. The iteration works on a snapshot and never blocks.
+	 * @param type The class of the chat service.
+	 * @return clients Read-only view of the clients of that service.
+	 */
+	public Set<Server> ofType(Class<? extends Server> type) {
+		return Collections.unmodifiableSet(clientsOf(type));
+	}
+
+	/**
+	 * Method to retrieve all the connected clients.
+	 * @return clients A copy of the set of connected clients.
+	 */
+	public Collection<Server> all() {
+		Set<Server> all = new HashSet<Server>();
+		for (Set<Server> clients : byType.values()) {
+			all.addAll(clients);
+		}
+		return all;
+	}
+
+	/**
+	 * This method reserves a username, atomically.
+	 * @param username The desired username.
+	 * @param owner The client which wants it: its chat service, or its session of the event-driven engine.
+	 * @return reserved True if the username was free (or already owned by the client).
+	 */
+	public boolean reserveUsername(String username, Object owner) {
+		Object current = usernames.putIfAbsent(username, owner);
+		return current == null || current == owner;
+	}
+
+	/**
+	 * This method releases a username, only if owned by the given client.
+	 * @param username The username to release.
+	 * @param owner The client which owns it.
+	 * @return released False if the client didn't own it.
+	 */
+	public boolean releaseUsername(String username, Object owner) {
+		return usernames.remove(username, owner);
+	}
+
+	/**
+	 * Method to retrieve the client with a username.
+	 * @param username The username.
+	 * @return client The chat service or the event-driven session with that username, null if not assigned.
+	 */
+	public Object findByUsername(String username) {
+		return usernames.get(username);
+	}
+
+	// set of a service type, created at the first use
+	private Set<Server> clientsOf(Class<? extends Server> type) {
+		Set<Server> clients = byType.get(type);
+		if (clients == null) {
+			Set<Server> created = new CopyOnWriteArraySet<Server>();
+			clients = byType.putIfAbsent(type, created);
+			if (clients == null) {
+				clients = created;
+			}
+		}
+		return clients;
+	}
+}
@@ -1,10 +1,11 @@
 package chat.server;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import logger.LogSubscription;
 
 /**
  * Chat service which allows the client to receive an echo string from the server. 
@@ -21,40 +22,142 @@ public class EchoServer extends Server {
 		super(clientSocket, chatServer);
 	}
 
+	// default number of records sent by LOG TAIL
+	private static final int defaultTailRecords = 10;
+	// records buffered for a LOG FOLLOW subscriber before dropping
+	private static final int followBufferSize = 256;
+	// how long a LOG FOLLOW thread waits for a record before checking if it was stopped (ms)
+	private static final long followPollMillis = 500;
+	// follower of the log file, if LOG FOLLOW is active
+	private LogFollower follower = null;
+
 	/**
 	 * <p>Custom implementation of doJob which allows the client to send every string he wants and get the same string as response.</p>
 	 * <p>Particular strings used are:<br>
 	 * 1) ChatServer.getConn --> get number of active connections<br>
-	 * 2) ChatServer.quit --> close connection</p>
+	 * 2) ChatServer.quit --> close connection<br>
+	 * 3) ChatServer.getLogs --> get the whole log file<br>
+	 * 4) ChatServer.tailLogs [n] --> get the last n records of the log file (default 10)<br>
+	 * 5) ChatServer.followLogs --> receive the records as they are written, until ChatServer.unfollowLogs</p>
 	 */
 	@Override
 	protected void doJob() {
 		try {
 			// get communication path
-			PrintWriter sender = new PrintWriter(clientSocket.getOutputStream(), true);
-			BufferedReader receiver = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-			String receivedString = "";
+			ClientConnection connection = openConnection(ChatServer.server_type.ECHO_SERVER);
+			PrintWriter sender = connection.getWriter();
+			ClientConnection.Request request;
 			// while not quit or stopped by father
-			while(!(receivedString = receiver.readLine()).equals(chatServer.quit) && running) {
+			while((request = connection.next()) != null && !chatServer.quit.equals(request.getCommand()) && running) {
+				String receivedString = request.getText(), command = request.getCommand();
 				// write log
 				chatServer.logger.write(chatServer.cb, 
 						clientSocket.getInetAddress(), // client's IP
 						receivedString, // message sent from the client
 						ChatServer.server_type.ECHO_SERVER.getName()); // type of service the client sent the message
-				if(receivedString.equals(chatServer.getConn)) {
+				if(chatServer.getConn.equals(command)) {
 					// tell the client the number of active connections (just for try, not really a good idea in a real implementation).
 					sender.println(chatServer.getNumberOfConnections());
 				}
-				else if(receivedString.equals(chatServer.getLogs)) {
+				else if(chatServer.getLogs.equals(command)) {
 					// send all the logs through the chat (just for try, not really a good idea in a real implementation)
 					chatServer.logger.read(chatServer.cb, sender);
 				}
+				else if(command != null && command.startsWith(chatServer.tailLogs)) {
+					// send only the last records
+					chatServer.logger.tail(chatServer.cb, parseTailRecords(command), sender);
+				}
+				else if(chatServer.followLogs.equals(command)) {
+					if (follower == null) {
+						follower = new LogFollower(chatServer.logger.subscribe(followBufferSize), sender);
+						follower.start();
+					}
+				}
+				else if(chatServer.unfollowLogs.equals(command)) {
+					stopFollowing();
+				}
 				else {
-					sender.println(receivedString); // send the same string received.
+					connection.send(receivedString); // send the same string received.
 				}
+				connection.replied();
 			}
 			clientSocket.close(); // close connection
 		} catch(IOException | NullPointerException ex) {}
+		stopFollowing();
 		chatServer.disconnectClient(this); // tell the server this client is no more connected.
 	}
+
+	// get the number of records from "LOG TAIL n", the default if not valid
+	private int parseTailRecords(String command) {
+		try {
+			return Integer.parseInt(command.substring(chatServer.tailLogs.length()).trim());
+		} catch (NumberFormatException e) {
+			return defaultTailRecords;
+		}
+	}
+
+	// stop the follower, if any
+	private void stopFollowing() {
+		if (follower != null) {
+			follower.stop();
+			follower = null;
+		}
+	}
+
+	/**
+	 * Runnable which sends the client each record appended to the log file, until stopped.<br>
+	 * If the client is too slow the records are dropped and the client is told how many were lost.
+	 * @author Antonio Terpin
+	 */
+	private class LogFollower implements Runnable {
+		private LogSubscription subscription;
+		private PrintWriter sender;
+		private Thread thread = null;
+		// not interrupted: it would close the connection of the client if writing (the socket channel is interruptible)
+		private volatile boolean stopped = false;
+
+		/**
+		 * Constructor which allows to set the subscription to consume and where to send the records.
+		 * @param subscription Subscription to the chat log file.
+		 * @param sender Client writer.
+		 */
+		public LogFollower(LogSubscription subscription, PrintWriter sender) {
+			this.subscription = subscription;
+			this.sender = sender;
+		}
+
+		// start sending records on a new thread
+		public void start() {
+			thread = chatServer.newThread(this);
+			thread.start();
+		}
+
+		@Override
+		public void run() {
+			long reportedDrops = 0;
+			try {
+				while (!stopped) {
+					String record = subscription.poll(followPollMillis, TimeUnit.MILLISECONDS);
+					if (record == null || stopped) {
+						continue;
+					}
+					long dropped = subscription.getDropped();
+					if (dropped != reportedDrops) {
+						sender.println("LOG: " + (dropped - reportedDrops) + " records dropped");
+						reportedDrops = dropped;
+					}
+					sender.println(record);
+					if (subscription.isEmpty()) {
+						sender.flush(); // in coalescing mode, records written together are flushed together
+					}
+				}
+			} catch (InterruptedException e) {} // server stopped
+		}
+
+		// stop receiving and sending records, the thread ends at its next poll
+		public void stop() {
+			stopped = true;
+			subscription.cancel();
+		}
+	}
 }
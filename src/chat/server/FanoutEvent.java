@@ -0,0 +1,25 @@
+package chat.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight recorder event of the delivery of a message to the members of a room on this node. The stack trace tells the sender:
+ * a broadcast service, an event loop or a cluster link.
+ * @author Antonio Terpin
+ */
+@Name("chat.server.Fanout")
+@Label("Chat Fanout")
+@Category({ "Application Server", "Chat" })
+@Description("A message delivered to the members of a room")
+@Threshold("1 ms")
+class FanoutEvent extends jdk.jfr.Event {
+	@Label("Room")
+	String room;
+
+	@Label("Recipients")
+	int recipients;
+}
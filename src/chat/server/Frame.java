@@ -0,0 +1,120 @@
+package chat.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import http.server.websocket.WebSocket;
+
+/**
+ * Immutable chat message, encoded once as a line and shared read-only by all its recipients.<br>
+ * Broadcasting a frame to many clients doesn't create a string or encode bytes for each of them.
+ * The other encodings (WebSocket and binary frames) are computed the first time a client needs them, then shared as well.
+ * @author Antonio Terpin
+ */
+public final class Frame {
+	private static final byte[] lineSeparator = System.lineSeparator().getBytes();
+	private final String text;
+	private final byte[] bytes; // text followed by the line separator, never modified
+	// other encodings, computed at first use and never modified
+	private volatile byte[] webSocketBytes = null, binaryBytes = null;
+
+	/**
+	 * How a client expects the messages: as lines, as WebSocket text frames or as binary MESSAGE frames (see BinaryFraming).
+	 */
+	public enum Encoding { LINE, WEBSOCKET, BINARY }
+
+	// use Frame.of
+	private Frame(String text, byte[] bytes) {
+		this.text = text;
+		this.bytes = bytes;
+	}
+
+	/**
+	 * This method encodes a message as a line.
+	 * @param text The message, without line terminator.
+	 * @return frame The encoded message.
+	 */
+	public static Frame of(String text) {
+		byte[] encoded = text.getBytes();
+		byte[] bytes = new byte[encoded.length + lineSeparator.length];
+		System.arraycopy(encoded, 0, bytes, 0, encoded.length);
+		System.arraycopy(lineSeparator, 0, bytes, encoded.length, lineSeparator.length);
+		return new Frame(text, bytes);
+	}
+
+	/**
+	 * Method to retrieve the message.
+	 * @return text The message, without line terminator.
+	 */
+	public String getText() {
+		return text;
+	}
+
+	/**
+	 * Method to retrieve the size of the encoded line.
+	 * @return length Number of bytes, line terminator included.
+	 */
+	public int length() {
+		return bytes.length;
+	}
+
+	/**
+	 * This method gives a new read-only view of the encoded line, each recipient uses its own view so the positions are independent.
+	 * @return buffer Read-only buffer positioned at the beginning of the line.
+	 */
+	public ByteBuffer buffer() {
+		return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+	}
+
+	/**
+	 * This method writes the encoded line to a stream.
+	 * @param out The destination stream.
+	 * @throws IOException if the stream can't be written.
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(bytes);
+	}
+
+	/**
+	 * This method gives a new read-only view of the message in the given encoding.
+	 * @param encoding How the client expects the messages.
+	 * @return buffer Read-only buffer positioned at the beginning of the encoded message.
+	 */
+	public ByteBuffer buffer(Encoding encoding) {
+		return ByteBuffer.wrap(bytes(encoding)).asReadOnlyBuffer();
+	}
+
+	/**
+	 * This method writes the message in the given encoding to a stream.
+	 * @param out The destination stream.
+	 * @param encoding How the client expects the messages.
+	 * @throws IOException if the stream can't be written.
+	 */
+	public void writeTo(OutputStream out, Encoding encoding) throws IOException {
+		out.write(bytes(encoding));
+	}
+
+	// encode the message once for each encoding, a race only encodes it twice
+	private byte[] bytes(Encoding encoding) {
+		byte[] encoded;
+		switch (encoding) {
+		case WEBSOCKET:
+			encoded = webSocketBytes;
+			if (encoded == null) {
+				encoded = WebSocket.encodeText(text);
+				webSocketBytes = encoded;
+			}
+			return encoded;
+		case BINARY:
+			encoded = binaryBytes;
+			if (encoded == null) {
+				encoded = BinaryFraming.encode(BinaryFraming.MESSAGE, text);
+				binaryBytes = encoded;
+			}
+			return encoded;
+		default:
+			return bytes;
+		}
+	}
+}
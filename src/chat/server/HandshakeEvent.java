@@ -0,0 +1,32 @@
+package chat.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight recorder event of the service selection of a client, from the welcoming message to the start of the service.
+ * @author Antonio Terpin
+ */
+@Name("chat.server.Handshake")
+@Label("Chat Handshake")
+@Category({ "Application Server", "Chat" })
+@Description("Service selection of a client by a redirector, from the welcoming message to the start of the service")
+@Threshold("20 ms")
+@StackTrace(false)
+class HandshakeEvent extends jdk.jfr.Event {
+	@Label("Service")
+	String service;
+
+	@Label("Binary Framing")
+	boolean binary;
+
+	@Label("Client")
+	String client;
+
+	@Label("Succeeded")
+	boolean succeeded;
+}
@@ -0,0 +1,273 @@
+package chat.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Reaper of the silent clients of the thread-per-client services. A service blocks in the read of its client, so a dead peer
+ * (NAT timeout, vanished mobile client) holds a thread and a connection slot until the kernel notices, often hours later.<br>
+ * The watched clients are kept in a hashed timer wheel, ticked by a single thread: watching and unwatching a client costs constant time,
+ * and the activity of the client is never reported to the wheel. When the check of a client is due, a client heard since is just
+ * rescheduled from its last request (see Server.getLastInputNanos), so a busy client costs one check per timeout.<br>
+ * A client silent for the idle timeout of its service, or not answering a heartbeat ping in time, is disconnected: its socket is closed,
+ * which ends the blocked read, and its slot is released at once. The pings are written by a heartbeat thread, a client which doesn't
+ * read can stall it only until it is reaped, never the wheel.
+ * @author Antonio Terpin
+ */
+class IdleReaper implements Runnable {
+	private final ChatServer chatServer;
+	private final long tickNanos;
+	// slots of the wheel, an entry is in the slot of its due tick (modulo the number of slots), guarded by lock
+	private final List<List<Entry>> wheel;
+	private final int mask;
+	private final long start = System.nanoTime();
+	private long tick = 0; // last tick processed, guarded by lock
+	private final ReentrantLock lock = new ReentrantLock();
+	// wheel and heartbeat threads, started by the first watched client
+	private Thread thread = null;
+	private ThreadPoolExecutor heartbeats = null;
+	private volatile boolean running = true;
+	// clients disconnected for being idle and for not answering the heartbeat
+	private final LongAdder idleReaped = new LongAdder(), heartbeatReaped = new LongAdder();
+
+	/**
+	 * A watched client, with the timeouts of its service.
+	 */
+	static final class Entry {
+		private final Server client;
+		private final long idleNanos, heartbeatNanos, heartbeatTimeoutNanos;
+		private long due; // tick of the next check, guarded by lock
+		// ping sent and not answered yet, used by the wheel thread only
+		private boolean pinged = false;
+		private long pingedAt = 0;
+		private volatile boolean cancelled = false;
+
+		private Entry(Server client, ServiceOptions options) {
+			this.client = client;
+			this.idleNanos = TimeUnit.MILLISECONDS.toNanos(options.getIdleTimeout());
+			this.heartbeatNanos = TimeUnit.MILLISECONDS.toNanos(options.getHeartbeat());
+			this.heartbeatTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(options.getHeartbeatTimeout());
+		}
+	}
+
+	/**
+	 * Constructor which allows to set the server and the resolution of the wheel.
+	 * @param chatServer The server of the clients.
+	 * @param tickMillis Time between two ticks (ms): a client is reaped at most this late.
+	 * @param slots Number of slots of the wheel, rounded up to a power of two.
+	 */
+	IdleReaper(ChatServer chatServer, int tickMillis, int slots) {
+		this.chatServer = chatServer;
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+		int size = Integer.highestOneBit(Math.max(2, slots) * 2 - 1);
+		this.mask = size - 1;
+		this.wheel = new ArrayList<List<Entry>>(size);
+		for (int i = 0; i < size; i++) {
+			wheel.add(new ArrayList<Entry>());
+		}
+	}
+
+	/**
+	 * This method starts watching a client, if its service has an idle timeout or a heartbeat.
+	 * @param client The service of the client, just connected.
+	 * @param options Options of the service.
+	 */
+	void watch(Server client, ServiceOptions options) {
+		if (options.getIdleTimeout() == 0 && options.getHeartbeat() == 0) {
+			return;
+		}
+		Entry entry = new Entry(client, options);
+		client.idleEntry = entry;
+		lock.lock();
+		try {
+			if (!running) {
+				return;
+			}
+			if (thread == null) {
+				start();
+			}
+			schedule(entry, client.getLastInputNanos() + firstCheck(entry));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * This method stops watching a client, once disconnected. The entry leaves the wheel at its next check.
+	 * @param client The service of the client.
+	 */
+	void unwatch(Server client) {
+		Entry entry = client.idleEntry;
+		if (entry != null) {
+			entry.cancelled = true;
+			client.idleEntry = null;
+		}
+	}
+
+	/**
+	 * Method to retrieve the number of clients disconnected for being idle.
+	 * @return reaped Number of clients silent for the idle timeout since the server started.
+	 */
+	long getIdleReaped() {
+		return idleReaped.sum();
+	}
+
+	/**
+	 * Method to retrieve the number of clients disconnected for not answering the heartbeat.
+	 * @return reaped Number of clients which didn't answer a ping in time since the server started.
+	 */
+	long getHeartbeatReaped() {
+		return heartbeatReaped.sum();
+	}
+
+	/**
+	 * This method stops the wheel and the heartbeat threads, the clients are disconnected by the server.
+	 */
+	void stop() {
+		lock.lock();
+		try {
+			running = false;
+			if (thread != null) {
+				thread.interrupt();
+				heartbeats.shutdownNow();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// start the threads, owning the lock
+	private void start() {
+		heartbeats = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+			Thread t = new Thread(r, "chat-heartbeat");
+			t.setDaemon(true);
+			return t;
+		});
+		thread = new Thread(this, "chat-idle-reaper");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * The wheel thread: every tick it checks the clients due, catching up if it was late.
+	 */
+	@Override
+	public void run() {
+		List<Entry> due = new ArrayList<Entry>();
+		try {
+			while (running) {
+				long wait = start + (tick + 1) * tickNanos - System.nanoTime();
+				if (wait > 0) {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				}
+				lock.lock();
+				try {
+					tick++;
+					List<Entry> slot = wheel.get((int) (tick & mask));
+					// the entries of the next rounds stay, the cancelled ones are dropped
+					int kept = 0;
+					for (Entry e : slot) {
+						if (e.cancelled) {
+							continue;
+						}
+						if (e.due > tick) {
+							slot.set(kept++, e);
+						} else {
+							due.add(e);
+						}
+					}
+					slot.subList(kept, slot.size()).clear();
+				} finally {
+					lock.unlock();
+				}
+				for (Entry e : due) {
+					check(e, System.nanoTime());
+				}
+				due.clear();
+			}
+		} catch (InterruptedException e) {} // stopped
+	}
+
+	// reap, ping or reschedule a client whose check is due
+	private void check(Entry e, long now) {
+		if (e.cancelled) {
+			return;
+		}
+		long last = e.client.getLastInputNanos();
+		if (e.pinged && last - e.pingedAt > 0) {
+			e.pinged = false; // heard after the ping
+		}
+		if (e.idleNanos > 0 && now - last >= e.idleNanos) {
+			reap(e, idleReaped, "idle for " + TimeUnit.NANOSECONDS.toSeconds(now - last) + " s");
+			return;
+		}
+		long next; // time until the next check
+		if (e.pinged) {
+			next = e.pingedAt + e.heartbeatTimeoutNanos - now;
+			if (next <= 0) {
+				reap(e, heartbeatReaped, "no heartbeat");
+				return;
+			}
+		} else if (e.heartbeatNanos > 0 && now - last >= e.heartbeatNanos) {
+			e.pinged = true;
+			e.pingedAt = now;
+			ping(e.client);
+			next = e.heartbeatTimeoutNanos;
+		} else {
+			next = (e.heartbeatNanos > 0) ? last + e.heartbeatNanos - now : e.idleNanos;
+		}
+		if (e.idleNanos > 0) {
+			next = Math.min(next, last + e.idleNanos - now);
+		}
+		lock.lock();
+		try {
+			if (!e.cancelled) {
+				schedule(e, now + next);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// time from the last input to the first check of a client
+	private static long firstCheck(Entry e) {
+		if (e.heartbeatNanos == 0) {
+			return e.idleNanos;
+		}
+		return (e.idleNanos == 0) ? e.heartbeatNanos : Math.min(e.idleNanos, e.heartbeatNanos);
+	}
+
+	// put an entry in the slot of the first tick at or after the given time, owning the lock
+	private void schedule(Entry e, long time) {
+		long at = time - start;
+		e.due = Math.max(tick + 1, (at + tickNanos - 1) / tickNanos);
+		wheel.get((int) (e.due & mask)).add(e);
+	}
+
+	// send the heartbeat on the heartbeat thread
+	private void ping(Server client) {
+		try {
+			heartbeats.execute(() -> {
+				try {
+					client.sendHeartbeat();
+				} catch (IOException ex) {} // the next check finds it silent
+			});
+		} catch (RejectedExecutionException ex) {} // stopped
+	}
+
+	// disconnect a client: closing the socket ends the read of its service, the slot is released now
+	private void reap(Entry e, LongAdder counter, String reason) {
+		e.cancelled = true;
+		counter.increment();
+		System.out.println("CS: Client " + e.client.clientSocket.getInetAddress() + " disconnected: " + reason);
+		e.client.stopRunning();
+		chatServer.disconnectClient(e.client);
+	}
+}
@@ -0,0 +1,77 @@
+package chat.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with fixed bucket bounds, recorded without locks by many threads.<br>
+ * Each bucket counts the samples not greater than its bound and greater than the previous one, the last bucket has no bound.
+ * @author Antonio Terpin
+ */
+public class LatencyHistogram {
+	// upper bounds of the buckets, in microseconds
+	private static final long[] bounds = { 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000, 50000, 100000 };
+	private final LongAdder[] counts = new LongAdder[bounds.length + 1];
+
+	/**
+	 * Constructor which creates the empty buckets.
+	 */
+	public LatencyHistogram() {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * This method records a sample.
+	 * @param nanos Latency in nanoseconds.
+	 */
+	public void record(long nanos) {
+		long micros = nanos / 1000;
+		int i = 0;
+		while (i < bounds.length && micros > bounds[i]) {
+			i++;
+		}
+		counts[i].increment();
+	}
+
+	/**
+	 * Method to retrieve the upper bounds of the buckets.
+	 * @return bounds Bounds in microseconds, one less than the buckets (the last bucket has no bound).
+	 */
+	public long[] getBoundsMicros() {
+		return bounds.clone();
+	}
+
+	/**
+	 * Method to retrieve the samples of each bucket.
+	 * @return counts Number of samples of each bucket since the server started.
+	 */
+	public long[] getCounts() {
+		long[] snapshot = new long[counts.length];
+		for (int i = 0; i < counts.length; i++) {
+			snapshot[i] = counts[i].sum();
+		}
+		return snapshot;
+	}
+
+	/**
+	 * This method estimates a percentile with the bound of the bucket containing it.
+	 * @param percentile Percentile, from 0 to 100.
+	 * @return latency Bound in microseconds, -1 if the percentile is in the last bucket (or there are no samples).
+	 */
+	public long getPercentileMicros(double percentile) {
+		long[] snapshot = getCounts();
+		long total = 0;
+		for (long count : snapshot) {
+			total += count;
+		}
+		long rank = (long) Math.ceil(percentile / 100 * total), seen = 0;
+		for (int i = 0; i < bounds.length; i++) {
+			seen += snapshot[i];
+			if (total > 0 && seen >= rank) {
+				return bounds[i];
+			}
+		}
+		return -1;
+	}
+}
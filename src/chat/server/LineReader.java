@@ -0,0 +1,117 @@
+package chat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import net.PooledInputStream;
+
+/**
+ * Line reader with a maximum line length, checked while the line is read: a client can't make the server allocate
+ * an unbounded line, as BufferedReader.readLine does.<br>
+ * Lines end with \n, \r\n or \r. They are found in the pooled buffer of the input, then collected in an array reused by the next lines
+ * (grown up to the maximum length) and decoded: no character buffer is kept for the connection.
+ * @author Antonio Terpin
+ */
+class LineReader {
+	private final PooledInputStream in;
+	private final int maxLineLength;
+	private final Charset charset = Charset.defaultCharset();
+	// true if the last line ended with \r, so a following \n is skipped
+	private boolean skipLineFeed = false;
+	private byte[] line = null; // bytes of the current line, allocated at the first line
+	private int pending = 0;
+
+	/**
+	 * Exception thrown when a client sends a line longer than the maximum length.
+	 */
+	static class LineTooLongException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		LineTooLongException(int maxLineLength) {
+			super("Line longer than " + maxLineLength + " bytes");
+		}
+	}
+
+	/**
+	 * Constructor which allows to set the input and the maximum length of a line.
+	 * @param in Bytes of the client.
+	 * @param maxLineLength Maximum number of bytes of a line, terminator excluded.
+	 */
+	LineReader(PooledInputStream in, int maxLineLength) {
+		this.in = in;
+		this.maxLineLength = maxLineLength;
+	}
+
+	/**
+	 * This method reads the next line.
+	 * @return line The line without terminator, null at end of stream.
+	 * @throws IOException if the input can't be read or the line is too long (LineTooLongException).
+	 */
+	String readLine() throws IOException {
+		pending = 0;
+		boolean started = false;
+		ByteBuffer buffer = in.buffer();
+		while (true) {
+			if (!buffer.hasRemaining() && !in.fill()) {
+				// end of stream
+				return started ? take(buffer, buffer.position(), buffer.position()) : null;
+			}
+			if (skipLineFeed) {
+				skipLineFeed = false;
+				if (buffer.get(buffer.position()) == '\n') {
+					buffer.position(buffer.position() + 1);
+					continue;
+				}
+			}
+			started = true;
+			int start = buffer.position(), limit = buffer.limit();
+			for (int i = start; i < limit; i++) {
+				byte c = buffer.get(i);
+				if (c == '\n' || c == '\r') {
+					String result = take(buffer, start, i);
+					skipLineFeed = (c == '\r');
+					buffer.position(i + 1);
+					return result;
+				}
+				if (i + 1 - start + pending > maxLineLength) {
+					throw new LineTooLongException(maxLineLength);
+				}
+			}
+			// the line continues after the buffer
+			keep(buffer, start, limit);
+			buffer.position(limit);
+		}
+	}
+
+	/**
+	 * This method tells if bytes have already arrived.
+	 * @return ready True if the next read doesn't wait.
+	 * @throws IOException if the input can't be read.
+	 */
+	boolean ready() throws IOException {
+		return in.available() > 0;
+	}
+
+	// add the bytes of the buffer from start to end to the kept part of the line
+	private void keep(ByteBuffer buffer, int start, int end) {
+		int length = end - start;
+		if (line == null || line.length < pending + length) {
+			byte[] larger = new byte[Math.max(pending + length, (line == null) ? 256 : line.length * 2)];
+			if (line != null) {
+				System.arraycopy(line, 0, larger, 0, pending);
+			}
+			line = larger;
+		}
+		buffer.get(start, line, pending, length);
+		pending += length;
+	}
+
+	// the line made of the kept bytes and the buffer from start to end
+	private String take(ByteBuffer buffer, int start, int end) {
+		keep(buffer, start, end);
+		String result = new String(line, 0, pending, charset);
+		pending = 0;
+		return result;
+	}
+}
@@ -0,0 +1,287 @@
+package chat.server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of the messages to send to a client, drained by its own writer thread.<br>
+ * Adding a message never blocks: when the queue is full the slow-consumer policy decides what to do,
+ * so a client which doesn't read can't stop the others.<br>
+ * Messages are queued as already encoded frames. When several frames are waiting, the writer sends them together:
+ * with a gathering write if the socket has a channel, with a single flush otherwise. A batch is sent when it is full or when
+ * no more frames are waiting; in coalescing mode a partial batch first waits up to the linger time for more frames.<br>
+ * Frames are written as lines, as WebSocket text frames or as binary frames, as the client expects them.
+ * @author Antonio Terpin
+ */
+public class OutboundQueue implements Runnable {
+	/**
+	 * What to do when a message arrives and the queue is full.
+	 * @author Antonio Terpin
+	 */
+	public enum SlowConsumerPolicy {
+		DROP_OLDEST, // the oldest queued message is dropped to make room
+		DROP_NEWEST, // the new message is dropped
+		DISCONNECT // the new message is dropped, after too many overflows the client is disconnected
+	}
+
+	private final ArrayDeque<Frame> messages;
+	// maximum number of frames sent by a single write, time a partial batch waits for more frames
+	private final int capacity, maxOverflows, maxBatch;
+	private final long lingerNanos;
+	private final SlowConsumerPolicy policy;
+	private final Socket socket;
+	private final Server client;
+	private final ChatServer chatServer;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private boolean closed = false;
+	// how the client expects the frames
+	private volatile Frame.Encoding encoding = Frame.Encoding.LINE;
+	// held while writing to the socket, so frames written bypassing the queue don't interleave with a batch
+	private final ReentrantLock writeLock = new ReentrantLock();
+	private OutputStream out = null; // guarded by writeLock, used if the socket has no channel
+	// statistics, guarded by lock
+	private int overflows = 0, maxDepth = 0;
+	private long dropped = 0;
+
+	/**
+	 * Constructor which allows to set where the messages are written and the slow-consumer policy.
+	 * @param socket The client socket, written only by the writer thread.
+	 * @param client The chat service of the client, stopped if the client is disconnected by the policy.
+	 * @param chatServer The chat server, which collects the overall statistics.
+	 * @param capacity Maximum number of queued messages.
+	 * @param policy What to do when the queue is full.
+	 * @param maxOverflows Number of overflows after which the DISCONNECT policy disconnects the client.
+	 * @param options Options of the service, which decide how the frames are batched.
+	 */
+	public OutboundQueue(Socket socket, Server client, ChatServer chatServer, int capacity, SlowConsumerPolicy policy, int maxOverflows,
+			ServiceOptions options) {
+		this.messages = new ArrayDeque<Frame>(capacity);
+		this.socket = socket;
+		this.client = client;
+		this.chatServer = chatServer;
+		this.capacity = capacity;
+		this.policy = policy;
+		this.maxOverflows = maxOverflows;
+		this.maxBatch = options.getFlushBatch();
+		this.lingerNanos = options.isCoalesce() ? TimeUnit.MILLISECONDS.toNanos(options.getFlushLinger()) : 0;
+	}
+
+	/**
+	 * This method queues a message for the client, it never blocks.
+	 * @param message Message to send.
+	 * @return queued False if the message has been dropped.
+	 */
+	public boolean offer(String message) {
+		return offer(Frame.of(message));
+	}
+
+	/**
+	 * This method queues an encoded message for the client, it never blocks.<br>
+	 * The same frame can be queued to many clients.
+	 * @param message Message to send.
+	 * @return queued False if the message has been dropped.
+	 */
+	public boolean offer(Frame message) {
+		boolean disconnect = false, queued = true, overflow = false;
+		lock.lock();
+		try {
+			if (closed) {
+				return false;
+			}
+			if (messages.size() == capacity) {
+				overflow = true;
+				overflows++;
+				dropped++;
+				if (policy == SlowConsumerPolicy.DROP_OLDEST) {
+					messages.poll();
+				} else {
+					queued = false;
+					disconnect = policy == SlowConsumerPolicy.DISCONNECT && overflows >= maxOverflows;
+				}
+			}
+			if (queued) {
+				messages.add(message);
+				maxDepth = Math.max(maxDepth, messages.size());
+				notEmpty.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (overflow) {
+			chatServer.messageDropped();
+		}
+		if (disconnect) {
+			System.out.println("CS: Slow consumer disconnected: " + client.clientSocket.getInetAddress());
+			chatServer.slowConsumerDisconnected();
+			client.stopRunning(); // the client thread notices the closed socket and disconnects
+		}
+		return queued;
+	}
+
+	/**
+	 * Method to choose how the frames are written, it must be called before starting the writer.
+	 * @param encoding How the client expects the messages, lines by default.
+	 */
+	void setEncoding(Frame.Encoding encoding) {
+		this.encoding = encoding;
+	}
+
+	/**
+	 * This method writes already encoded bytes bypassing the queue, between two batches. It blocks until they are written,
+	 * so it must be called only by the thread serving this client (for example to answer a WebSocket ping).
+	 * @param bytes Bytes to write.
+	 * @throws IOException if the connection is closed.
+	 */
+	public void writeNow(byte[] bytes) throws IOException {
+		writeLock.lock();
+		try {
+			SocketChannel channel = socket.getChannel();
+			if (channel != null) {
+				ByteBuffer buffer = ByteBuffer.wrap(bytes);
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			} else {
+				OutputStream stream = stream();
+				stream.write(bytes);
+				stream.flush();
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	// buffered stream of the socket, created at first use (owning writeLock)
+	private OutputStream stream() throws IOException {
+		if (out == null) {
+			out = new BufferedOutputStream(socket.getOutputStream());
+		}
+		return out;
+	}
+
+	/**
+	 * This method stops the writer, the queued messages are discarded.
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			messages.clear();
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Method to retrieve the number of messages waiting to be written.
+	 * @return depth Current queue depth.
+	 */
+	public int getDepth() {
+		lock.lock();
+		try {
+			return messages.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Method to retrieve the maximum depth reached by the queue.
+	 * @return maxDepth Maximum number of messages waiting at the same time.
+	 */
+	public int getMaxDepth() {
+		lock.lock();
+		try {
+			return maxDepth;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Method to retrieve the number of messages dropped because the queue was full.
+	 * @return dropped Number of dropped messages.
+	 */
+	public long getDropped() {
+		lock.lock();
+		try {
+			return dropped;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The writer thread: writes the queued messages until the queue is closed.<br>
+	 * Only this thread blocks if the client doesn't read.
+	 */
+	@Override
+	public void run() {
+		Frame[] batch = new Frame[maxBatch];
+		ByteBuffer[] buffers = new ByteBuffer[maxBatch];
+		SocketChannel channel = socket.getChannel();
+		try {
+			while (true) {
+				int n = 0;
+				lock.lock();
+				try {
+					while (!closed && messages.isEmpty()) {
+						notEmpty.await();
+					}
+					if (lingerNanos > 0) {
+						// coalescing: let the batch fill up, at most for the linger time
+						long wait = lingerNanos;
+						while (!closed && messages.size() < maxBatch && wait > 0) {
+							wait = notEmpty.awaitNanos(wait);
+						}
+					}
+					if (closed) {
+						return;
+					}
+					while (n < maxBatch && !messages.isEmpty()) {
+						batch[n++] = messages.poll();
+					}
+				} finally {
+					lock.unlock();
+				}
+				// blocking write, without owning the lock
+				Frame.Encoding encoding = this.encoding;
+				writeLock.lock();
+				try {
+					if (channel != null) {
+						long remaining = 0;
+						for (int i = 0; i < n; i++) {
+							buffers[i] = batch[i].buffer(encoding);
+							remaining += buffers[i].remaining();
+						}
+						while (remaining > 0) {
+							remaining -= channel.write(buffers, 0, n);
+						}
+					} else {
+						OutputStream stream = stream();
+						for (int i = 0; i < n; i++) {
+							batch[i].writeTo(stream, encoding);
+						}
+						stream.flush();
+					}
+				} finally {
+					writeLock.unlock();
+				}
+				for (int i = 0; i < n; i++) {
+					batch[i] = null;
+					buffers[i] = null;
+				}
+			}
+		} catch (InterruptedException | IOException e) {} // stopped or connection closed
+	}
+}
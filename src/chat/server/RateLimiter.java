@@ -0,0 +1,261 @@
+package chat.server;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Inbound rate limiting of the chat clients, with token buckets: each request takes a token, tokens are refilled at a constant rate
+ * up to the burst size.<br>
+ * Every connection has its own bucket and shares a second one with the other connections from the same address,
+ * so a client can't get more than its share of the fanout by opening more connections. Limits can be changed at runtime,
+ * the buckets created from then on use the new ones.
+ * @author Antonio Terpin
+ */
+public class RateLimiter {
+	/**
+	 * What happens to a request over the limit.<br>
+	 * DELAY: the request waits for its token, the client is not read meanwhile (TCP slows it down).<br>
+	 * DROP: the request is discarded.<br>
+	 * DISCONNECT: the connection is closed.
+	 */
+	public enum Policy { DELAY, DROP, DISCONNECT }
+
+	private volatile double rate, addressRate;
+	private volatile int burst, addressBurst;
+	private volatile Policy policy;
+	// buckets of the addresses, the entry is removed with the last connection
+	private ConcurrentHashMap<InetAddress, AddressBucket> perAddress = new ConcurrentHashMap<InetAddress, AddressBucket>();
+	private AtomicLong delayed = new AtomicLong(), dropped = new AtomicLong(), disconnected = new AtomicLong();
+
+	/**
+	 * Constructor which allows to set the limits.
+	 * @param rate Requests per second of a connection, 0 for no limit.
+	 * @param burst Requests a connection can send at once.
+	 * @param addressRate Requests per second of all the connections from the same address, 0 for no limit.
+	 * @param addressBurst Requests the connections from the same address can send at once.
+	 * @param policy What happens to a request over the limit.
+	 */
+	public RateLimiter(double rate, int burst, double addressRate, int addressBurst, Policy policy) {
+		this.rate = rate;
+		this.burst = burst;
+		this.addressRate = addressRate;
+		this.addressBurst = addressBurst;
+		this.policy = policy;
+	}
+
+	/**
+	 * This method reads the limits from the system properties chat.rateLimit (10), chat.rateBurst (20), chat.rateLimitPerIp (0),
+	 * chat.rateBurstPerIp (50) and chat.rateLimitPolicy (DELAY).
+	 * @return limiter The rate limiter, defaults for the properties not set.
+	 */
+	public static RateLimiter fromProperties() {
+		return new RateLimiter(Double.parseDouble(System.getProperty("chat.rateLimit", "10")), Integer.getInteger("chat.rateBurst", 20),
+				Double.parseDouble(System.getProperty("chat.rateLimitPerIp", "0")), Integer.getInteger("chat.rateBurstPerIp", 50),
+				Policy.valueOf(System.getProperty("chat.rateLimitPolicy", Policy.DELAY.name())));
+	}
+
+	/**
+	 * This method creates the buckets of a new connection, to close when the connection is closed.
+	 * @param address Address of the client.
+	 * @return client The limits of the connection.
+	 */
+	public Client open(InetAddress address) {
+		AddressBucket shared = perAddress.compute(address, (a, bucket) -> {
+			if (bucket == null) {
+				bucket = new AddressBucket(addressRate, addressBurst);
+			}
+			bucket.connections++;
+			return bucket;
+		});
+		return new Client(address, new TokenBucket(rate, burst), shared);
+	}
+
+	/**
+	 * Method to retrieve the number of requests which waited for their token.
+	 * @return delayed Number of delayed requests since the server started.
+	 */
+	public long getDelayed() {
+		return delayed.get();
+	}
+
+	/**
+	 * Method to retrieve the number of requests discarded.
+	 * @return dropped Number of dropped requests since the server started.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Method to retrieve the number of connections closed for flooding.
+	 * @return disconnected Number of disconnected clients since the server started.
+	 */
+	public long getDisconnected() {
+		return disconnected.get();
+	}
+
+	/**
+	 * Method to retrieve the policy applied to the requests over the limit.
+	 * @return policy The policy.
+	 */
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Method to change the policy, applied to the open connections too.
+	 * @param policy The policy.
+	 */
+	public void setPolicy(Policy policy) {
+		this.policy = policy;
+	}
+
+	/**
+	 * Method to change the limits of a connection, for the connections opened from now on.
+	 * @param rate Requests per second, 0 for no limit.
+	 * @param burst Requests a connection can send at once.
+	 */
+	public void setLimit(double rate, int burst) {
+		this.rate = rate;
+		this.burst = burst;
+	}
+
+	/**
+	 * Method to change the limits of an address, for the addresses with no open connection.
+	 * @param rate Requests per second, 0 for no limit.
+	 * @param burst Requests the connections from the same address can send at once.
+	 */
+	public void setLimitPerAddress(double rate, int burst) {
+		this.addressRate = rate;
+		this.addressBurst = burst;
+	}
+
+	/**
+	 * Limits of a connection.
+	 */
+	public class Client {
+		private final InetAddress address;
+		private final TokenBucket own;
+		private final AddressBucket shared;
+		private boolean closed = false;
+
+		// see RateLimiter.open
+		private Client(InetAddress address, TokenBucket own, AddressBucket shared) {
+			this.address = address;
+			this.own = own;
+			this.shared = shared;
+		}
+
+		/**
+		 * This method takes the token of a request, according to the policy: with DELAY it waits for the token.
+		 * @return allowed True if the request can be served, false if it has to be dropped (DROP) or the connection closed (DISCONNECT).
+		 * @throws InterruptedException if interrupted while waiting (DELAY).
+		 */
+		public boolean acquire() throws InterruptedException {
+			Policy current = policy;
+			if (current == Policy.DELAY) {
+				// reserve both tokens, then wait for the later one
+				long wait = Math.max(own.reserve(), shared.reserve());
+				if (wait > 0) {
+					delayed.incrementAndGet();
+					TimeUnit.NANOSECONDS.sleep(wait);
+				}
+				return true;
+			}
+			return tryAcquire();
+		}
+
+		/**
+		 * This method takes the token of a request without waiting, for the threads which can't block (the event loops):
+		 * with DELAY the request over the limit is dropped.
+		 * @return allowed True if the request can be served, false if it has to be dropped or the connection closed (DISCONNECT).
+		 */
+		public boolean tryAcquire() {
+			if (own.tryTake()) {
+				if (shared.tryTake()) {
+					return true;
+				}
+				own.refund(); // the address is over its limit, the connection didn't use its token
+			}
+			(policy == Policy.DISCONNECT ? disconnected : dropped).incrementAndGet();
+			return false;
+		}
+
+		/**
+		 * This method releases the share of the connection in the address bucket, once.
+		 */
+		public void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			perAddress.computeIfPresent(address, (a, bucket) -> --bucket.connections == 0 ? null : bucket);
+		}
+	}
+
+	/**
+	 * Token bucket, thread-safe.
+	 */
+	private static class TokenBucket {
+		private final double rate; // tokens per nanosecond, 0 for no limit
+		private final int burst;
+		private double tokens;
+		private long refilled = System.nanoTime();
+
+		TokenBucket(double ratePerSecond, int burst) {
+			this.rate = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+			this.burst = Math.max(1, burst);
+			this.tokens = this.burst;
+		}
+
+		// add the tokens earned since the last refill
+		private void refill() {
+			long now = System.nanoTime();
+			tokens = Math.min(burst, tokens + (now - refilled) * rate);
+			refilled = now;
+		}
+
+		// take a token if available
+		synchronized boolean tryTake() {
+			if (rate <= 0) {
+				return true;
+			}
+			refill();
+			if (tokens < 1) {
+				return false;
+			}
+			tokens--;
+			return true;
+		}
+
+		// take a token even if not available yet, returns the nanoseconds until it is
+		synchronized long reserve() {
+			if (rate <= 0) {
+				return 0;
+			}
+			refill();
+			tokens--;
+			return (tokens >= 0) ? 0 : (long) (-tokens / rate);
+		}
+
+		// give back a token taken and not used
+		synchronized void refund() {
+			if (rate > 0) {
+				tokens = Math.min(burst, tokens + 1);
+			}
+		}
+	}
+
+	/**
+	 * Token bucket shared by the connections from the same address.
+	 */
+	private static class AddressBucket extends TokenBucket {
+		int connections = 0; // changed only inside the map operations
+
+		AddressBucket(double ratePerSecond, int burst) {
+			super(ratePerSecond, burst);
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package chat.server;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * PrintWriter of the replies of a client, safe to share between the service thread and the threads writing to the client
+ * (heartbeat, log follower).<br>
+ * The writes are guarded by a ReentrantLock instead of the monitor of PrintWriter, so a virtual thread blocked writing to a slow
+ * client is not pinned. A line and its terminator are written under the same lock, so the lines of different threads don't interleave.
+ * @author Antonio Terpin
+ */
+class ReplyWriter extends PrintWriter {
+	private static final String lineSeparator = System.lineSeparator();
+	private final ReentrantLock writeLock = new ReentrantLock();
+	private final boolean autoFlush;
+
+	/**
+	 * Constructor which allows to set the destination and the flushing mode.
+	 * @param out Destination of the replies, used only by the thread holding the lock.
+	 * @param autoFlush True to flush each line (println and format), false if the service flushes them.
+	 */
+	ReplyWriter(Writer out, boolean autoFlush) {
+		super(out, false);
+		this.autoFlush = autoFlush;
+	}
+
+	@Override
+	public void write(int c) {
+		write(String.valueOf((char) c));
+	}
+
+	@Override
+	public void write(char[] buffer, int offset, int length) {
+		writeLock.lock();
+		try {
+			if (out == null) {
+				setError(); // closed
+				return;
+			}
+			out.write(buffer, offset, length);
+		} catch (IOException e) {
+			setError();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public void write(char[] buffer) {
+		write(buffer, 0, buffer.length);
+	}
+
+	@Override
+	public void write(String s, int offset, int length) {
+		writeLock.lock();
+		try {
+			if (out == null) {
+				setError(); // closed
+				return;
+			}
+			out.write(s, offset, length);
+		} catch (IOException e) {
+			setError();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public void write(String s) {
+		write(s, 0, s.length());
+	}
+
+	@Override
+	public void println() {
+		println("");
+	}
+
+	@Override
+	public void println(String x) {
+		writeLock.lock();
+		try {
+			write(String.valueOf(x));
+			write(lineSeparator);
+			if (autoFlush) {
+				flush();
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public void println(boolean x) {
+		println(String.valueOf(x));
+	}
+
+	@Override
+	public void println(char x) {
+		println(String.valueOf(x));
+	}
+
+	@Override
+	public void println(int x) {
+		println(String.valueOf(x));
+	}
+
+	@Override
+	public void println(long x) {
+		println(String.valueOf(x));
+	}
+
+	@Override
+	public void println(float x) {
+		println(String.valueOf(x));
+	}
+
+	@Override
+	public void println(double x) {
+		println(String.valueOf(x));
+	}
+
+	@Override
+	public void println(char[] x) {
+		println(String.valueOf(x));
+	}
+
+	@Override
+	public void println(Object x) {
+		println(String.valueOf(x));
+	}
+
+	@Override
+	public PrintWriter format(String format, Object... args) {
+		return format(Locale.getDefault(Locale.Category.FORMAT), format, args);
+	}
+
+	@Override
+	public PrintWriter format(Locale l, String format, Object... args) {
+		String s = String.format(l, format, args); // formatted outside the lock
+		writeLock.lock();
+		try {
+			write(s);
+			if (autoFlush) {
+				flush();
+			}
+		} finally {
+			writeLock.unlock();
+		}
+		return this;
+	}
+
+	@Override
+	public void flush() {
+		writeLock.lock();
+		try {
+			if (out != null) {
+				out.flush();
+			}
+		} catch (IOException e) {
+			setError();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public void close() {
+		writeLock.lock();
+		try {
+			if (out != null) {
+				out.close();
+				out = null;
+			}
+		} catch (IOException e) {
+			setError();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+}
@@ -1,9 +1,6 @@
 package chat.server;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.Socket;
 
 /**
@@ -36,23 +33,24 @@ public class ReverseServer extends Server {
 	protected void doJob() {
 		try {
 			// get communication path
-			PrintWriter sender = new PrintWriter(clientSocket.getOutputStream(), true);
-			BufferedReader receiver = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-			String receivedString = "";
+			ClientConnection connection = openConnection(ChatServer.server_type.REVERSE_SERVER);
+			ClientConnection.Request request;
 			// while not quit or stopped by father
-			while(!(receivedString = receiver.readLine()).equals(chatServer.quit) && running) {
+			while((request = connection.next()) != null && !chatServer.quit.equals(request.getCommand()) && running) {
+				String receivedString = request.getText();
 				// write log
 				chatServer.logger.write(chatServer.cb, 
 						clientSocket.getInetAddress(), // client's IP
 						receivedString, // message sent from the client
 						ChatServer.server_type.REVERSE_SERVER.getName()); // type of service the client sent the message
-				if(receivedString.equals(chatServer.getConn)) {
+				if(chatServer.getConn.equals(request.getCommand())) {
 					// tell the client the number of active connections (just for try, not really a good idea in a real implementation).
-					sender.println(chatServer.getNumberOfConnections());
+					connection.send(String.valueOf(chatServer.getNumberOfConnections()));
 				}
 				else {
-					sender.println(reverseString(receivedString)); // send the string received, reversed.
+					connection.send(reverseString(receivedString)); // send the string received, reversed.
 				}
+				connection.replied();
 			}
 			clientSocket.close(); // close connection
 		} catch(IOException | NullPointerException ex) {}
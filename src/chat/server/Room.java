@@ -0,0 +1,147 @@
+package chat.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Chat room: a message sent by a member is delivered to all the other members of the same room.<br>
+ * Members are kept in a copy-on-write set, so broadcasting never blocks joins and leaves (and vice versa).
+ * Joins and leaves are done through the RoomRegistry, which checks the member cap.<br>
+ * The room keeps its most recent messages in a ring buffer allocated with the room: storing a message only stores the reference
+ * to its shared frame, so the history produces no garbage. A joining member receives the last messages before the new ones.
+ * @author Antonio Terpin
+ */
+public class Room {
+	private final String name;
+	private final Set<RoomMember> members = new CopyOnWriteArraySet<RoomMember>();
+	// ring buffer of the recent messages and number of messages ever stored, guarded by lock
+	private final Frame[] history;
+	private long stored = 0;
+	// orders the messages: a joining member gets each message either from the history or live, exactly once
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Constructor which allows to set the name of the room and the size of its history.
+	 * @param name Name of the room.
+	 * @param historySize Number of recent messages kept, 0 for no history.
+	 */
+	Room(String name, int historySize) {
+		this.name = name;
+		this.history = new Frame[historySize];
+	}
+
+	/**
+	 * Method to retrieve the name of the room.
+	 * @return name Name of the room.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Method to retrieve the number of members.
+	 * @return size Number of members.
+	 */
+	public int size() {
+		return members.size();
+	}
+
+	/**
+	 * Method to retrieve the members of the room.
+	 * @return members Read-only view of the members, iterated on a snapshot.
+	 */
+	public Set<RoomMember> getMembers() {
+		return Collections.unmodifiableSet(members);
+	}
+
+	/**
+	 * This method sends a message to all the members of the room except the sender.<br>
+	 * The cost depends only on the size of this room.
+	 * @param sender The member who sent the message, it doesn't receive it.
+	 * @param message The encoded message, shared by all the members.
+	 * @return recipients Number of members the message has been sent to.
+	 */
+	public int broadcast(RoomMember sender, Frame message) {
+		FanoutEvent event = new FanoutEvent();
+		event.begin();
+		Iterator<RoomMember> recipients;
+		lock.lock();
+		try {
+			if (history.length > 0) {
+				history[(int) (stored % history.length)] = message;
+			}
+			stored++;
+			recipients = members.iterator(); // snapshot of the members, sending doesn't need the lock
+		} finally {
+			lock.unlock();
+		}
+		int sent = 0;
+		while (recipients.hasNext()) {
+			RoomMember m = recipients.next();
+			if (m != sender) {
+				m.sendMessage(message);
+				sent++;
+			}
+		}
+		event.end();
+		if (event.shouldCommit()) {
+			event.room = name;
+			event.recipients = sent;
+			event.commit();
+		}
+		return sent;
+	}
+
+	/**
+	 * Method to retrieve the most recent messages, from memory.
+	 * @param n Maximum number of messages.
+	 * @return messages The last messages (at most n and at most the size of the history), oldest first.
+	 */
+	public List<Frame> getHistory(int n) {
+		lock.lock();
+		try {
+			return recent(n);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// last n messages, oldest first, owning the lock
+	private List<Frame> recent(int n) {
+		int count = (int) Math.min(Math.min(n, history.length), stored);
+		List<Frame> messages = new ArrayList<Frame>(Math.max(count, 0));
+		for (long i = stored - count; i < stored; i++) {
+			messages.add(history[(int) (i % history.length)]);
+		}
+		return messages;
+	}
+
+	// called by the registry, owning the lock of the shard of this room
+	boolean add(RoomMember member, int maxMembers, int replay) {
+		if (maxMembers > 0 && members.size() >= maxMembers && !members.contains(member)) {
+			return false;
+		}
+		lock.lock();
+		try {
+			// the messages already stored are replayed, the next ones will find the member
+			if (members.add(member)) {
+				for (Frame message : recent(replay)) {
+					member.sendMessage(message); // queued, never blocks
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		return true;
+	}
+
+	// called by the registry, owning the lock of the shard of this room
+	void remove(RoomMember member) {
+		members.remove(member);
+	}
+}
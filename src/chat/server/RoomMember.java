@@ -0,0 +1,19 @@
+package chat.server;
+
+/**
+ * Interface that each client which can join a chat room MUST implement.
+ * @author Antonio Terpin
+ */
+public interface RoomMember {
+	/**
+	 * This method sends a message to the member, it must never block.
+	 * @param message The encoded message.
+	 */
+	public void sendMessage(Frame message);
+
+	/**
+	 * Method to retrieve how the member is seen by the others.
+	 * @return displayName The username, or the address if the member has no username.
+	 */
+	public String getDisplayName();
+}
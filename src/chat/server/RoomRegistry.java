@@ -0,0 +1,154 @@
+package chat.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sharded registry of the chat rooms.<br>
+ * Rooms are spread over shards by name, each shard with its own lock, so joining or leaving a room only contends with
+ * rooms of the same shard. Broadcasting never uses the registry: members keep a reference to their room.
+ * Rooms are created at the first join and removed when the last member leaves, except the default room.
+ * @author Antonio Terpin
+ */
+public class RoomRegistry {
+	/**
+	 * Name of the room every broadcast client joins when connected.
+	 */
+	public static final String defaultRoom = "lobby";
+
+	/**
+	 * Rooms of a shard, guarded by the shard lock.
+	 */
+	private static class Shard {
+		final ReentrantLock lock = new ReentrantLock();
+		final Map<String, Room> rooms = new HashMap<String, Room>();
+	}
+
+	private final Shard[] shards;
+	private volatile int maxMembers, historySize, replayOnJoin;
+
+	/**
+	 * Constructor which allows to set the number of shards, the member cap and the history of the rooms.
+	 * @param numberOfShards Number of shards, rounded up to a power of two.
+	 * @param maxMembers Maximum number of members of a room (the default room excluded), 0 for no limit.
+	 * @param historySize Number of recent messages kept by each room, 0 for no history.
+	 * @param replayOnJoin Number of recent messages sent to a joining member.
+	 */
+	public RoomRegistry(int numberOfShards, int maxMembers, int historySize, int replayOnJoin) {
+		int n = 1;
+		while (n < numberOfShards) {
+			n <<= 1;
+		}
+		shards = new Shard[n];
+		for (int i = 0; i < n; i++) {
+			shards[i] = new Shard();
+		}
+		this.maxMembers = maxMembers;
+		this.historySize = historySize;
+		this.replayOnJoin = replayOnJoin;
+	}
+
+	/**
+	 * Method to change the member cap, rooms already over it keep their members.
+	 * @param maxMembers Maximum number of members of a room (the default room excluded), 0 for no limit.
+	 */
+	public void setMaxMembers(int maxMembers) {
+		this.maxMembers = maxMembers;
+	}
+
+	/**
+	 * Method to change the history of the rooms: the size applies to the rooms created from now on, the replay to the next joins.
+	 * @param historySize Number of recent messages kept by each room, 0 for no history.
+	 * @param replayOnJoin Number of recent messages sent to a joining member.
+	 */
+	public void setHistory(int historySize, int replayOnJoin) {
+		this.historySize = historySize;
+		this.replayOnJoin = replayOnJoin;
+	}
+
+	/**
+	 * This method adds a member to a room, creating it if needed. The member receives the last messages of the room.
+	 * @param name Name of the room.
+	 * @param member The joining member.
+	 * @return room The joined room, null if it is full.
+	 */
+	public Room join(String name, RoomMember member) {
+		Shard shard = shardOf(name);
+		shard.lock.lock();
+		try {
+			Room room = shard.rooms.get(name);
+			boolean created = room == null;
+			if (created) {
+				room = new Room(name, historySize);
+			}
+			if (!room.add(member, name.equals(defaultRoom) ? 0 : maxMembers, replayOnJoin)) {
+				return null;
+			}
+			if (created) {
+				shard.rooms.put(name, room);
+			}
+			return room;
+		} finally {
+			shard.lock.unlock();
+		}
+	}
+
+	/**
+	 * This method removes a member from a room, the room is removed if empty.
+	 * @param room The room to leave.
+	 * @param member The leaving member.
+	 */
+	public void leave(Room room, RoomMember member) {
+		Shard shard = shardOf(room.getName());
+		shard.lock.lock();
+		try {
+			room.remove(member);
+			if (room.size() == 0 && !room.getName().equals(defaultRoom)) {
+				shard.rooms.remove(room.getName(), room);
+			}
+		} finally {
+			shard.lock.unlock();
+		}
+	}
+
+	/**
+	 * Method to retrieve a room by name.
+	 * @param name Name of the room.
+	 * @return room The room, null if it doesn't exist (no member).
+	 */
+	public Room get(String name) {
+		Shard shard = shardOf(name);
+		shard.lock.lock();
+		try {
+			return shard.rooms.get(name);
+		} finally {
+			shard.lock.unlock();
+		}
+	}
+
+	/**
+	 * Method to retrieve the existing rooms.
+	 * @return rooms The rooms, one shard at a time (not an atomic snapshot of all of them).
+	 */
+	public List<Room> getRooms() {
+		List<Room> all = new ArrayList<Room>();
+		for (Shard shard : shards) {
+			shard.lock.lock();
+			try {
+				all.addAll(shard.rooms.values());
+			} finally {
+				shard.lock.unlock();
+			}
+		}
+		return all;
+	}
+
+	// shard of a room name
+	private Shard shardOf(String name) {
+		int h = name.hashCode();
+		return shards[(h ^ (h >>> 16)) & (shards.length - 1)];
+	}
+}
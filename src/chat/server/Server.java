@@ -31,6 +31,14 @@ public abstract class Server implements Runnable {
 	protected Socket clientSocket = null;
 	// server
 	protected ChatServer chatServer = null;
+	// true if the client selected the binary framing
+	private volatile boolean binaryFraming = false;
+	// requests and replies of the client, its buffers are released when the service ends (read by the idle reaper too)
+	private volatile ClientConnection connection = null;
+	// when the service was created, the client is idle since then until it sends something
+	private final long created = System.nanoTime();
+	// entry of the idle reaper, while the client is watched
+	volatile IdleReaper.Entry idleEntry = null;
 	
 	/**
 	 * Constructor that allows to set the client socket and the chat server for each chat service.
@@ -52,12 +60,85 @@ public abstract class Server implements Runnable {
 		this.chatServer = chatServer;
 	}
 	
+	/**
+	 * Method to choose the framing of the client, it must be called before the service starts.
+	 * @param binaryFraming True if the client selected the binary framing (see BinaryFraming), false for lines.
+	 */
+	public void setBinaryFraming(boolean binaryFraming) {
+		this.binaryFraming = binaryFraming;
+	}
+	
+	/**
+	 * Method to know the framing of the client.
+	 * @return binaryFraming True if the client selected the binary framing.
+	 */
+	public boolean isBinaryFraming() {
+		return binaryFraming;
+	}
+	
+	/**
+	 * This method creates the connection with the client, according to its framing and the options of the service.
+	 * @param type Type of the service.
+	 * @return connection Requests and replies of the client.
+	 */
+	protected ClientConnection openConnection(ChatServer.server_type type) {
+		connection = new ClientConnection(clientSocket, chatServer.getServiceOptions(type), binaryFraming, chatServer.getMaxLineLength());
+		return connection;
+	}
+	
+	/**
+	 * Method to retrieve the connection with the client.
+	 * @return connection Requests and replies of the client, null until the service opens it.
+	 */
+	protected ClientConnection getConnection() {
+		return connection;
+	}
+	
+	/**
+	 * Method to retrieve when the client was last heard, used by the idle reaper.
+	 * @return nanos System.nanoTime() of the last request of the client, or of the creation of the service if none was read.
+	 */
+	protected long getLastInputNanos() {
+		ClientConnection c = connection;
+		return (c != null) ? c.getLastInputNanos() : created;
+	}
+	
+	/**
+	 * This method sends the client a heartbeat ping, the client has to answer (see ServiceOptions.getHeartbeat).<br>
+	 * It is called by the heartbeat thread of the idle reaper, while the service may be writing too.
+	 * @throws IOException if the connection can't be written.
+	 */
+	protected void sendHeartbeat() throws IOException {
+		ClientConnection c = connection;
+		if (c != null) {
+			c.ping();
+		}
+	}
+	
+	/**
+	 * This method gives the pooled buffers of the client back, once the service has ended and the socket is closed.
+	 */
+	protected void releaseBuffers() {
+		if (connection != null) {
+			connection.close();
+			connection = null;
+		}
+	}
+	
 	/**
 	 * When a thread starts this runnable, the doJob implementation of the service is called.
+	 * Once it returns the connection is closed, even if the service failed (for example on a line too long), its buffers are released
+	 * and the client is disconnected from the chat server, if the service didn't do it.
 	 */
 	@Override
 	public void run() {
-		doJob();
+		try {
+			doJob();
+		} finally {
+			stopRunning();
+			releaseBuffers();
+			chatServer.disconnectClient(this);
+		}
 	}
 	
 }
@@ -0,0 +1,196 @@
+package chat.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+
+/**
+ * Socket and output options of a chat service type.<br>
+ * By default every message is flushed as soon as it is written. In coalescing mode messages are buffered and flushed together:
+ * when the batch is full, when the linger time has elapsed or when no more messages are waiting.<br>
+ * A client silent for the idle timeout is disconnected. With a heartbeat, a client silent for the heartbeat interval is sent a ping
+ * (ClientConnection.heartbeatPing) and disconnected if it doesn't send anything within the heartbeat timeout (see IdleReaper).
+ * @author Antonio Terpin
+ */
+public class ServiceOptions {
+	private Boolean tcpNoDelay = null; // null: operating system default
+	private int sendBufferSize = 0; // 0: operating system default
+	private boolean coalesce = false;
+	private int flushBatch = 64;
+	private int flushLinger = 0;
+	private int idleTimeout = 0; // 0: never disconnected for being idle (a client which only receives is idle)
+	private int heartbeat = 0; // 0: no heartbeat
+	private int heartbeatTimeout = 10000;
+
+	/**
+	 * This method reads the options of a service from the system properties chat.[service].tcpNoDelay, chat.[service].sendBufferSize,
+	 * chat.[service].coalesce, chat.[service].flushBatch, chat.[service].flushLinger, chat.[service].idleTimeout, chat.[service].heartbeat
+	 * and chat.[service].heartbeatTimeout. The last three default to chat.idleTimeout (0), chat.heartbeat (0) and chat.heartbeatTimeout (10000).
+	 * @param service Name of the service (for example BROADCAST_SERVER).
+	 * @return options The options of the service, defaults for the properties not set.
+	 */
+	public static ServiceOptions fromProperties(String service) {
+		String prefix = "chat." + service + ".";
+		ServiceOptions options = new ServiceOptions();
+		String noDelay = System.getProperty(prefix + "tcpNoDelay");
+		if (noDelay != null) {
+			options.setTcpNoDelay(Boolean.valueOf(noDelay));
+		}
+		options.setSendBufferSize(Integer.getInteger(prefix + "sendBufferSize", options.sendBufferSize));
+		options.setCoalesce(Boolean.getBoolean(prefix + "coalesce"));
+		options.setFlushBatch(Integer.getInteger(prefix + "flushBatch", options.flushBatch));
+		options.setFlushLinger(Integer.getInteger(prefix + "flushLinger", options.flushLinger));
+		options.setIdleTimeout(Integer.getInteger(prefix + "idleTimeout", Integer.getInteger("chat.idleTimeout", options.idleTimeout)));
+		options.setHeartbeat(Integer.getInteger(prefix + "heartbeat", Integer.getInteger("chat.heartbeat", options.heartbeat)),
+				Integer.getInteger(prefix + "heartbeatTimeout", Integer.getInteger("chat.heartbeatTimeout", options.heartbeatTimeout)));
+		return options;
+	}
+
+	/**
+	 * This method applies the socket options to a client socket of the service.
+	 * @param socket The client socket.
+	 * @throws IOException if an option can't be set.
+	 */
+	public void applyTo(Socket socket) throws IOException {
+		if (tcpNoDelay != null) {
+			socket.setTcpNoDelay(tcpNoDelay);
+		}
+		if (sendBufferSize > 0) {
+			socket.setSendBufferSize(sendBufferSize);
+		}
+	}
+
+	/**
+	 * This method creates the writer of the replies: auto-flushing, or flushed by the service in coalescing mode (see ClientConnection.replied).
+	 * The writer is guarded by a ReentrantLock, not by a monitor (see ReplyWriter).
+	 * @param out Buffered output stream of the client socket (see PooledOutputStream).
+	 * @return writer The writer of the replies.
+	 */
+	public PrintWriter newWriter(OutputStream out) {
+		return new ReplyWriter(new OutputStreamWriter(out), !coalesce);
+	}
+
+	/**
+	 * Method to know the TCP_NODELAY option.
+	 * @return tcpNoDelay The option, null to keep the operating system default.
+	 */
+	public Boolean getTcpNoDelay() {
+		return tcpNoDelay;
+	}
+
+	/**
+	 * Method to set the TCP_NODELAY option.
+	 * @param tcpNoDelay True to disable Nagle's algorithm, null to keep the operating system default.
+	 */
+	public void setTcpNoDelay(Boolean tcpNoDelay) {
+		this.tcpNoDelay = tcpNoDelay;
+	}
+
+	/**
+	 * Method to know the socket send buffer size.
+	 * @return sendBufferSize Size in bytes, 0 for the operating system default.
+	 */
+	public int getSendBufferSize() {
+		return sendBufferSize;
+	}
+
+	/**
+	 * Method to set the socket send buffer size.
+	 * @param sendBufferSize Size in bytes, 0 for the operating system default.
+	 */
+	public void setSendBufferSize(int sendBufferSize) {
+		this.sendBufferSize = sendBufferSize;
+	}
+
+	/**
+	 * Method to know if the messages are coalesced.
+	 * @return coalesce True if the output is buffered.
+	 */
+	public boolean isCoalesce() {
+		return coalesce;
+	}
+
+	/**
+	 * Method to choose if the messages are coalesced.
+	 * @param coalesce True to buffer the output, false to flush every message.
+	 */
+	public void setCoalesce(boolean coalesce) {
+		this.coalesce = coalesce;
+	}
+
+	/**
+	 * Method to know the maximum number of messages sent with a single flush.
+	 * @return flushBatch Number of messages.
+	 */
+	public int getFlushBatch() {
+		return flushBatch;
+	}
+
+	/**
+	 * Method to set the maximum number of messages sent with a single flush.
+	 * @param flushBatch Number of messages, at least 1.
+	 */
+	public void setFlushBatch(int flushBatch) {
+		this.flushBatch = Math.max(1, flushBatch);
+	}
+
+	/**
+	 * Method to know how long a partial batch waits for more messages.
+	 * @return flushLinger Time in milliseconds.
+	 */
+	public int getFlushLinger() {
+		return flushLinger;
+	}
+
+	/**
+	 * Method to set how long a partial batch waits for more messages, in coalescing mode only.
+	 * @param flushLinger Time in milliseconds, 0 to flush as soon as no more messages are waiting.
+	 */
+	public void setFlushLinger(int flushLinger) {
+		this.flushLinger = Math.max(0, flushLinger);
+	}
+
+	/**
+	 * Method to know after how long a silent client is disconnected.
+	 * @return idleTimeout Time in milliseconds, 0 if idle clients are never disconnected.
+	 */
+	public int getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * Method to set after how long a silent client is disconnected, for the clients connected from now on.
+	 * @param idleTimeout Time in milliseconds, 0 to never disconnect idle clients.
+	 */
+	public void setIdleTimeout(int idleTimeout) {
+		this.idleTimeout = Math.max(0, idleTimeout);
+	}
+
+	/**
+	 * Method to know after how long a silent client is sent a heartbeat ping.
+	 * @return heartbeat Time in milliseconds, 0 if there is no heartbeat.
+	 */
+	public int getHeartbeat() {
+		return heartbeat;
+	}
+
+	/**
+	 * Method to know how long a client has to answer a heartbeat ping.
+	 * @return heartbeatTimeout Time in milliseconds.
+	 */
+	public int getHeartbeatTimeout() {
+		return heartbeatTimeout;
+	}
+
+	/**
+	 * Method to set the heartbeat, for the clients connected from now on.
+	 * @param heartbeat Time (ms) of silence after which the client is sent a ping, 0 for no heartbeat.
+	 * @param heartbeatTimeout Time (ms) the client has to send anything after the ping, at least 1.
+	 */
+	public void setHeartbeat(int heartbeat, int heartbeatTimeout) {
+		this.heartbeat = Math.max(0, heartbeat);
+		this.heartbeatTimeout = Math.max(1, heartbeatTimeout);
+	}
+}
@@ -0,0 +1,61 @@
+package chat.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Thread factory used by the chat server to run redirectors and chat services.<br>
+ * It creates virtual threads when requested and supported by the JVM (Java 21 or later), platform threads otherwise.
+ * Virtual threads are looked up by reflection, so the server still compiles and runs on older JVMs.
+ * @author Antonio Terpin
+ */
+public class ServiceThreadFactory implements ThreadFactory {
+	// Thread.ofVirtual() and Thread.Builder.unstarted(Runnable), null if not supported
+	private static Method ofVirtual = null, unstarted = null;
+	static {
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+		} catch (ReflectiveOperationException e) {
+			ofVirtual = null; // platform threads only
+		}
+	}
+
+	private boolean virtual;
+
+	/**
+	 * Constructor which allows to choose the type of threads.
+	 * @param virtual True to create virtual threads, if the JVM supports them.
+	 */
+	public ServiceThreadFactory(boolean virtual) {
+		if (virtual && ofVirtual == null) {
+			System.out.println("CS: Virtual threads not supported by this JVM, using platform threads");
+		}
+		this.virtual = virtual && ofVirtual != null;
+	}
+
+	/**
+	 * Method to know if the factory creates virtual threads.
+	 * @return virtual True if the created threads are virtual.
+	 */
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	/**
+	 * Creates a new, not started, thread which runs the given runnable.
+	 * @param r The runnable the thread has to run.
+	 * @return thread The new thread.
+	 */
+	@Override
+	public Thread newThread(Runnable r) {
+		if (virtual) {
+			try {
+				return (Thread) unstarted.invoke(ofVirtual.invoke(null), r);
+			} catch (ReflectiveOperationException e) {
+				// shouldn't happen, the methods have been found
+			}
+		}
+		return new Thread(r);
+	}
+}
@@ -0,0 +1,130 @@
+package chat.server;
+
+import java.io.IOException;
+import java.net.Socket;
+
+import http.server.websocket.WebSocket;
+import http.server.websocket.WebSocketException;
+import http.server.websocket.WebSocketReader;
+import net.PooledInputStream;
+
+/**
+ * Broadcast chat service for the clients connected through the WebSocket endpoint of the HTTP server.<br>
+ * Each text message of the client is a line of the broadcast service, with the same rooms and commands,
+ * and each message for the client is sent as a text frame. Pings are answered, a close frame ends the session.<br>
+ * The heartbeat is a WebSocket ping, answered by the browsers on their own.
+ * @author Antonio Terpin
+ */
+public class WebSocketClient extends BroadcastServer {
+	private WebSocketReader reader = null;
+	private PooledInputStream input = null;
+	// when the last frame (pongs included) was read, for the idle reaper
+	private volatile long lastInput = System.nanoTime();
+	// true once a close frame has been sent
+	private boolean closeSent = false;
+
+	/**
+	 * Constructor matching Server constructor which allows to set clientSocket and chatServer.
+	 * @param clientSocket Client socket, the WebSocket handshake must be already completed.
+	 * @param chatServer Chat server, useful in some cases.
+	 */
+	public WebSocketClient(Socket clientSocket, ChatServer chatServer) {
+		super(clientSocket, chatServer);
+	}
+
+	/**
+	 * The messages are written as WebSocket text frames.
+	 */
+	@Override
+	protected OutboundQueue newOutboundQueue() {
+		OutboundQueue queue = super.newOutboundQueue();
+		queue.setEncoding(Frame.Encoding.WEBSOCKET);
+		return queue;
+	}
+
+	/**
+	 * This method waits for the next text message, answering the control frames received meanwhile.
+	 * @return request The message, as a line of the broadcast service, null if the client closed the session.
+	 * @throws IOException if the connection can't be read.
+	 */
+	@Override
+	protected ClientConnection.Request nextRequest() throws IOException {
+		if (reader == null) {
+			input = new PooledInputStream(clientSocket, 4096); // frame headers are read a few bytes at a time
+			reader = new WebSocketReader(input, chatServer.getMaxLineLength()); // fragments included
+		}
+		try {
+			while (true) {
+				WebSocketReader.Message message = reader.next();
+				lastInput = System.nanoTime();
+				if (message == null) {
+					return null; // connection closed without close frame
+				}
+				switch (message.getOpcode()) {
+				case WebSocket.TEXT:
+					String text = message.getText();
+					if (text.equals(chatServer.quit)) {
+						close(WebSocket.NORMAL_CLOSURE, "Bye");
+					}
+					return new ClientConnection.Request(text, true);
+				case WebSocket.PING:
+					getOutboundQueue().writeNow(WebSocket.encode(WebSocket.PONG, message.getPayload()));
+					break;
+				case WebSocket.PONG:
+					break; // nothing to do
+				case WebSocket.CLOSE:
+					close(message.getCloseCode(), ""); // echo the status code
+					return null;
+				default: // binary
+					close(WebSocket.UNSUPPORTED_DATA, "Only text messages are supported");
+					return null;
+				}
+			}
+		} catch (WebSocketException e) {
+			close(e.getCloseCode(), e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * The client is heard through its WebSocket messages, pongs included.
+	 */
+	@Override
+	protected long getLastInputNanos() {
+		return lastInput;
+	}
+
+	/**
+	 * The heartbeat is a ping frame, the client answers with a pong.
+	 */
+	@Override
+	protected void sendHeartbeat() throws IOException {
+		OutboundQueue queue = getOutboundQueue();
+		if (queue != null) {
+			queue.writeNow(WebSocket.encode(WebSocket.PING, new byte[0]));
+		}
+	}
+
+	/**
+	 * The pooled input buffer is released too.
+	 */
+	@Override
+	protected void releaseBuffers() {
+		super.releaseBuffers();
+		if (input != null) {
+			input.close();
+			input = null;
+		}
+	}
+
+	// send the close frame, once
+	private void close(int code, String reason) {
+		if (closeSent) {
+			return;
+		}
+		closeSent = true;
+		try {
+			getOutboundQueue().writeNow(WebSocket.encodeClose(code, reason));
+		} catch (IOException e) {} // already closed
+	}
+}
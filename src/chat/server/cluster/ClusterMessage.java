@@ -0,0 +1,92 @@
+package chat.server.cluster;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Message exchanged by the nodes of the cluster over the peer links.<br>
+ * Each message carries the id of the node which originated it and a sequence number, increasing for each origin,
+ * so a node can drop the messages it already received.
+ * @author Antonio Terpin
+ */
+class ClusterMessage {
+	/**
+	 * Types of the messages: the first one on each link, broadcasts to a room, usernames taken and given back.
+	 */
+	static final int HELLO = 1, BROADCAST = 2, CLAIM = 3, RELEASE = 4;
+	// maximum size of a field, checked before allocating it
+	private static final int maxFieldLength = 1024 * 1024;
+
+	final int type;
+	final String origin;
+	final long sequence;
+	final String target; // room of a broadcast, username of a claim or release
+	final String text; // text of a broadcast
+
+	/**
+	 * Constructor which allows to set all the fields.
+	 * @param type Type of the message.
+	 * @param origin Id of the node which originated the message.
+	 * @param sequence Sequence number of the message for its origin.
+	 * @param target Room or username, empty if not used.
+	 * @param text Text of a broadcast, empty if not used.
+	 */
+	ClusterMessage(int type, String origin, long sequence, String target, String text) {
+		this.type = type;
+		this.origin = origin;
+		this.sequence = sequence;
+		this.target = target;
+		this.text = text;
+	}
+
+	/**
+	 * This method writes the message, the stream is not flushed.
+	 * @param out Stream of the peer link.
+	 * @throws IOException if the link is closed.
+	 */
+	void writeTo(DataOutputStream out) throws IOException {
+		out.writeByte(type);
+		writeString(out, origin);
+		out.writeLong(sequence);
+		writeString(out, target);
+		writeString(out, text);
+	}
+
+	/**
+	 * This method reads the next message.
+	 * @param in Stream of the peer link.
+	 * @return message The message, null if the link has been closed.
+	 * @throws IOException if the link is broken or the message is not valid.
+	 */
+	static ClusterMessage readFrom(DataInputStream in) throws IOException {
+		int type = in.read();
+		if (type < 0) {
+			return null;
+		}
+		try {
+			return new ClusterMessage(type, readString(in), in.readLong(), readString(in), readString(in));
+		} catch (EOFException e) {
+			return null;
+		}
+	}
+
+	// length-prefixed UTF-8
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > maxFieldLength) {
+			throw new IOException("Invalid cluster message");
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,339 @@
+package chat.server.cluster;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import chat.server.ChatServer;
+import chat.server.Frame;
+import chat.server.Room;
+
+/**
+ * Node of a cluster of chat servers, connected to the other nodes by persistent TCP links (full mesh).<br>
+ * A broadcast of a local client is forwarded once to each peer node, which delivers it to its own members of the room:
+ * the traffic between nodes doesn't depend on the number of remote clients. Each message carries its origin id and a sequence number,
+ * so messages received twice (for example over two links with the same peer) are dropped.<br>
+ * Usernames are unique in the whole cluster: each node tells the others the usernames it assigns and gives back.
+ * If two nodes assign the same username at the same time, the node with the smaller origin id keeps it.
+ * @author Antonio Terpin
+ */
+public class ClusterNode {
+	private final ChatServer chatServer;
+	// unique for each run of the node, so a restarted node starts a new sequence
+	private final String origin;
+	private final int port;
+	private final List<InetSocketAddress> peers;
+	private volatile boolean running = false;
+	private ServerSocket listener = null;
+	private final Set<PeerLink> links = new CopyOnWriteArraySet<PeerLink>();
+	private final AtomicLong sequence = new AtomicLong(0);
+	// numbers and queues the messages to the peers (never blocks, the links have their own writers)
+	private final ReentrantLock sendLock = new ReentrantLock();
+	// highest sequence number received from each origin
+	private final ConcurrentHashMap<String, AtomicLong> highestSeen = new ConcurrentHashMap<String, AtomicLong>();
+	// usernames assigned by this node, and by the other nodes (username -> origin)
+	private final Set<String> localUsernames = ConcurrentHashMap.newKeySet();
+	private final ConcurrentHashMap<String, String> remoteUsernames = new ConcurrentHashMap<String, String>();
+	private final AtomicLong forwarded = new AtomicLong(), delivered = new AtomicLong(),
+			duplicates = new AtomicLong(), dropped = new AtomicLong();
+	private int reconnectDelay = 2000, linkQueueSize = 4096;
+
+	/**
+	 * Constructor which allows to set the chat server, the id of the node, the port of the peer links and the peers.
+	 * @param chatServer The local chat server.
+	 * @param nodeId Name of the node, unique in the cluster.
+	 * @param port Port the other nodes connect to.
+	 * @param peers Addresses (host:port) of the other nodes, this node connects to each of them.
+	 */
+	public ClusterNode(ChatServer chatServer, String nodeId, int port, List<InetSocketAddress> peers) {
+		this.chatServer = chatServer;
+		this.origin = nodeId + "@" + System.currentTimeMillis();
+		this.port = port;
+		this.peers = peers;
+	}
+
+	/**
+	 * This method parses a list of peers.
+	 * @param peers Comma-separated host:port addresses, can be empty.
+	 * @return addresses The addresses, unresolved hosts are resolved when connecting.
+	 */
+	public static List<InetSocketAddress> parsePeers(String peers) {
+		List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+		for (String peer : peers.split(",")) {
+			peer = peer.trim();
+			int colon = peer.lastIndexOf(':');
+			if (colon > 0) {
+				addresses.add(InetSocketAddress.createUnresolved(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+			}
+		}
+		return addresses;
+	}
+
+	/**
+	 * Method to retrieve the id of this run of the node.
+	 * @return origin Node id and start time.
+	 */
+	public String getOrigin() {
+		return origin;
+	}
+
+	/**
+	 * This method starts accepting the peer links and connecting to the peers.
+	 * @throws IOException if the port of the peer links can't be opened.
+	 */
+	public void start() throws IOException {
+		running = true;
+		listener = new ServerSocket(port);
+		System.out.println("Cluster node " + origin + " listening on port: " + port);
+		startThread(this::accept, "cluster-acceptor");
+		for (InetSocketAddress peer : peers) {
+			startThread(() -> connect(peer), "cluster-connector");
+		}
+	}
+
+	/**
+	 * This method closes all the links, the node leaves the cluster.
+	 */
+	public void stop() {
+		running = false;
+		try {
+			if (listener != null) {
+				listener.close();
+			}
+		} catch (IOException e) {}
+		for (PeerLink link : links) {
+			link.close();
+		}
+	}
+
+	/**
+	 * This method forwards a broadcast of a local client to each peer node, once.
+	 * @param room Name of the room.
+	 * @param text The message, as delivered to the members.
+	 */
+	public void publish(String room, String text) {
+		send(ClusterMessage.BROADCAST, room, text);
+	}
+
+	/**
+	 * Method to know if another node assigned a username.
+	 * @param username The username.
+	 * @return taken True if the username belongs to a client of another node.
+	 */
+	public boolean isUsernameTaken(String username) {
+		return remoteUsernames.containsKey(username);
+	}
+
+	/**
+	 * Method to retrieve the usernames assigned by the other nodes.
+	 * @return usernames Read-only view of the usernames, with the origin of the node which assigned each of them.
+	 */
+	public Map<String, String> getRemoteUsernames() {
+		return Collections.unmodifiableMap(remoteUsernames);
+	}
+
+	/**
+	 * This method tells the other nodes that a local client took a username.
+	 * @param username The username.
+	 */
+	public void usernameClaimed(String username) {
+		localUsernames.add(username);
+		send(ClusterMessage.CLAIM, username, "");
+	}
+
+	/**
+	 * This method tells the other nodes that a local client gave a username back.
+	 * @param username The username.
+	 */
+	public void usernameReleased(String username) {
+		if (localUsernames.remove(username)) {
+			send(ClusterMessage.RELEASE, username, "");
+		}
+	}
+
+	/**
+	 * Method to retrieve the number of open peer links.
+	 * @return links Number of links with the other nodes.
+	 */
+	public int getNumberOfLinks() {
+		return links.size();
+	}
+
+	/**
+	 * Method to retrieve the statistics of the node.
+	 * @return statistics Broadcasts forwarded to peers, remote broadcasts delivered, duplicates dropped and messages dropped by slow links.
+	 */
+	public String getStatistics() {
+		return "forwarded=" + forwarded.get() + " delivered=" + delivered.get() + " duplicates=" + duplicates.get() + " dropped=" + dropped.get();
+	}
+
+	// LINKS SIDE
+
+	// first message of each link
+	ClusterMessage hello() {
+		return new ClusterMessage(ClusterMessage.HELLO, origin, 0, "", "");
+	}
+
+	// called by a link once the peer said HELLO
+	void linkUp(PeerLink link) {
+		if (link.getRemoteOrigin().equals(origin)) {
+			link.close(); // connected to itself
+			return;
+		}
+		System.out.println("CS: Cluster link up with " + link.getRemoteOrigin());
+		sendLock.lock();
+		try {
+			for (PeerLink other : links) {
+				if (other.isOpen() && link.getRemoteOrigin().equals(other.getRemoteOrigin())) {
+					links.add(link); // spare link, the peer already knows the usernames
+					return;
+				}
+			}
+			links.add(link);
+			// the new peer learns the usernames of this node
+			for (String username : localUsernames) {
+				link.send(new ClusterMessage(ClusterMessage.CLAIM, origin, sequence.incrementAndGet(), username, ""));
+			}
+		} finally {
+			sendLock.unlock();
+		}
+	}
+
+	// called by a link once closed
+	void linkDown(PeerLink link) {
+		if (!links.remove(link)) {
+			return;
+		}
+		String peer = link.getRemoteOrigin();
+		System.out.println("CS: Cluster link down with " + peer);
+		for (PeerLink other : links) {
+			if (peer.equals(other.getRemoteOrigin())) {
+				return; // still connected to the peer
+			}
+		}
+		// the peer is gone, its usernames are free (they are claimed again if it comes back)
+		remoteUsernames.values().removeIf(peer::equals);
+	}
+
+	// called by a link for each message of the peer
+	void received(PeerLink link, ClusterMessage message) {
+		if (!accept(message)) {
+			duplicates.incrementAndGet();
+			return;
+		}
+		switch (message.type) {
+		case ClusterMessage.BROADCAST:
+			Room room = chatServer.getRooms().get(message.target);
+			if (room != null) {
+				room.broadcast(null, Frame.of(message.text)); // to all the local members
+				delivered.incrementAndGet();
+			}
+			break;
+		case ClusterMessage.CLAIM:
+			if (localUsernames.contains(message.target)) {
+				// claimed on both nodes at the same time, the smaller origin keeps it
+				if (message.origin.compareTo(origin) < 0) {
+					localUsernames.remove(message.target);
+					chatServer.revokeUsername(message.target);
+					remoteUsernames.put(message.target, message.origin);
+				}
+			} else {
+				// claimed by two other nodes at the same time: the smaller origin keeps it here too, as on those nodes,
+				// so the RELEASE of the node keeping it matches (the other node gives it back without a RELEASE)
+				remoteUsernames.merge(message.target, message.origin, ClusterNode::smallerOrigin);
+			}
+			break;
+		case ClusterMessage.RELEASE:
+			remoteUsernames.remove(message.target, message.origin);
+			break;
+		default: // unknown, newer protocol
+		}
+	}
+
+	// the origin keeping a username claimed by two nodes
+	private static String smallerOrigin(String a, String b) {
+		return (a.compareTo(b) <= 0) ? a : b;
+	}
+
+	// true the first time a message is received
+	private boolean accept(ClusterMessage message) {
+		AtomicLong highest = highestSeen.computeIfAbsent(message.origin, o -> new AtomicLong(0));
+		long current;
+		do {
+			current = highest.get();
+			if (message.sequence <= current) {
+				return false;
+			}
+		} while (!highest.compareAndSet(current, message.sequence));
+		return true;
+	}
+
+	// send a message once to each peer, on the first open link with it.
+	// Numbering and queuing are atomic, so each peer receives the sequence numbers in order
+	private void send(int type, String target, String text) {
+		Set<String> served = new HashSet<String>();
+		sendLock.lock();
+		try {
+			ClusterMessage message = new ClusterMessage(type, origin, sequence.incrementAndGet(), target, text);
+			for (PeerLink link : links) {
+				if (link.isOpen() && served.add(link.getRemoteOrigin())) {
+					if (!link.send(message)) {
+						dropped.incrementAndGet();
+					} else if (type == ClusterMessage.BROADCAST) {
+						forwarded.incrementAndGet();
+					}
+				}
+			}
+		} finally {
+			sendLock.unlock();
+		}
+	}
+
+	// accept the links opened by the peers
+	private void accept() {
+		try {
+			while (running) {
+				Socket socket = listener.accept();
+				startThread(new PeerLink(this, socket, linkQueueSize), "cluster-link");
+			}
+		} catch (IOException e) {
+			if (running) {
+				System.out.println("CS: Cluster listener stopped: " + e.getMessage());
+			}
+		}
+	}
+
+	// keep a link open with a peer, reconnecting when it breaks
+	private void connect(InetSocketAddress peer) {
+		while (running) {
+			try {
+				Socket socket = new Socket(peer.getHostString(), peer.getPort());
+				socket.setTcpNoDelay(true);
+				new PeerLink(this, socket, linkQueueSize).run(); // until the link breaks
+			} catch (IOException e) {} // peer not up yet
+			try {
+				Thread.sleep(reconnectDelay);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	// cluster threads don't keep the application alive
+	private static void startThread(Runnable task, String name) {
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+}
@@ -0,0 +1,124 @@
+package chat.server.cluster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Persistent TCP link with another node of the cluster.<br>
+ * Messages are queued and written by the writer thread of the link, so forwarding a broadcast never blocks the sender;
+ * if the peer doesn't keep up the messages are dropped. The thread running the link reads the messages of the peer.
+ * @author Antonio Terpin
+ */
+class PeerLink implements Runnable {
+	private final ClusterNode node;
+	private final Socket socket;
+	private final BlockingQueue<ClusterMessage> outbound;
+	private volatile String remoteOrigin = null;
+	private volatile boolean open = true;
+	private volatile Thread writer = null;
+
+	/**
+	 * Constructor which allows to set the node and the connection.
+	 * @param node The local node.
+	 * @param socket Connection with the peer.
+	 * @param queueSize Maximum number of messages waiting to be written.
+	 */
+	PeerLink(ClusterNode node, Socket socket, int queueSize) {
+		this.node = node;
+		this.socket = socket;
+		this.outbound = new ArrayBlockingQueue<ClusterMessage>(queueSize);
+	}
+
+	/**
+	 * Method to retrieve the origin id of the peer.
+	 * @return remoteOrigin The id sent by the peer, null until its HELLO is received.
+	 */
+	String getRemoteOrigin() {
+		return remoteOrigin;
+	}
+
+	/**
+	 * Method to know if the link can be used.
+	 * @return open True until the link is closed.
+	 */
+	boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * This method queues a message for the peer, it never blocks.
+	 * @param message The message.
+	 * @return queued False if the message has been dropped.
+	 */
+	boolean send(ClusterMessage message) {
+		return open && outbound.offer(message);
+	}
+
+	/**
+	 * This method closes the link, the queued messages are discarded.
+	 */
+	void close() {
+		open = false;
+		try {
+			socket.close();
+		} catch (IOException e) {}
+		if (writer != null) {
+			writer.interrupt();
+		}
+	}
+
+	/**
+	 * Runs the link: starts the writer, says HELLO, then reads the messages of the peer until the link is closed.
+	 */
+	@Override
+	public void run() {
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			writer = new Thread(() -> write(out), "cluster-writer");
+			writer.setDaemon(true);
+			send(node.hello());
+			writer.start();
+			if (!open) {
+				writer.interrupt(); // closed meanwhile
+			}
+			ClusterMessage hello = ClusterMessage.readFrom(in);
+			if (hello == null || hello.type != ClusterMessage.HELLO) {
+				throw new IOException("Not a cluster peer");
+			}
+			remoteOrigin = hello.origin;
+			node.linkUp(this);
+			ClusterMessage message;
+			while (open && (message = ClusterMessage.readFrom(in)) != null) {
+				node.received(this, message);
+			}
+		} catch (IOException e) {
+			if (open) {
+				System.out.println("CS: Cluster link " + socket.getRemoteSocketAddress() + " broken: " + e.getMessage());
+			}
+		}
+		close();
+		node.linkDown(this);
+	}
+
+	// writer thread: the messages written together are flushed together
+	private void write(DataOutputStream out) {
+		try {
+			while (open) {
+				outbound.take().writeTo(out);
+				ClusterMessage next;
+				while ((next = outbound.poll()) != null) {
+					next.writeTo(out);
+				}
+				out.flush();
+			}
+		} catch (InterruptedException | IOException e) {} // closed
+		close();
+	}
+}
@@ -0,0 +1,207 @@
+package chat.server.nio;
+
+import java.io.IOException;
+
+import chat.server.ChatServer;
+import chat.server.Frame;
+import chat.server.RateLimiter;
+import chat.server.Room;
+import chat.server.RoomMember;
+import chat.server.RoomRegistry;
+
+/**
+ * Event-driven version of BroadcastServer: the client joins a room where it communicates with all the other clients of the room.
+ * @author Antonio Terpin
+ */
+public class BroadcastHandler implements ChatHandler {
+	// default number of messages sent by HISTORY
+	private static final int defaultHistory = 10;
+	private ChatServer chatServer;
+	private NioChatEngine engine;
+
+	/**
+	 * Per-session state of the broadcast service.
+	 */
+	private static class Member implements RoomMember {
+		final ChatSession session;
+		volatile String username = null;
+		volatile Room room = null;
+		boolean awaitingUsername = false; // the next line is the new username
+		RateLimiter.Client limits; // inbound rate limits
+
+		Member(ChatSession session) {
+			this.session = session;
+		}
+
+		@Override
+		public void sendMessage(Frame message) {
+			session.send(message);
+		}
+
+		@Override
+		public String getDisplayName() {
+			String name = username;
+			return (name == null) ? session.getRemoteAddress().toString() : name;
+		}
+	}
+
+	/**
+	 * Constructor which allows to set the chat server and the engine.
+	 * @param chatServer Chat server which provides logger, commands and rooms.
+	 * @param engine Engine serving the sessions.
+	 */
+	public BroadcastHandler(ChatServer chatServer, NioChatEngine engine) {
+		this.chatServer = chatServer;
+		this.engine = engine;
+	}
+
+	@Override
+	public void onOpen(ChatSession session) {
+		Member member = new Member(session);
+		member.limits = chatServer.getRateLimiter().open(session.getRemoteAddress());
+		session.setAttachment(member);
+		joinRoom(member, RoomRegistry.defaultRoom);
+	}
+
+	/**
+	 * <p>Particular strings used are:<br>
+	 * 1) ChatServer.getConn --> get number of active connections<br>
+	 * 2) ChatServer.quit --> close connection<br>
+	 * 3) ChatServer.changeUsername --> change username, the next line is the new username<br>
+	 * 4) ChatServer.joinRoom [room] --> leave the current room and join the selected one<br>
+	 * 5) ChatServer.leaveRoom --> leave the current room and go back to the default one<br>
+	 * 6) ChatServer.listRooms --> get the existing rooms and their number of members<br>
+	 * 7) ChatServer.listMembers --> get the members of the current room<br>
+	 * 8) ChatServer.history [n] --> get the last n messages of the current room (default 10)</p>
+	 */
+	@Override
+	public void onLine(ChatSession session, String line) {
+		Member member = (Member) session.getAttachment();
+		if (member.awaitingUsername) {
+			member.awaitingUsername = false;
+			changeUsername(member, line);
+			return;
+		}
+		if (line.equals(chatServer.quit)) {
+			session.close();
+			return;
+		}
+		// over the rate limit: the loop can't wait, the line is dropped or the client disconnected
+		if (!member.limits.tryAcquire()) {
+			if (chatServer.getRateLimiter().getPolicy() == RateLimiter.Policy.DISCONNECT) {
+				session.close();
+			}
+			return;
+		}
+		// the log file is written by a worker, the event loop doesn't wait for the disk
+		session.offload(() -> {
+			try {
+				chatServer.logger.write(chatServer.cb, session.getRemoteAddress(), line, session.getService().getName());
+			} catch (IOException e) {}
+		});
+		if (line.equals(chatServer.getConn)) {
+			session.send(String.valueOf(engine.getNumberOfConnections()));
+		}
+		else if (line.equals(chatServer.changeUsername)) {
+			member.awaitingUsername = true;
+		}
+		else if (line.startsWith(chatServer.joinRoom + " ")) {
+			joinRoom(member, line.substring(chatServer.joinRoom.length() + 1).trim());
+		}
+		else if (line.equals(chatServer.leaveRoom)) {
+			joinRoom(member, RoomRegistry.defaultRoom);
+		}
+		else if (line.equals(chatServer.listRooms)) {
+			for (Room r : chatServer.getRooms().getRooms()) {
+				session.send(r.getName() + " (" + r.size() + ")");
+			}
+		}
+		else if (line.equals(chatServer.history) || line.startsWith(chatServer.history + " ")) {
+			if (member.room != null) {
+				for (Frame message : member.room.getHistory(ChatServer.parseCount(line, chatServer.history, defaultHistory))) {
+					session.send(message);
+				}
+			}
+		}
+		else if (line.equals(chatServer.listMembers)) {
+			if (member.room != null) {
+				for (RoomMember m : member.room.getMembers()) {
+					session.send(m.getDisplayName());
+				}
+			}
+		}
+		else if (member.room != null) {
+			// encoded once for all the recipients
+			chatServer.broadcast(member.room, member, Frame.of(member.getDisplayName() + ": " + line));
+		}
+	}
+
+	@Override
+	public void onClose(ChatSession session) {
+		Member member = (Member) session.getAttachment();
+		member.limits.close();
+		if (member.room != null) {
+			chatServer.getRooms().leave(member.room, member);
+		}
+		String name = member.username;
+		if (name != null && chatServer.releaseUsername(name, session)) {
+			chatServer.usernameReleased(name);
+		}
+	}
+
+	/**
+	 * This method takes a username back from the session which has it, because another node of the cluster assigned it first.
+	 * @param session The session owning the username.
+	 * @param username The username.
+	 */
+	public void revokeUsername(ChatSession session, String username) {
+		if (!(session.getAttachment() instanceof Member)) {
+			return;
+		}
+		Member member = (Member) session.getAttachment();
+		if (username.equals(member.username) && chatServer.releaseUsername(username, session)) {
+			member.username = null;
+			session.send("Username " + username + " taken on another node");
+		}
+	}
+
+	// move the member to another room, if not full
+	private void joinRoom(Member member, String name) {
+		if (name.isEmpty()) {
+			member.session.send("Room name missing");
+			return;
+		}
+		Room current = member.room;
+		if (current != null && current.getName().equals(name)) {
+			return; // already there
+		}
+		Room joined = chatServer.getRooms().join(name, member);
+		if (joined == null) {
+			member.session.send("Room " + name + " is full");
+			return;
+		}
+		member.room = joined;
+		if (current != null) {
+			chatServer.getRooms().leave(current, member);
+		}
+		member.session.send("Joined room " + name);
+	}
+
+	// reserve the new username, then release the old one
+	private void changeUsername(Member member, String newUsername) {
+		if (newUsername.equals(member.username)) {
+			return;
+		}
+		// reserved in the registry of the server, shared with the thread-per-client and WebSocket clients
+		if (chatServer.isUsernameTakenInCluster(newUsername) || !chatServer.reserveUsername(newUsername, member.session)) {
+			member.session.send("Username not available");
+			return;
+		}
+		String oldUsername = member.username;
+		member.username = newUsername;
+		chatServer.usernameClaimed(newUsername);
+		if (oldUsername != null && chatServer.releaseUsername(oldUsername, member.session)) {
+			chatServer.usernameReleased(oldUsername);
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package chat.server.nio;
+
+/**
+ * Interface that each chat service of the event-driven engine MUST implement.<br>
+ * The methods are called by the event loop owning the session, so they must never block for long.
+ * @author Antonio Terpin
+ */
+public interface ChatHandler {
+	/**
+	 * Called once, when the client has selected this service.
+	 * @param session The client session.
+	 */
+	public void onOpen(ChatSession session);
+
+	/**
+	 * Called for each line received from the client.
+	 * @param session The client session.
+	 * @param line The received line, without line terminator.
+	 */
+	public void onLine(ChatSession session, String line);
+
+	/**
+	 * Called once, when the connection has been closed (by the client or by the server).
+	 * @param session The client session.
+	 */
+	public void onClose(ChatSession session);
+}
@@ -0,0 +1,369 @@
+package chat.server.nio;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import chat.server.ChatServer;
+import chat.server.ChatServiceFactory;
+import chat.server.Frame;
+import chat.server.OutboundQueue.SlowConsumerPolicy;
+import chat.server.ChatServer.server_type;
+
+/**
+ * State of a client connected to the event-driven engine.<br>
+ * A session starts selecting the service, then it is served by the selected handler until it is closed.
+ * Sending is thread-safe: messages are queued and written by the event loop owning the session. The queue is bounded:
+ * when it is full the slow-consumer policy of the server decides what to do, as for the thread-per-client engine (see OutboundQueue).
+ * Blocking work is offloaded to the worker threads of the engine, which post the replies back with send.
+ * @author Antonio Terpin
+ */
+public class ChatSession {
+	/**
+	 * States of the connection.
+	 */
+	enum State { SELECTING_SERVICE, SERVING, CLOSING, CLOSED }
+
+	private NioChatEngine engine;
+	private EventLoop loop;
+	private SocketChannel channel;
+	private SelectionKey key = null;
+	private InetAddress remoteAddress;
+	private volatile State state = State.SELECTING_SERVICE;
+	private server_type service = null;
+	private ChatHandler handler = null;
+	private LineDecoder decoder;
+	private Object attachment = null;
+	// messages waiting to be written, guarded by outboundLock
+	private ArrayDeque<ByteBuffer> outbound;
+	private final ReentrantLock outboundLock = new ReentrantLock();
+	private final int outboundCapacity, maxOverflows;
+	private final SlowConsumerPolicy policy;
+	// number of first queued messages being written (or the first one, written in part) which DROP_OLDEST can't drop,
+	// overflows so far (guarded by outboundLock)
+	private int inFlight = 0;
+	private int overflows = 0;
+	// disconnected by the DISCONNECT policy: the loop closes the session without writing the queued messages
+	private volatile boolean aborted = false;
+	// true if the session is already waiting for the event loop to flush it
+	private AtomicBoolean flushScheduled = new AtomicBoolean(false);
+	// maximum number of offloaded tasks not done yet, then the client is not read until they are done
+	private static final int maxOffloaded = 64;
+	// last offloaded task, the next one runs after it (used by the event loop only)
+	private CompletableFuture<Void> offloaded = CompletableFuture.completedFuture(null);
+	private AtomicInteger pendingOffloaded = new AtomicInteger(0);
+	private volatile boolean readPaused = false; // written by the event loop only
+
+	/**
+	 * Constructor which allows to set the engine, the event loop and the connection of the session.
+	 * @param engine The engine the session belongs to.
+	 * @param loop The event loop which owns the session.
+	 * @param channel The client connection.
+	 */
+	ChatSession(NioChatEngine engine, EventLoop loop, SocketChannel channel) {
+		this.engine = engine;
+		this.loop = loop;
+		this.channel = channel;
+		this.remoteAddress = channel.socket().getInetAddress();
+		this.decoder = new LineDecoder(engine.getMaxLineLength());
+		ChatServer chatServer = engine.getChatServer();
+		this.outboundCapacity = Math.max(1, chatServer.getOutboundQueueSize());
+		this.policy = chatServer.getSlowConsumerPolicy();
+		this.maxOverflows = chatServer.getMaxOverflows();
+		this.outbound = new ArrayDeque<ByteBuffer>(Math.min(outboundCapacity, 16));
+	}
+
+	/**
+	 * Method to retrieve the address of the client.
+	 * @return remoteAddress Client address.
+	 */
+	public InetAddress getRemoteAddress() {
+		return remoteAddress;
+	}
+
+	/**
+	 * Method to retrieve the service the client selected.
+	 * @return service The selected service, null while the client is selecting it.
+	 */
+	public server_type getService() {
+		return service;
+	}
+
+	/**
+	 * Method to retrieve the per-session object set by the handler.
+	 * @return attachment The handler state for this session.
+	 */
+	public Object getAttachment() {
+		return attachment;
+	}
+
+	/**
+	 * Method that allows the handler to keep its own state for this session.
+	 * @param attachment The handler state for this session.
+	 */
+	public void setAttachment(Object attachment) {
+		this.attachment = attachment;
+	}
+
+	/**
+	 * This method sends a line to the client. It can be called from any thread and never blocks.
+	 * @param message Line to send, the line terminator is added.
+	 * @return queued False if the message has been dropped.
+	 */
+	public boolean send(String message) {
+		return send(Frame.of(message));
+	}
+
+	/**
+	 * This method sends an encoded line to the client. It can be called from any thread and never blocks.<br>
+	 * The frame is shared, so the same message can be sent to many sessions encoding it once.
+	 * @param frame Line to send.
+	 * @return queued False if the message has been dropped.
+	 */
+	public boolean send(Frame frame) {
+		return send(frame.buffer());
+	}
+
+	/**
+	 * This method queues bytes to send to the client. It can be called from any thread and never blocks.
+	 * @param data Bytes to send.
+	 * @return queued False if the message has been dropped, because the session is closed or by the slow-consumer policy.
+	 */
+	public boolean send(ByteBuffer data) {
+		if (state == State.CLOSED) {
+			return false;
+		}
+		boolean queued = true, overflow = false, disconnect = false;
+		outboundLock.lock();
+		try {
+			if (outbound.size() >= outboundCapacity) {
+				overflow = true;
+				overflows++;
+				if (policy == SlowConsumerPolicy.DROP_OLDEST && outbound.size() > inFlight) {
+					// the first messages are being written (or were in part), the oldest after them is dropped
+					Iterator<ByteBuffer> oldest = outbound.iterator();
+					for (int i = 0; i <= inFlight; i++) {
+						oldest.next();
+					}
+					oldest.remove();
+				} else {
+					queued = false;
+					disconnect = policy == SlowConsumerPolicy.DISCONNECT && overflows >= maxOverflows && !aborted;
+				}
+			}
+			if (queued) {
+				outbound.add(data);
+			}
+		} finally {
+			outboundLock.unlock();
+		}
+		if (overflow) {
+			engine.getChatServer().messageDropped();
+		}
+		if (disconnect) {
+			System.out.println("CS: Slow consumer disconnected: " + remoteAddress);
+			engine.getChatServer().slowConsumerDisconnected();
+			aborted = true;
+		}
+		if ((queued || disconnect) && flushScheduled.compareAndSet(false, true)) {
+			loop.scheduleFlush(this);
+		}
+		return queued;
+	}
+
+	/**
+	 * This method runs blocking work of the handler (for example the log file I/O) on the worker threads of the engine,
+	 * so the event loop doesn't wait. The tasks of a session run one at a time, in the order they were offloaded:
+	 * the replies they send come in the order of the requests.<br>
+	 * It must be called by the event loop owning the session, that is from the handler callbacks.
+	 * @param task The blocking work, it can send to the session and close it.
+	 */
+	public void offload(Runnable task) {
+		if (pendingOffloaded.incrementAndGet() > maxOffloaded && !readPaused && key != null) {
+			// the client sends faster than the workers serve it
+			readPaused = true;
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		}
+		offloaded = offloaded.thenRunAsync(() -> {
+			try {
+				task.run();
+			} catch (Throwable e) {
+				// a failed stage would skip all the next ones: the request is lost, not the session
+				System.out.println("CS: Request of " + remoteAddress + " failed: " + e);
+			} finally {
+				if (pendingOffloaded.decrementAndGet() == 0 && readPaused && flushScheduled.compareAndSet(false, true)) {
+					loop.scheduleFlush(this); // the loop resumes reading
+				}
+			}
+		}, engine.getWorkers());
+	}
+
+	/**
+	 * This method closes the connection once the queued messages have been written.
+	 */
+	public void close() {
+		if (state != State.CLOSED) {
+			state = State.CLOSING;
+			if (flushScheduled.compareAndSet(false, true)) {
+				loop.scheduleFlush(this);
+			}
+		}
+	}
+
+	// EVENT LOOP SIDE
+
+	// called by the event loop once the channel is registered
+	void opened(SelectionKey key) {
+		this.key = key;
+		send(engine.getChatServer().welcomingMessage());
+	}
+
+	// called by the event loop for each line received
+	void lineReceived(String line) {
+		switch (state) {
+		case SELECTING_SERVICE:
+			String binaryFraming = engine.getChatServer().binaryFraming;
+			boolean binary = line.endsWith(" " + binaryFraming);
+			if (binary) {
+				line = line.substring(0, line.length() - binaryFraming.length() - 1).trim();
+			}
+			ChatServiceFactory selected = engine.getChatServer().getServices().find(line);
+			if (selected == null) {
+				selected = server_type.ECHO_SERVER; // default server
+			}
+			if (!(selected instanceof server_type) || engine.getHandler((server_type) selected) == null) {
+				// a service plugged into the registry runs on its own thread, the loops have no handler for it
+				send("Service " + selected.getName() + " not available with the event loops");
+				close();
+				return;
+			}
+			service = (server_type) selected;
+			if (binary) {
+				send("Binary framing not available with the event loops, using lines");
+			}
+			try {
+				engine.getChatServer().getServiceOptions(service).applyTo(channel.socket());
+			} catch (IOException e) {} // keep the default options
+			send("Selected server: " + service.getName());
+			handler = engine.getHandler(service);
+			state = State.SERVING;
+			handler.onOpen(this);
+			break;
+		case SERVING:
+			handler.onLine(this, line);
+			break;
+		default: // closing, ignore the rest of the input
+		}
+	}
+
+	// called by the event loop when the channel is readable, returns false at end of stream
+	boolean read(ByteBuffer buffer) throws IOException, LineDecoder.LineTooLongException {
+		buffer.clear();
+		int n = channel.read(buffer);
+		if (n < 0) {
+			return false;
+		}
+		buffer.flip();
+		String line;
+		while (state != State.CLOSED && (line = decoder.nextLine(buffer)) != null) {
+			lineReceived(line);
+		}
+		return true;
+	}
+
+	// called by the event loop to write the queued messages, as much as the socket accepts
+	void flush() throws IOException {
+		flushScheduled.set(false);
+		if (state == State.CLOSED || key == null) {
+			return;
+		}
+		if (aborted) {
+			closeNow();
+			return;
+		}
+		if (readPaused && pendingOffloaded.get() == 0) {
+			readPaused = false;
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+		}
+		ByteBuffer[] batch = loop.getWriteBatch();
+		while (true) {
+			// gather the pending messages, the socket is written without holding the lock
+			int n = 0;
+			outboundLock.lock();
+			try {
+				for (ByteBuffer data : outbound) {
+					batch[n++] = data;
+					if (n == batch.length) {
+						break;
+					}
+				}
+				inFlight = n; // from now on DROP_OLDEST can't drop them
+			} finally {
+				outboundLock.unlock();
+			}
+			if (n == 0) {
+				break;
+			}
+			channel.write(batch, 0, n);
+			int written = 0;
+			while (written < n && !batch[written].hasRemaining()) {
+				written++;
+			}
+			outboundLock.lock();
+			try {
+				// only this thread removes the messages in flight, they are still the first ones
+				for (int i = 0; i < written; i++) {
+					outbound.poll();
+				}
+				inFlight = (written < n) ? 1 : 0; // the first one may be written in part
+			} finally {
+				outboundLock.unlock();
+			}
+			Arrays.fill(batch, 0, n, null);
+			if (written < n) {
+				// socket buffer full, wait to be writable
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				return;
+			}
+		}
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		if (state == State.CLOSING) {
+			closeNow();
+		}
+	}
+
+	// called by the event loop to release the connection
+	void closeNow() {
+		if (state == State.CLOSED) {
+			return;
+		}
+		boolean served = handler != null;
+		state = State.CLOSED;
+		outboundLock.lock();
+		try {
+			outbound.clear();
+			inFlight = 0;
+		} finally {
+			outboundLock.unlock();
+		}
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {}
+		if (served) {
+			handler.onClose(this);
+		}
+		engine.sessionClosed(this);
+	}
+}
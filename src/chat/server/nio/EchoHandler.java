@@ -0,0 +1,95 @@
+package chat.server.nio;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import chat.server.ChatServer;
+
+/**
+ * Event-driven version of EchoServer: the client gets back every string it sends.
+ * @author Antonio Terpin
+ */
+public class EchoHandler implements ChatHandler {
+	// default number of records sent by LOG TAIL
+	private static final int defaultTailRecords = 10;
+	private ChatServer chatServer;
+	private NioChatEngine engine;
+
+	/**
+	 * Constructor which allows to set the chat server and the engine.
+	 * @param chatServer Chat server which provides logger and commands.
+	 * @param engine Engine serving the sessions.
+	 */
+	public EchoHandler(ChatServer chatServer, NioChatEngine engine) {
+		this.chatServer = chatServer;
+		this.engine = engine;
+	}
+
+	@Override
+	public void onOpen(ChatSession session) {}
+
+	/**
+	 * <p>Particular strings used are:<br>
+	 * 1) ChatServer.getConn --> get number of active connections<br>
+	 * 2) ChatServer.quit --> close connection<br>
+	 * 3) ChatServer.getLogs --> get the whole log file<br>
+	 * 4) ChatServer.tailLogs [n] --> get the last n records of the log file (default 10)</p>
+	 * The log file is written and read by a worker thread, which sends the replies too: they keep the order of the requests.
+	 */
+	@Override
+	public void onLine(ChatSession session, String line) {
+		session.offload(() -> serve(session, line));
+	}
+
+	// serve a request on a worker thread of the engine
+	private void serve(ChatSession session, String line) {
+		if (line.equals(chatServer.quit)) {
+			session.close();
+			return;
+		}
+		log(session, line);
+		try {
+			if (line.equals(chatServer.getConn)) {
+				session.send(String.valueOf(engine.getNumberOfConnections()));
+			}
+			else if (line.equals(chatServer.getLogs)) {
+				PrintWriter sender = new PrintWriter(new SessionWriter(session));
+				chatServer.logger.read(chatServer.cb, sender);
+				sender.flush();
+			}
+			else if (line.startsWith(chatServer.tailLogs)) {
+				PrintWriter sender = new PrintWriter(new SessionWriter(session));
+				chatServer.logger.tail(chatServer.cb, parseTailRecords(line), sender);
+				sender.flush();
+			}
+			else if (line.equals(chatServer.followLogs) || line.equals(chatServer.unfollowLogs)) {
+				session.send("LOG FOLLOW is not available on the event-driven engine");
+			}
+			else {
+				session.send(line); // send the same string received.
+			}
+		} catch (IOException e) {}
+	}
+
+	@Override
+	public void onClose(ChatSession session) {}
+
+	// write the message in the chat log
+	private void log(ChatSession session, String message) {
+		try {
+			chatServer.logger.write(chatServer.cb,
+					session.getRemoteAddress(), // client's IP
+					message, // message sent from the client
+					session.getService().getName()); // type of service the client sent the message
+		} catch (IOException e) {}
+	}
+
+	// get the number of records from "LOG TAIL n", the default if not valid
+	private int parseTailRecords(String command) {
+		try {
+			return Integer.parseInt(command.substring(chatServer.tailLogs.length()).trim());
+		} catch (NumberFormatException e) {
+			return defaultTailRecords;
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package chat.server.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import net.BufferPool;
+
+/**
+ * Event loop of the event-driven engine: a single thread which serves all the sessions registered to its selector.<br>
+ * Other threads interact with the loop only through its queues, then wake the selector up.
+ * @author Antonio Terpin
+ */
+class EventLoop implements Runnable {
+	private NioChatEngine engine;
+	private Selector selector;
+	private volatile boolean running = true;
+	// connections accepted and waiting to be registered
+	private Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<SocketChannel>();
+	// sessions with messages waiting to be written
+	private Queue<ChatSession> flushes = new ConcurrentLinkedQueue<ChatSession>();
+	// read buffer shared by all the sessions of this loop, the decoders copy what they need (taken from the pool while the loop runs)
+	private ByteBuffer readBuffer = null;
+	// array of the gathering writes, shared by all the sessions of this loop
+	private ByteBuffer[] writeBatch = new ByteBuffer[64];
+	private Thread thread = null;
+
+	/**
+	 * Constructor which allows to set the engine the loop belongs to.
+	 * @param engine The event-driven engine.
+	 * @throws IOException if the selector can't be opened.
+	 */
+	EventLoop(NioChatEngine engine) throws IOException {
+		this.engine = engine;
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * This method hands a new connection to the loop.
+	 * @param channel The accepted connection.
+	 */
+	void register(SocketChannel channel) {
+		registrations.add(channel);
+		selector.wakeup();
+	}
+
+	/**
+	 * This method asks the loop to write the messages queued for a session.
+	 * @param session The session to flush.
+	 */
+	void scheduleFlush(ChatSession session) {
+		flushes.add(session);
+		if (Thread.currentThread() != thread) {
+			selector.wakeup();
+		}
+	}
+
+	// buffers array used by the sessions to write, only from this loop
+	ByteBuffer[] getWriteBatch() {
+		return writeBatch;
+	}
+
+	/**
+	 * This method stops the loop and closes all its sessions.
+	 */
+	void stop() {
+		running = false;
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		thread = Thread.currentThread();
+		BufferPool.Lease lease = BufferPool.shared().acquire(8192);
+		readBuffer = lease.buffer();
+		try {
+			while (running) {
+				selector.select();
+				registerPending();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					handle(key);
+				}
+				// also what the handlers just sent, before blocking again
+				flushPending();
+			}
+			for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+				((ChatSession) key.attachment()).closeNow();
+			}
+			selector.close();
+		} catch (IOException | ClosedSelectorException e) {
+			System.out.println("CS: Event loop stopped: " + e.getMessage());
+		} finally {
+			lease.close();
+		}
+	}
+
+	// register the accepted connections
+	private void registerPending() {
+		SocketChannel channel;
+		while ((channel = registrations.poll()) != null) {
+			ChatSession session = new ChatSession(engine, this, channel);
+			try {
+				channel.configureBlocking(false);
+				session.opened(channel.register(selector, SelectionKey.OP_READ, session));
+			} catch (IOException e) {
+				session.closeNow();
+			}
+		}
+	}
+
+	// write the messages queued by other threads
+	private void flushPending() {
+		ChatSession session;
+		while ((session = flushes.poll()) != null) {
+			try {
+				session.flush();
+			} catch (IOException e) {
+				session.closeNow();
+			}
+		}
+	}
+
+	// serve a ready connection
+	private void handle(SelectionKey key) {
+		ChatSession session = (ChatSession) key.attachment();
+		try {
+			if (key.isValid() && key.isWritable()) {
+				session.flush();
+			}
+			if (key.isValid() && key.isReadable() && !session.read(readBuffer)) {
+				session.closeNow(); // client disconnected
+			}
+		} catch (IOException | LineDecoder.LineTooLongException e) {
+			session.closeNow();
+		}
+	}
+}
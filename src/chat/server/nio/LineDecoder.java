@@ -0,0 +1,66 @@
+package chat.server.nio;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Non-blocking line framing: bytes are fed as they arrive and complete lines are extracted when available.<br>
+ * The pending bytes of an incomplete line are kept between two reads.
+ * @author Antonio Terpin
+ */
+class LineDecoder {
+	private byte[] pending = null; // allocated at the first incomplete line, idle clients cost nothing
+	private int length = 0;
+	private int maxLineLength;
+
+	/**
+	 * Constructor which allows to set the maximum length of a line.
+	 * @param maxLineLength Maximum number of bytes of a line.
+	 */
+	LineDecoder(int maxLineLength) {
+		this.maxLineLength = maxLineLength;
+	}
+
+	/**
+	 * This method extracts the next complete line from the pending bytes and the read buffer.
+	 * @param buffer Buffer in read mode, its position is moved after the consumed bytes.
+	 * @return line The next line without terminator, or null if more bytes are needed.
+	 * @throws LineTooLongException if the line exceeds the maximum length.
+	 */
+	String nextLine(ByteBuffer buffer) throws LineTooLongException {
+		while (buffer.hasRemaining()) {
+			byte b = buffer.get();
+			if (b == '\n') {
+				int end = length;
+				if (end > 0 && pending[end - 1] == '\r') {
+					end--; // telnet sends \r\n
+				}
+				String line = (end == 0) ? "" : new String(pending, 0, end);
+				length = 0;
+				return line;
+			}
+			if (length == maxLineLength) {
+				throw new LineTooLongException();
+			}
+			append(b);
+		}
+		return null;
+	}
+
+	// add a byte to the pending line, growing the array if needed
+	private void append(byte b) {
+		if (pending == null) {
+			pending = new byte[64];
+		} else if (length == pending.length) {
+			pending = Arrays.copyOf(pending, Math.min(pending.length * 2, maxLineLength));
+		}
+		pending[length++] = b;
+	}
+
+	/**
+	 * Exception thrown when a client sends a line longer than the maximum length.
+	 */
+	static class LineTooLongException extends Exception {
+		private static final long serialVersionUID = 1L;
+	}
+}
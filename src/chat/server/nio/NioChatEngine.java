@@ -0,0 +1,167 @@
+package chat.server.nio;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import chat.server.AdmissionControl;
+import chat.server.ChatServer;
+import chat.server.ChatServer.server_type;
+import net.ListenerGroup;
+
+/**
+ * Event-driven engine for the chat server: a few event loops serve all the clients with non-blocking sockets.<br>
+ * The acceptor threads hand each new connection to an event loop (round robin), the session then selects the service
+ * and is served by the callback-style handler of that service.<br>
+ * The blocking work of the handlers (the log file I/O) is done by a few worker threads, so the loops never wait for the disk.
+ * @author Antonio Terpin
+ */
+public class NioChatEngine implements Runnable {
+	private ChatServer chatServer;
+	private EventLoop[] loops;
+	private volatile ListenerGroup listeners = null;
+	private volatile boolean running = true;
+	private AtomicInteger connections = new AtomicInteger(0), nextLoop = new AtomicInteger(0);
+	private Map<server_type, ChatHandler> handlers = new EnumMap<server_type, ChatHandler>(server_type.class);
+	// threads running the work offloaded by the sessions (see ChatSession.offload)
+	private ThreadPoolExecutor workers;
+
+	/**
+	 * Constructor which allows to set the chat server and the number of event loops.
+	 * @param chatServer The chat server which provides port, logger and commands.
+	 * @param numberOfLoops Number of event loops (threads) serving the clients.
+	 * @param numberOfWorkers Number of threads doing the blocking work of the handlers.
+	 * @throws IOException if the selectors can't be opened.
+	 */
+	public NioChatEngine(ChatServer chatServer, int numberOfLoops, int numberOfWorkers) throws IOException {
+		this.chatServer = chatServer;
+		this.loops = new EventLoop[numberOfLoops];
+		for (int i = 0; i < numberOfLoops; i++) {
+			loops[i] = new EventLoop(this);
+		}
+		AtomicInteger workerIds = new AtomicInteger(0);
+		this.workers = new ThreadPoolExecutor(numberOfWorkers, numberOfWorkers, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+			Thread t = new Thread(r, "chat-worker-" + workerIds.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		});
+		handlers.put(server_type.ECHO_SERVER, new EchoHandler(chatServer, this));
+		handlers.put(server_type.REVERSE_SERVER, new ReverseHandler(chatServer, this));
+		handlers.put(server_type.BROADCAST_SERVER, new BroadcastHandler(chatServer, this));
+	}
+
+	/**
+	 * Method to retrieve the chat server the engine works for.
+	 * @return chatServer The chat server.
+	 */
+	public ChatServer getChatServer() {
+		return chatServer;
+	}
+
+	/**
+	 * This method allows to retrieve the number of connected clients.
+	 * @return connections Number of open sessions.
+	 */
+	public int getNumberOfConnections() {
+		return connections.get();
+	}
+
+	// maximum length of a line, longer lines close the connection
+	int getMaxLineLength() {
+		return chatServer.getMaxLineLength();
+	}
+
+	// threads running the offloaded work of the sessions
+	Executor getWorkers() {
+		return workers;
+	}
+
+	// handler of the selected service
+	ChatHandler getHandler(server_type service) {
+		return handlers.get(service);
+	}
+
+	/**
+	 * This method takes a username back from the broadcast session which has it (see ChatServer.revokeUsername).
+	 * @param session The session owning the username.
+	 * @param username The username.
+	 */
+	public void revokeUsername(ChatSession session, String username) {
+		((BroadcastHandler) handlers.get(server_type.BROADCAST_SERVER)).revokeUsername(session, username);
+	}
+
+	// called by the session once closed
+	void sessionClosed(ChatSession session) {
+		connections.decrementAndGet();
+		chatServer.getAdmissionControl().release(session.getRemoteAddress());
+	}
+
+	/**
+	 * This method stops accepting connections and closes all the sessions.
+	 */
+	public void stop() {
+		running = false;
+		if (listeners != null) {
+			listeners.close(); // unblock the acceptors
+		}
+		for (EventLoop loop : loops) {
+			loop.stop();
+		}
+		workers.shutdown(); // the work already offloaded is done
+	}
+
+	/**
+	 * Implementation of Runnable interface.<br>
+	 * Starts the event loops, then accepts connections and hands them to the loops.
+	 */
+	@Override
+	public void run() {
+		for (int i = 0; i < loops.length; i++) {
+			new Thread(loops[i], "chat-loop-" + i).start();
+		}
+		try {
+			ListenerGroup group = ListenerGroup.open(chatServer.getServerPort(), chatServer.getAcceptors(), chatServer.getAcceptBacklog());
+			listeners = group;
+			if (!running) {
+				group.close(); // stopped while binding
+			}
+			System.out.println("Chat server running on port: " + group.getLocalPort() + " (" + loops.length + " event loops, " + group + ")");
+			chatServer.listening(group);
+			// the other acceptors have their own threads, this thread is the first one
+			for (int i = 1; i < group.getAcceptors(); i++) {
+				final int acceptor = i;
+				new Thread(() -> accept(group, acceptor), "chat-acceptor-" + i).start();
+			}
+			accept(group, 0);
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+		}
+		stop();
+	}
+
+	// accept the connections of a listener and hand them to the loops, until the engine is stopped
+	private void accept(ListenerGroup group, int acceptor) {
+		try {
+			while (running) {
+				SocketChannel channel = group.accept(acceptor);
+				AdmissionControl.Result admitted = chatServer.getAdmissionControl().tryAdmit(channel.socket().getInetAddress());
+				if (admitted != AdmissionControl.Result.ADMITTED) {
+					chatServer.refuse(channel.socket(), admitted); // still blocking, the reply is short
+					continue;
+				}
+				connections.incrementAndGet();
+				loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)].register(channel);
+			}
+		} catch (IOException e) {
+			if (running) {
+				System.out.println(e.getMessage());
+			}
+		}
+	}
+}
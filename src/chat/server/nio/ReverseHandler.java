@@ -0,0 +1,55 @@
+package chat.server.nio;
+
+import java.io.IOException;
+
+import chat.server.ChatServer;
+
+/**
+ * Event-driven version of ReverseServer: the client gets back every string it sends, reversed.
+ * @author Antonio Terpin
+ */
+public class ReverseHandler implements ChatHandler {
+	private ChatServer chatServer;
+	private NioChatEngine engine;
+
+	/**
+	 * Constructor which allows to set the chat server and the engine.
+	 * @param chatServer Chat server which provides logger and commands.
+	 * @param engine Engine serving the sessions.
+	 */
+	public ReverseHandler(ChatServer chatServer, NioChatEngine engine) {
+		this.chatServer = chatServer;
+		this.engine = engine;
+	}
+
+	@Override
+	public void onOpen(ChatSession session) {}
+
+	/**
+	 * <p>Particular strings used are:<br>
+	 * 1) ChatServer.getConn --> get number of active connections<br>
+	 * 2) ChatServer.quit --> close connection</p>
+	 */
+	@Override
+	public void onLine(ChatSession session, String line) {
+		if (line.equals(chatServer.quit)) {
+			session.close();
+			return;
+		}
+		// the log file is written by a worker, the event loop doesn't wait for the disk
+		session.offload(() -> {
+			try {
+				chatServer.logger.write(chatServer.cb, session.getRemoteAddress(), line, session.getService().getName());
+			} catch (IOException e) {}
+		});
+		if (line.equals(chatServer.getConn)) {
+			session.send(String.valueOf(engine.getNumberOfConnections()));
+		}
+		else {
+			session.send(new StringBuilder(line).reverse().toString()); // send the string received, reversed.
+		}
+	}
+
+	@Override
+	public void onClose(ChatSession session) {}
+}
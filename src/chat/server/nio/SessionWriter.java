@@ -0,0 +1,40 @@
+package chat.server.nio;
+
+import java.io.Writer;
+import java.nio.ByteBuffer;
+
+/**
+ * Writer which collects what is written and queues it to a session at each flush.<br>
+ * It allows to use the PrintWriter based callbacks (such as the log reading one) with the event-driven engine.
+ * @author Antonio Terpin
+ */
+class SessionWriter extends Writer {
+	private ChatSession session;
+	private StringBuilder buffer = new StringBuilder();
+
+	/**
+	 * Constructor which allows to set the session to write to.
+	 * @param session Destination session.
+	 */
+	SessionWriter(ChatSession session) {
+		this.session = session;
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) {
+		buffer.append(cbuf, off, len);
+	}
+
+	@Override
+	public void flush() {
+		if (buffer.length() > 0) {
+			session.send(ByteBuffer.wrap(buffer.toString().getBytes()));
+			buffer.setLength(0);
+		}
+	}
+
+	@Override
+	public void close() {
+		flush();
+	}
+}
@@ -0,0 +1,133 @@
+package http.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory copy of the files of the web root, so the workers don't read the disk for each request.<br>
+ * A cached file is used only while its length and modification time are unchanged, otherwise the worker reads the disk as usual.
+ * @author Antonio Terpin
+ */
+public class ContentCache {
+	/**
+	 * Content of a file, as it was when cached.
+	 */
+	static final class Entry {
+		final byte[] content;
+		final long lastModified;
+
+		Entry(byte[] content, long lastModified) {
+			this.content = content;
+			this.lastModified = lastModified;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Entry> files = new ConcurrentHashMap<String, Entry>();
+	private final long maxFileSize, maxTotalSize;
+	private long totalSize = 0; // guarded by this
+
+	/**
+	 * Constructor which allows to set the limits of the cache.
+	 * @param maxFileSize Files larger than this (bytes) are not cached.
+	 * @param maxTotalSize Maximum number of bytes cached.
+	 */
+	public ContentCache(long maxFileSize, long maxTotalSize) {
+		this.maxFileSize = maxFileSize;
+		this.maxTotalSize = maxTotalSize;
+	}
+
+	/**
+	 * This method loads all the files of a folder and of its subfolders, as long as the limits allow.
+	 * @param root The folder.
+	 * @return loaded Number of files loaded.
+	 */
+	public int preload(File root) {
+		int loaded = 0;
+		File[] children = root.listFiles();
+		if (children == null) {
+			return 0;
+		}
+		for (File f : children) {
+			if (f.isDirectory()) {
+				loaded += preload(f);
+			} else if (load(f)) {
+				loaded++;
+			}
+		}
+		return loaded;
+	}
+
+	/**
+	 * This method loads a file, if it is not too large for the cache.
+	 * @param f The file.
+	 * @return loaded True if the file is in the cache.
+	 */
+	public boolean load(File f) {
+		long length = f.length(), lastModified = f.lastModified();
+		if (length > maxFileSize) {
+			return false;
+		}
+		synchronized (this) {
+			if (totalSize + length > maxTotalSize) {
+				return false;
+			}
+			totalSize += length;
+		}
+		try {
+			Entry previous = files.put(key(f), new Entry(Files.readAllBytes(f.toPath()), lastModified));
+			if (previous != null) {
+				release(previous.content.length);
+			}
+			return true;
+		} catch (IOException e) {
+			release(length);
+			return false;
+		}
+	}
+
+	/**
+	 * This method retrieves the content of a file, if cached and not changed since.
+	 * @param f The file.
+	 * @return content The bytes of the file, null if the disk has to be read.
+	 */
+	public byte[] get(File f) {
+		Entry entry = files.get(key(f));
+		if (entry == null) {
+			return null;
+		}
+		if (entry.lastModified != f.lastModified() || entry.content.length != f.length()) {
+			if (files.remove(key(f), entry)) {
+				release(entry.content.length); // stale, the next preload can take it again
+			}
+			return null;
+		}
+		return entry.content;
+	}
+
+	/**
+	 * Method to retrieve the number of cached files.
+	 * @return size Number of files.
+	 */
+	public int size() {
+		return files.size();
+	}
+
+	/**
+	 * Method to retrieve the cached bytes.
+	 * @return totalSize Bytes of all the cached files.
+	 */
+	public synchronized long getTotalSize() {
+		return totalSize;
+	}
+
+	// the files are looked up by absolute path
+	private static String key(File f) {
+		return f.getAbsolutePath();
+	}
+
+	private synchronized void release(long length) {
+		totalSize -= length;
+	}
+}
@@ -0,0 +1,30 @@
+package http.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight recorder event of a connection handed to a worker by an acceptor: the time between the accept and the start of the worker
+ * (TLS wrapping and thread creation), during which the acceptor doesn't accept.
+ * @author Antonio Terpin
+ */
+@Name("http.server.Accept")
+@Label("HTTP Accept")
+@Category({ "Application Server", "HTTP" })
+@Description("A connection accepted and handed to its worker")
+@Threshold("1 ms")
+@StackTrace(false)
+class HttpAcceptEvent extends jdk.jfr.Event {
+	@Label("Acceptor")
+	int acceptor;
+
+	@Label("Client")
+	String client;
+
+	@Label("TLS")
+	boolean tls;
+}
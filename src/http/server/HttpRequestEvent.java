@@ -0,0 +1,39 @@
+package http.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight recorder event of a request served by an HttpWorker, from the connection to the log record.<br>
+ * The event is created and begun for every request; with the recording off (or the request under the threshold) it is never filled
+ * and the JIT removes it, so it costs nothing.
+ * @author Antonio Terpin
+ */
+@Name("http.server.Request")
+@Label("HTTP Request")
+@Category({ "Application Server", "HTTP" })
+@Description("A request served by an HTTP worker, from the connection to the log record")
+@Threshold("10 ms")
+@StackTrace(false)
+class HttpRequestEvent extends jdk.jfr.Event {
+	@Label("Method")
+	String method;
+
+	@Label("Resource")
+	String resource;
+
+	@Label("Status")
+	int status;
+
+	@Label("Bytes Sent")
+	@DataAmount
+	long bytes;
+
+	@Label("Client")
+	String client;
+}
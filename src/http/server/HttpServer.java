@@ -2,8 +2,14 @@ package http.server;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
+import chat.server.ChatServer;
 import logger.Logger;
+import net.ListenerGroup;
+import net.TlsContext;
 
 /**
  * HTTP server which listens for connections and forks a new HttpWorker at each connection.
@@ -13,6 +19,30 @@ public class HttpServer implements Runnable {
 	private int serverPort = 9000;
 	private Logger logger = new Logger("log/httpLog.txt"); // instance of logger
 	public boolean running = true;
+	// chat server the WebSocket clients are handed to, null if the endpoint is disabled
+	private ChatServer chatServer = null;
+	/**
+	 * Acceptor threads and accept backlog of each listening channel (0 for the system default).<br>
+	 * Defaults are the system properties http.acceptors (1) and http.acceptBacklog (0), see ListenerGroup.
+	 */
+	private int acceptors = Integer.getInteger("http.acceptors", 1), acceptBacklog = Integer.getInteger("http.acceptBacklog", 0);
+	/**
+	 * Files of the web root kept in memory, filled by the warm-up: files larger than http.cacheMaxFileSize (1 MB) are not cached,
+	 * and at most http.cacheMaxSize (64 MB) bytes are.
+	 */
+	private ContentCache cache = new ContentCache(Long.getLong("http.cacheMaxFileSize", 1 << 20), Long.getLong("http.cacheMaxSize", 64 << 20));
+	/**
+	 * Iterations of the warm-up, done before listening (see HttpWarmUp). Default is the system property http.warmUp (0, no warm-up).
+	 */
+	private int warmUp = Integer.getInteger("http.warmUp", 0);
+	/**
+	 * Log of the slow requests, with the phases of each one (see SlowRequestLog.fromProperties).
+	 */
+	private SlowRequestLog slowLog = SlowRequestLog.fromProperties();
+	// TLS of the connections, null for plaintext
+	private TlsContext tls = null;
+	// released once the server is listening
+	private final CountDownLatch listening = new CountDownLatch(1);
 	
 	/**
 	 * Constructor which allows to choose the port the server has to run on. Default is 8080.
@@ -30,48 +60,171 @@ public class HttpServer implements Runnable {
 		return serverPort;
 	}
 	
+	/**
+	 * Method to share the logger of another server, before running the server (a log file must have a single logger).
+	 * @param logger The logger of the requests.
+	 */
+	public void setLogger(Logger logger) {
+		this.logger = logger;
+	}
+	
+	/**
+	 * Method to retrieve the logger of the requests.
+	 * @return logger The logger of the requests.
+	 */
+	public Logger getLogger() {
+		return logger;
+	}
+	
+	/**
+	 * Method to share the slow request log of another server, before running the server.
+	 * @param slowLog The log of the slow requests.
+	 */
+	public void setSlowRequestLog(SlowRequestLog slowLog) {
+		this.slowLog = slowLog;
+	}
+	
+	/**
+	 * Method to retrieve the log of the slow requests, for example to change the threshold.
+	 * @return slowLog The log of the slow requests.
+	 */
+	public SlowRequestLog getSlowRequestLog() {
+		return slowLog;
+	}
+	
+	/**
+	 * Method to enable the WebSocket endpoint (HttpWorker.webSocketPath): the upgraded connections join the broadcast chat of the given server.
+	 * @param chatServer The chat server, null to disable the endpoint.
+	 */
+	public void setChatServer(ChatServer chatServer) {
+		this.chatServer = chatServer;
+	}
+	
+	/**
+	 * Method to set the acceptor threads, before running the server.
+	 * @param acceptors Number of acceptor threads, each with its own listening channel where SO_REUSEPORT is available.
+	 * @param backlog Maximum number of connections waiting to be accepted by each channel, 0 for the system default.
+	 */
+	public void setAcceptors(int acceptors, int backlog) {
+		this.acceptors = acceptors;
+		this.acceptBacklog = backlog;
+	}
+	
+	/**
+	 * Method to serve HTTPS, before running the server: each connection is wrapped in a TlsSocket, the handshake is done by its worker.
+	 * @param tls The TLS configuration (see TlsContext.fromProperties), null for plaintext.
+	 */
+	public void setTls(TlsContext tls) {
+		this.tls = tls;
+	}
+	
+	/**
+	 * Method to retrieve the TLS configuration and its handshake statistics.
+	 * @return tls The TLS configuration, null for plaintext.
+	 */
+	public TlsContext getTls() {
+		return tls;
+	}
+	
+	/**
+	 * Method to set the warm-up, before running the server.
+	 * @param iterations Number of times each synthetic request is served before listening, 0 for no warm-up.
+	 */
+	public void setWarmUp(int iterations) {
+		this.warmUp = iterations;
+	}
+	
+	/**
+	 * This method waits for the server to listen, after the warm-up.
+	 * @param timeout Maximum time to wait.
+	 * @param unit Unit of the timeout.
+	 * @return listening True if the server is listening, false if the time elapsed.
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public boolean awaitListening(long timeout, TimeUnit unit) throws InterruptedException {
+		return listening.await(timeout, unit);
+	}
+	
 	/**
 	 * Implementation of Runnable interface.<br>
 	 * A welcoming socket which listens for incoming connections and demands them to an HttpWorker.
 	 */
 	@Override
 	public void run() {
-		ServerSocket serverSocket = null;
+		ListenerGroup group = null;
 		try {
-			// create welcoming socket
-			serverSocket = new ServerSocket(getServerPort());
-			System.out.println("HTTP server running on port: " + getServerPort());
-			
-			// listen for connections
-			Socket clientSocket = null; 
-			System.out.println ("WS: Waiting for connection.....");
-			try { 
-				while(running)
-				{
-					// connect to client
-					clientSocket = serverSocket.accept();
-					// if still running
-					if(running) {
-						// satisfy client
-						HttpWorker w = new HttpWorker(clientSocket, logger);
-						Thread t = new Thread(w);
-						t.start();
-					} else {
-						clientSocket.close();
-					}
-				}
-			} 
-			catch (IOException e) 
-			{ 
-				System.err.println("WS: Accept failed."); 
-			} 
-			try {
-				serverSocket.close();
-			} catch (IOException e) {
-				System.out.println("WS: Error turning off the server");
-			} 
+			long start = System.nanoTime();
+			if (warmUp > 0) {
+				// before listening, so no client is served by cold code
+				int served = HttpWarmUp.run(cache, new File("www"), warmUp);
+				System.out.println("HTTP server warmed up in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms ("
+						+ served + " synthetic requests, " + cache.size() + " files cached)");
+			}
+			// create welcoming sockets
+			group = ListenerGroup.open(getServerPort(), acceptors, acceptBacklog);
+			if (tls != null) {
+				tls.register(getServerPort());
+			}
+			listening.countDown();
+			System.out.println((tls != null ? "HTTPS" : "HTTP") + " server running on port: " + getServerPort() + " (" + group
+					+ (tls != null ? ", " + tls : "") + "), ready in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
 		} catch (IOException e) {
 			System.out.println(e.getMessage());
+			return;
 		}
+		
+		// listen for connections
+		System.out.println ("WS: Waiting for connection.....");
+		// the other acceptors have their own threads, this thread is the first one
+		final ListenerGroup listeners = group;
+		for (int i = 1; i < group.getAcceptors(); i++) {
+			final int acceptor = i;
+			new Thread(() -> accept(listeners, acceptor), "http-acceptor-" + i).start();
+		}
+		accept(group, 0);
+		group.close();
+		if (tls != null) {
+			tls.unregister();
+		}
+	}
+	
+	// accept the connections of a listener and demand them to the workers, until the server is stopped
+	private void accept(ListenerGroup group, int acceptor) {
+		Socket clientSocket = null; 
+		try { 
+			while(running)
+			{
+				// connect to client
+				SocketChannel channel = group.accept(acceptor);
+				// from the accept to the start of the worker, the acceptor doesn't accept
+				HttpAcceptEvent event = new HttpAcceptEvent();
+				event.begin();
+				clientSocket = (tls != null) ? tls.wrap(channel) : channel.socket();
+				// if still running
+				if(running) {
+					// satisfy client
+					HttpWorker w = new HttpWorker(clientSocket, logger, chatServer, cache);
+					w.setSlowRequestLog(slowLog);
+					Thread t = new Thread(w);
+					t.start();
+					event.end();
+					if (event.shouldCommit()) {
+						event.acceptor = acceptor;
+						event.client = String.valueOf(clientSocket.getInetAddress());
+						event.tls = (tls != null);
+						event.commit();
+					}
+				} else {
+					clientSocket.close();
+					group.close(); // unblock the other acceptors
+				}
+			}
+		} 
+		catch (IOException e) 
+		{ 
+			if (running) {
+				System.err.println("WS: Accept failed."); 
+			}
+		} 
 	}
 }
@@ -0,0 +1,69 @@
+package http.server;
+
+import java.io.File;
+import java.io.IOException;
+
+import logger.Logger;
+import net.MemorySocket;
+
+/**
+ * Warm-up of the HTTP server, done before it listens: the files of the web root (error pages included) are loaded in memory
+ * and synthetic requests run through the request parser and the response builder, so the first clients don't pay for class loading,
+ * interpretation and disk reads.<br>
+ * The synthetic requests are logged to a temporary file, the real log is not touched.
+ * @author Antonio Terpin
+ */
+class HttpWarmUp {
+	// requests covering the common responses: files, folders, HEAD, errors, the log page
+	private static final String[] requests = {
+		"GET / HTTP/1.1\r\nHost: localhost\r\nUser-Agent: warm-up\r\n\r\n",
+		"GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n",
+		"GET /style/logStyle.css HTTP/1.1\r\nHost: localhost\r\n\r\n",
+		"HEAD / HTTP/1.1\r\nHost: localhost\r\n\r\n",
+		"GET /missing.html HTTP/1.1\r\nHost: localhost\r\n\r\n",
+		"DELETE / HTTP/1.1\r\nHost: localhost\r\n\r\n",
+		"GET /log.html HTTP/1.1\r\nHost: localhost\r\n\r\n",
+		"BAD\r\n\r\n"
+	};
+
+	/**
+	 * This method warms the server up.
+	 * @param cache Cache to fill with the web root.
+	 * @param root The web root.
+	 * @param iterations Number of times each synthetic request is served.
+	 * @return requests Number of synthetic requests served.
+	 * @throws IOException if the temporary log can't be created.
+	 */
+	static int run(ContentCache cache, File root, int iterations) throws IOException {
+		cache.preload(root);
+		int served = 0;
+		File log = null;
+		Logger logger = null;
+		try {
+			for (int i = 0; i < iterations; i++) {
+				// the log page reads the whole log, so a new one is started every few iterations
+				if (i % 64 == 0) {
+					if (log != null) {
+						logger.close();
+						log.delete();
+					}
+					log = File.createTempFile("http-warm-up", ".txt");
+					log.deleteOnExit();
+					logger = new Logger(log.getPath());
+				}
+				for (String request : requests) {
+					HttpWorker worker = new HttpWorker(new MemorySocket(request.getBytes()), logger, null, cache);
+					worker.setQuiet(true);
+					worker.run();
+					served++;
+				}
+			}
+		} finally {
+			if (log != null) {
+				logger.close();
+				log.delete();
+			}
+		}
+		return served;
+	}
+}
@@ -4,9 +4,13 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 
+import chat.server.AdmissionControl;
+import chat.server.ChatServer;
+import http.server.websocket.WebSocket;
 import logger.Logger;
 import logger.LoggerCallback;
 import logger.utils.ChangeablePrimitive;
+import net.PooledOutputStream;
 
 /**
  * Http worker which provides response to GET and HEAD requests.
@@ -19,10 +23,23 @@ public class HttpWorker implements Runnable {
 	private Map<String, Object> request = null;
 	// ways to communicate to client
 	private PrintWriter sender = null;
-	private OutputStream out = null; // to send bytes
+	private PooledOutputStream out = null; // to send bytes, buffered in a direct buffer of the shared pool
 	private BufferedReader receiver = null;
 	private Logger logger; // logger
 	private HTTPLoggerCallback httpL = new HTTPLoggerCallback(); // create callback class to user the logger
+	// WebSocket endpoint, bridged to the broadcast chat
+	private String webSocketPath = "/chat";
+	private ChatServer chatServer = null;
+	private boolean upgraded = false; // true if the connection has been handed to the chat server
+	// files of the web root kept in memory, null to always read the disk
+	private ContentCache cache = null;
+	private boolean quiet = false; // true to print nothing (synthetic requests)
+	// size of the pooled output buffer: a response is written in chunks of this size
+	private static final int outputBufferSize = 16384;
+	// log of the slow requests and phases of this request, null if not traced
+	private SlowRequestLog slowLog = null;
+	private RequestTrace trace = null;
+	private long bytesSent = 0;
 
 	/**
 	 * Constructor that allows to provide the client socket and the logger to work on. 
@@ -34,18 +51,63 @@ public class HttpWorker implements Runnable {
 		this.logger = logger;
 	}
 
+	/**
+	 * Constructor that allows to provide the client socket, the logger and the chat server of the WebSocket endpoint.
+	 * @param clientSocket The client socket which will send the GET request.
+	 * @param logger Logger to save logs created from each connection.
+	 * @param chatServer Chat server the WebSocket clients join, null if the endpoint is disabled.
+	 */
+	public HttpWorker(Socket clientSocket, Logger logger, ChatServer chatServer) {
+		this(clientSocket, logger);
+		this.chatServer = chatServer;
+	}
+
+	/**
+	 * Constructor that allows to provide the client socket, the logger, the chat server of the WebSocket endpoint and the cached files.
+	 * @param clientSocket The client socket which will send the GET request.
+	 * @param logger Logger to save logs created from each connection.
+	 * @param chatServer Chat server the WebSocket clients join, null if the endpoint is disabled.
+	 * @param cache Files of the web root kept in memory, null to always read the disk.
+	 */
+	public HttpWorker(Socket clientSocket, Logger logger, ChatServer chatServer, ContentCache cache) {
+		this(clientSocket, logger, chatServer);
+		this.cache = cache;
+	}
+
+	/**
+	 * Method to stop printing the progress of the request, for the synthetic requests.
+	 * @param quiet True to print nothing.
+	 */
+	public void setQuiet(boolean quiet) {
+		this.quiet = quiet;
+	}
+
+	/**
+	 * Method to trace the phases of the request, logged if the request is slow or sampled.
+	 * @param slowLog The log of the slow requests, null for no tracing.
+	 */
+	public void setSlowRequestLog(SlowRequestLog slowLog) {
+		this.slowLog = slowLog;
+	}
+
 	/**
 	 * The HttpWorker receive the request, parse the header and compute the request to provide, if possible, a response.<br>
 	 * The request needed is a common HTTP request.
 	 */
 	@SuppressWarnings("unchecked")
 	public void run() {
-		System.out.println ("WS: Connection successful! Waiting for input..");
+		print("WS: Connection successful! Waiting for input..");
+		HttpRequestEvent event = new HttpRequestEvent();
+		event.begin();
+		if (slowLog != null && slowLog.isEnabled()) {
+			trace = new RequestTrace();
+		}
 		try {
-			out = clientSocket.getOutputStream();
+			out = new PooledOutputStream(clientSocket, outputBufferSize);
 			sender = new PrintWriter(out,true);
 			receiver = new BufferedReader(new InputStreamReader(clientSocket.getInputStream())); 
 			request = getRequest(); // get client request
+			mark(RequestTrace.Phase.PARSE);
 			String log = "";
 			if (request != null) {
 				// there is a request, provide response if possible
@@ -54,7 +116,8 @@ public class HttpWorker implements Runnable {
 				// if get request returns null it is because of a bad request error
 				log = sendBadRequest();
 			}
-			System.out.println("WS: Response: " + log);
+			mark(RequestTrace.Phase.BODY); // the responses not written by sendResponse
+			print("WS: Response: " + log);
 			String resource = "";
 			try {
 				// try to get the requested resource
@@ -62,17 +125,39 @@ public class HttpWorker implements Runnable {
 			} catch(NullPointerException ex) {}
 			//if(r == null) { r = ""; } // not necessary
 			logger.write(httpL, clientSocket.getLocalAddress(), log, resource); // writing the log
-			System.out.println("WS: Closing connection..");
+			mark(RequestTrace.Phase.LOG);
+			if (trace != null) {
+				slowLog.finished(trace, clientSocket.getInetAddress(), getRequestLine(), log);
+			}
+			event.end();
+			if (event.shouldCommit()) {
+				event.method = (request != null) ? (String) ((Map<String, Object>) request.get(HEADER)).get(METHOD) : null;
+				event.resource = resource;
+				event.status = statusOf(log);
+				event.bytes = bytesSent;
+				event.client = String.valueOf(clientSocket.getInetAddress());
+				event.commit();
+			}
+			if (upgraded) {
+				out.close(); // only the buffer, the connection now belongs to the chat server
+				return;
+			}
+			print("WS: Closing connection..");
 			// closing connection (no keep alive, single tcp connection for each request).
 			sender.close();
 			receiver.close();
 		} catch (IOException ioe) {
-			System.out.println("WS: IOException on socket: " + ioe.getMessage());
+			print("WS: IOException on socket: " + ioe.getMessage());
 		} 
+		try {
+			if (out != null) {
+				out.close(); // gives the buffer back to the pool, if not done yet
+			}
+		} catch (IOException ioe) {}
 		try {
 			clientSocket.close(); 
 		} catch (IOException ioe) {
-			System.out.println("WS: IOException on socket: " + ioe.getMessage());
+			print("WS: IOException on socket: " + ioe.getMessage());
 		}
 	}
 
@@ -108,6 +193,10 @@ public class HttpWorker implements Runnable {
 	 * @return Log The log which represents the result of the response.
 	 */
 	protected String provideGetResponse(String resourcePath) {
+		if(resourcePath.equals(webSocketPath) && "websocket".equalsIgnoreCase(getHeaderField("Upgrade"))) {
+			// the browser wants to join the chat
+			return provideWebSocketHandshake();
+		}
 		if(resourcePath.equals(logFileRequest)) {
 			// returns log file built at runtime (just for try, not really a good idea in a real implementation..)
 			return provideLogFileAsHtml();
@@ -128,6 +217,10 @@ public class HttpWorker implements Runnable {
 				return sendBadRequest(); // something went wrong because of bad format
 			}
 			// if was possible to obtain the header, provide the requested resource
+			byte[] content = (cache == null) ? null : cache.get(f);
+			if (content != null) {
+				return sendResponse(responseHeader, content); // from memory
+			}
 			FileInputStream reader;
 			try {
 				reader = new FileInputStream(f.getAbsolutePath());
@@ -143,6 +236,57 @@ public class HttpWorker implements Runnable {
 		return sendFileNotFound(); // file not found error
 	}
 	
+	/**
+	 * Method to accept a WebSocket upgrade request (RFC 6455) and hand the connection to the chat server.
+	 * @return Log The log which represents the result of the response.
+	 */
+	protected String provideWebSocketHandshake() {
+		String key = getHeaderField("Sec-WebSocket-Key"), connection = getHeaderField("Connection");
+		if (key == null || connection == null || !connection.toLowerCase().contains("upgrade")
+				|| !WebSocket.VERSION.equals(getHeaderField("Sec-WebSocket-Version"))) {
+			return sendBadRequest(); // not a valid handshake
+		}
+		if (chatServer == null) {
+			return sendNotImplemented(); // no chat server to join
+		}
+		AdmissionControl admission = chatServer.getAdmissionControl();
+		if (admission.tryAdmit(clientSocket.getInetAddress()) != AdmissionControl.Result.ADMITTED) {
+			return sendServiceUnavailable();
+		}
+		String log = HTTPv + " 101 Switching Protocols";
+		String response = log + "\r\n"
+				+ "Server: " + name + "\r\n"
+				+ "Upgrade: websocket\r\n"
+				+ "Connection: Upgrade\r\n"
+				+ "Sec-WebSocket-Accept: " + WebSocket.acceptKey(key) + "\r\n\r\n";
+		try {
+			out.write(response.getBytes());
+			out.flush();
+		} catch (IOException e) {
+			admission.release(clientSocket.getInetAddress());
+			return HTTPv + " 500 Internal Server Error";
+		}
+		chatServer.connectWebSocket(clientSocket);
+		upgraded = true;
+		return log;
+	}
+
+	/**
+	 * Method to retrieve a header field of the request, the name is case-insensitive.
+	 * @param name Name of the field.
+	 * @return value The value of the field, null if not present.
+	 */
+	@SuppressWarnings("unchecked")
+	protected String getHeaderField(String name) {
+		Map<String, Object> header = (Map<String, Object>) request.get(HEADER);
+		for (Map.Entry<String, Object> field : header.entrySet()) {
+			if (field.getKey().equalsIgnoreCase(name)) {
+				return (String) field.getValue();
+			}
+		}
+		return null;
+	}
+
 	/**
 	 * Method to provide response to HEAD request.
 	 * @param resourcePath The path of the requested resource.
@@ -165,10 +309,14 @@ public class HttpWorker implements Runnable {
 				return sendBadRequest(); // something went wrong because of bad format
 			}
 			// send only the header (the standard says that optionally is possible to omit the content-length, but in this implementation is sent) 
-			for (String field : responseHeader) {
-				sender.println(field);
+			try {
+				mark(RequestTrace.Phase.RESOLVE);
+				writeHeader(responseHeader);
+				out.flush();
+				mark(RequestTrace.Phase.HEADER);
+			} catch (IOException e) {
+				return HTTPv + " 500 Internal Server Error";
 			}
-			sender.println(""); // end of header
 			return log; // all was fine :)
 		}
 		return sendFileNotFound(); // file not found error
@@ -200,16 +348,15 @@ public class HttpWorker implements Runnable {
 	 * @return Log If all was fine returns the log in the first header line, otherwise return the 500 error log. 
 	 */
 	protected String sendResponse(String[] header, FileInputStream reader) {
-		// send header
-		for (String line: header) {
-			sender.println(line);
-		}
-		sender.println(""); // blank line before body
-		try {
-			// send each byte of the file
-			while((reader.available()) != 0) {
-				out.write(reader.read());
-			}
+		mark(RequestTrace.Phase.RESOLVE);
+		try (FileInputStream file = reader) {
+			writeHeader(header);
+			mark(RequestTrace.Phase.HEADER);
+			// the file is read straight into the output buffer, header and body go out together
+			long sent = out.transferFrom(file.getChannel());
+			out.flush();
+			sent(sent);
+			mark(RequestTrace.Phase.BODY);
 		} catch (IOException e) {
 			// return sendInternalServer();
 			// if an error occurs it may go into a loop...
@@ -219,6 +366,81 @@ public class HttpWorker implements Runnable {
 		return header[0];
 	}
 
+	/**
+	 * Centralized method to send responses whose body is already in memory.
+	 * @param header The header of the response.
+	 * @param content The body.
+	 * @return Log If all was fine returns the log in the first header line, otherwise return the 500 error log.
+	 */
+	protected String sendResponse(String[] header, byte[] content) {
+		mark(RequestTrace.Phase.RESOLVE);
+		try {
+			writeHeader(header);
+			mark(RequestTrace.Phase.HEADER);
+			out.write(content);
+			out.flush();
+			sent(content.length);
+			mark(RequestTrace.Phase.BODY);
+		} catch (IOException e) {
+			return HTTPv + " 500 Internal Server Error";
+		}
+		return header[0];
+	}
+
+	// write the header lines and the blank line before the body, they are sent with the body
+	private void writeHeader(String[] header) throws IOException {
+		StringBuilder lines = new StringBuilder();
+		for (String line: header) {
+			lines.append(line).append(System.lineSeparator());
+		}
+		lines.append(System.lineSeparator()); // blank line before body
+		byte[] bytes = lines.toString().getBytes();
+		out.write(bytes);
+		sent(bytes.length);
+	}
+
+	// end a phase of the request, if traced
+	private void mark(RequestTrace.Phase phase) {
+		if (trace != null) {
+			trace.end(phase);
+		}
+	}
+
+	// count the bytes sent to the client
+	private void sent(long bytes) {
+		bytesSent += bytes;
+		if (trace != null) {
+			trace.sent(bytes);
+		}
+	}
+
+	// status code of a response log (such as "HTTP/1.1 200 OK"), 0 if there is none
+	private static int statusOf(String log) {
+		String[] parts = log.split(" ", 3);
+		try {
+			return (parts.length > 1) ? Integer.parseInt(parts[1]) : 0;
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	// first line of the request, null if not valid
+	@SuppressWarnings("unchecked")
+	private String getRequestLine() {
+		if (request == null) {
+			return null;
+		}
+		Map<String, Object> header = (Map<String, Object>) request.get(HEADER);
+		return header.get(METHOD) + " " + header.get(RESOURCE) + " " + header.get(PROTOCOL_VERSION);
+	}
+
+	// print the progress of the request, unless quiet
+	private void print(String message) {
+		if (!quiet) {
+			System.out.println(message);
+		}
+	}
+
 	/**
 	 * Method to read the request from the client and save it on an associative array.
 	 * @return request The request as an associative array.
@@ -232,7 +454,7 @@ public class HttpWorker implements Runnable {
 		try {
 			// the first line is composed by three elements separated from a white space
 			String[] firstLine = receiver.readLine().split(" ");
-			System.out.println("WS: REQUEST: " + firstLine[0] + " " + firstLine[1] + " " + firstLine[2]);
+			print("WS: REQUEST: " + firstLine[0] + " " + firstLine[1] + " " + firstLine[2]);
 			header.put(METHOD, firstLine[0]);
 			header.put(RESOURCE, firstLine[1]);
 			header.put(PROTOCOL_VERSION, firstLine[2]);
@@ -301,6 +523,15 @@ public class HttpWorker implements Runnable {
 		return sendError(HTTPv + " 501 NOT IMPLEMENTED ERROR", 501);
 	}
 
+	/**
+	 * 503: Service Unavailable<br>
+	 * The server is currently unable to handle the request due to a temporary overloading.
+	 * @return Log Response log
+	 */
+	protected String sendServiceUnavailable() {
+		return sendError(HTTPv + " 503 SERVICE UNAVAILABLE", 503);
+	}
+
 	/**
 	 * Centralized method to send errors.
 	 * @param log Response log
@@ -310,11 +541,16 @@ public class HttpWorker implements Runnable {
 	protected String sendError(String log, int statusCode) {
 		File f = new File(relativePath + "/" + errorsFolder + "/" + statusCode + ".html");
 		String[] responseHeader = getResponseHeader(f, log);
+		byte[] content = (cache == null) ? null : cache.get(f);
+		if (content != null) {
+			sendResponse(responseHeader, content); // from memory
+			return log;
+		}
 		try {
 			sendResponse(responseHeader, new FileInputStream(f));
 		} catch (FileNotFoundException e) {
 			// files has to be found
-			System.out.println("WS: Somebody changed errors files position..");
+			print("WS: Somebody changed errors files position..");
 			return HTTPv + "500 INTERNAL SERVER ERROR";
 		}
 		// error page correctly sent
@@ -0,0 +1,82 @@
+package http.server;
+
+import java.util.Locale;
+
+/**
+ * Timing of the phases of a request, in the order they happen: each mark closes the current phase, so the phases cover the whole request
+ * and a phase not reached by a response (for example the body of a HEAD) is just zero.<br>
+ * A trace costs a clock read per phase and is used by the thread of the request only.
+ * @author Antonio Terpin
+ */
+class RequestTrace {
+	/**
+	 * Phases of a request.<br>
+	 * PARSE: reading and parsing the request (the TLS handshake included).<br>
+	 * RESOLVE: finding the resource (file system or cache) and building the header.<br>
+	 * HEADER: writing the header.<br>
+	 * BODY: writing the body and flushing the response.<br>
+	 * LOG: writing the record of the request to the log.
+	 */
+	enum Phase { PARSE, RESOLVE, HEADER, BODY, LOG }
+
+	private final long start = System.nanoTime();
+	private long last = start;
+	private final long[] nanos = new long[Phase.values().length];
+	private long bytes = 0;
+
+	/**
+	 * This method closes a phase: the time since the previous mark is added to it.
+	 * @param phase The phase just ended.
+	 */
+	void end(Phase phase) {
+		long now = System.nanoTime();
+		nanos[phase.ordinal()] += now - last;
+		last = now;
+	}
+
+	/**
+	 * This method counts the bytes sent to the client.
+	 * @param sent Number of bytes written.
+	 */
+	void sent(long sent) {
+		bytes += sent;
+	}
+
+	/**
+	 * Method to retrieve the bytes sent to the client.
+	 * @return bytes Number of bytes of the response.
+	 */
+	long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Method to retrieve the duration of the request until the last mark.
+	 * @return nanos Duration in nanoseconds.
+	 */
+	long getTotalNanos() {
+		return last - start;
+	}
+
+	/**
+	 * Method to retrieve the duration of a phase.
+	 * @param phase The phase.
+	 * @return nanos Duration in nanoseconds.
+	 */
+	long getNanos(Phase phase) {
+		return nanos[phase.ordinal()];
+	}
+
+	/**
+	 * This method formats the phases, for example "TOTAL: 12.345 ms; PARSE: 0.120 ms; RESOLVE: 0.050 ms; ...".
+	 * @return phases The durations in milliseconds.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder(String.format(Locale.ROOT, "TOTAL: %.3f ms", getTotalNanos() / 1e6));
+		for (Phase phase : Phase.values()) {
+			text.append(String.format(Locale.ROOT, "; %s: %.3f ms", phase, nanos[phase.ordinal()] / 1e6));
+		}
+		return text.toString();
+	}
+}
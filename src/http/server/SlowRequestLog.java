@@ -0,0 +1,129 @@
+package http.server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import logger.Logger;
+import logger.LoggerCallback;
+
+/**
+ * Log of the slow requests of the HTTP server, separated from the request log: each record has the phases of the request
+ * (see RequestTrace), the resource, the client, the response and the bytes sent.<br>
+ * Besides the slow requests, one request out of a sampling interval is logged whatever its duration, as a reference of the normal phases.
+ * Only the slow and sampled requests are formatted and written, the others cost their clock reads.
+ * @author Antonio Terpin
+ */
+public class SlowRequestLog {
+	private final Logger logger;
+	private volatile long thresholdNanos;
+	private volatile int sampling;
+	private final AtomicLong requests = new AtomicLong();
+	private final LongAdder slow = new LongAdder();
+	private final SlowLoggerCallback callback = new SlowLoggerCallback();
+
+	/**
+	 * Constructor which allows to set the log file, the threshold and the sampling.
+	 * @param logFilePath File of the slow requests.
+	 * @param thresholdMillis Requests lasting more are logged, 0 to log none.
+	 * @param sampling One request out of this number is logged anyway, 0 for no sampling.
+	 */
+	public SlowRequestLog(String logFilePath, long thresholdMillis, int sampling) {
+		this.logger = new Logger(logFilePath);
+		this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+		this.sampling = sampling;
+	}
+
+	/**
+	 * This method reads the configuration from the system properties http.slowLog (log/httpSlowLog.txt),
+	 * http.slowRequestMillis (500) and http.traceSampling (0, no sampling).
+	 * @return log The slow request log.
+	 */
+	public static SlowRequestLog fromProperties() {
+		return new SlowRequestLog(System.getProperty("http.slowLog", "log/httpSlowLog.txt"), Long.getLong("http.slowRequestMillis", 500),
+				Integer.getInteger("http.traceSampling", 0));
+	}
+
+	/**
+	 * Method to know if requests have to be traced at all.
+	 * @return enabled True if slow requests or samples are logged.
+	 */
+	boolean isEnabled() {
+		return thresholdNanos > 0 || sampling > 0;
+	}
+
+	/**
+	 * Method to change the threshold of the slow requests.
+	 * @param thresholdMillis Requests lasting more are logged, 0 to log none.
+	 */
+	public void setThresholdMillis(long thresholdMillis) {
+		this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+	}
+
+	/**
+	 * Method to change the sampling.
+	 * @param sampling One request out of this number is logged anyway, 0 for no sampling.
+	 */
+	public void setSampling(int sampling) {
+		this.sampling = sampling;
+	}
+
+	/**
+	 * Method to retrieve the number of slow requests logged since the server started.
+	 * @return slow Number of slow requests.
+	 */
+	public long getSlowRequests() {
+		return slow.sum();
+	}
+
+	/**
+	 * Method to retrieve the logger of the slow requests, for example to read them.
+	 * @return logger The logger.
+	 */
+	public Logger getLogger() {
+		return logger;
+	}
+
+	/**
+	 * This method logs a finished request if it is slow or sampled.
+	 * @param trace Phases of the request.
+	 * @param client Address of the client.
+	 * @param request First line of the request, null if not valid.
+	 * @param response Response log (such as "HTTP/1.1 200 OK").
+	 */
+	void finished(RequestTrace trace, Object client, String request, String response) {
+		boolean isSlow = thresholdNanos > 0 && trace.getTotalNanos() > thresholdNanos;
+		int every = sampling;
+		boolean sampled = every > 0 && requests.incrementAndGet() % every == 0;
+		if (!isSlow && !sampled) {
+			return;
+		}
+		if (isSlow) {
+			slow.increment();
+		}
+		try {
+			logger.write(callback, isSlow ? "SLOW" : "SAMPLE", client, request, response, trace);
+		} catch (IOException e) {} // the request was served anyway
+	}
+
+	/**
+	 * Format of the records: "DATE: ...; SLOW; CLIENT: ...; REQUEST: GET / HTTP/1.1; RESPONSE: HTTP/1.1 200 OK; BYTES: ...; TOTAL: ...; PARSE: ...".
+	 */
+	private static class SlowLoggerCallback implements LoggerCallback {
+		@Override
+		public void write(BufferedWriter bw, Object... args) {
+			RequestTrace trace = (RequestTrace) args[4];
+			try {
+				bw.write("DATE: " + new Date() + "; " + args[0] + "; CLIENT: " + args[1] + "; REQUEST: " + args[2] + "; RESPONSE: " + args[3]
+						+ "; BYTES: " + trace.getBytes() + "; " + trace + "\n");
+			} catch (IOException e) {}
+		}
+
+		@Override
+		public void read(BufferedReader br, Object... args) {} // the records are read with any text tool
+	}
+}
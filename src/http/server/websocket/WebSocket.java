@@ -0,0 +1,96 @@
+package http.server.websocket;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * Constants and encoding of the WebSocket protocol (RFC 6455), server side.<br>
+ * Frames sent by the server are never masked and never fragmented.
+ * @author Antonio Terpin
+ */
+public final class WebSocket {
+	/**
+	 * Opcodes of the frames.
+	 */
+	public static final int CONTINUATION = 0x0, TEXT = 0x1, BINARY = 0x2, CLOSE = 0x8, PING = 0x9, PONG = 0xA;
+	/**
+	 * Status codes of the close frames.
+	 */
+	public static final int NORMAL_CLOSURE = 1000, GOING_AWAY = 1001, PROTOCOL_ERROR = 1002, UNSUPPORTED_DATA = 1003,
+			INVALID_PAYLOAD = 1007, MESSAGE_TOO_BIG = 1009;
+	/**
+	 * Only version of the protocol supported.
+	 */
+	public static final String VERSION = "13";
+	// appended to the client key to compute the accept key
+	private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+	private WebSocket() {}
+
+	/**
+	 * This method computes the Sec-WebSocket-Accept value of the handshake response.
+	 * @param key The Sec-WebSocket-Key sent by the client.
+	 * @return accept Base64 of the SHA-1 of the key and the protocol GUID.
+	 */
+	public static String acceptKey(String key) {
+		try {
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			return Base64.getEncoder().encodeToString(sha1.digest((key.trim() + GUID).getBytes(StandardCharsets.US_ASCII)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e); // every Java platform provides SHA-1
+		}
+	}
+
+	/**
+	 * This method encodes a complete (final) frame.
+	 * @param opcode Opcode of the frame.
+	 * @param payload Payload, at most 125 bytes for control frames.
+	 * @return frame The encoded frame.
+	 */
+	public static byte[] encode(int opcode, byte[] payload) {
+		int length = payload.length, headerLength = length < 126 ? 2 : (length <= 0xFFFF ? 4 : 10);
+		byte[] frame = new byte[headerLength + length];
+		frame[0] = (byte) (0x80 | opcode); // FIN
+		if (length < 126) {
+			frame[1] = (byte) length;
+		} else if (length <= 0xFFFF) {
+			frame[1] = 126;
+			frame[2] = (byte) (length >>> 8);
+			frame[3] = (byte) length;
+		} else {
+			frame[1] = 127;
+			for (int i = 0; i < 8; i++) {
+				frame[2 + i] = (byte) ((long) length >>> (56 - 8 * i));
+			}
+		}
+		System.arraycopy(payload, 0, frame, headerLength, length);
+		return frame;
+	}
+
+	/**
+	 * This method encodes a text frame.
+	 * @param text The message.
+	 * @return frame The encoded frame.
+	 */
+	public static byte[] encodeText(String text) {
+		return encode(TEXT, text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * This method encodes a close frame.
+	 * @param code Status code of the closure.
+	 * @param reason Short description, truncated to fit a control frame.
+	 * @return frame The encoded frame.
+	 */
+	public static byte[] encodeClose(int code, String reason) {
+		byte[] text = reason.getBytes(StandardCharsets.UTF_8);
+		int length = Math.min(text.length, 123);
+		byte[] payload = new byte[2 + length];
+		payload[0] = (byte) (code >>> 8);
+		payload[1] = (byte) code;
+		System.arraycopy(text, 0, payload, 2, length); // may cut a character, the reason is informative only
+		return encode(CLOSE, payload);
+	}
+}
@@ -0,0 +1,30 @@
+package http.server.websocket;
+
+import java.io.IOException;
+
+/**
+ * Violation of the WebSocket protocol by the client, the connection has to be closed with the given status code.
+ * @author Antonio Terpin
+ */
+public class WebSocketException extends IOException {
+	private static final long serialVersionUID = 1L;
+	private final int closeCode;
+
+	/**
+	 * Constructor which allows to set the status code and the reason.
+	 * @param closeCode Status code of the close frame (see WebSocket).
+	 * @param reason Description of the violation.
+	 */
+	public WebSocketException(int closeCode, String reason) {
+		super(reason);
+		this.closeCode = closeCode;
+	}
+
+	/**
+	 * Method to retrieve the status code to close the connection with.
+	 * @return closeCode Status code of the close frame.
+	 */
+	public int getCloseCode() {
+		return closeCode;
+	}
+}
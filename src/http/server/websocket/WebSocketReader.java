@@ -0,0 +1,167 @@
+package http.server.websocket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reader of the frames sent by a WebSocket client (RFC 6455).<br>
+ * Payloads are unmasked and fragmented messages are reassembled; control frames, which can arrive between the fragments,
+ * are returned as soon as they are read.
+ * @author Antonio Terpin
+ */
+public class WebSocketReader {
+	private final DataInputStream in;
+	private final int maxMessageSize;
+	// fragments of the message being received, null if none
+	private ByteArrayOutputStream fragments = null;
+	private int fragmentedOpcode;
+
+	/**
+	 * A complete message or a control frame.
+	 */
+	public static class Message {
+		private final int opcode;
+		private final byte[] payload;
+
+		Message(int opcode, byte[] payload) {
+			this.opcode = opcode;
+			this.payload = payload;
+		}
+
+		/**
+		 * Method to retrieve the type of the message.
+		 * @return opcode TEXT, BINARY, CLOSE, PING or PONG (see WebSocket).
+		 */
+		public int getOpcode() {
+			return opcode;
+		}
+
+		/**
+		 * Method to retrieve the unmasked payload.
+		 * @return payload The payload.
+		 */
+		public byte[] getPayload() {
+			return payload;
+		}
+
+		/**
+		 * Method to retrieve the payload of a text message.
+		 * @return text The decoded payload.
+		 * @throws WebSocketException if the payload is not valid UTF-8.
+		 */
+		public String getText() throws WebSocketException {
+			try {
+				return StandardCharsets.UTF_8.newDecoder()
+						.onMalformedInput(CodingErrorAction.REPORT)
+						.onUnmappableCharacter(CodingErrorAction.REPORT)
+						.decode(ByteBuffer.wrap(payload)).toString();
+			} catch (CharacterCodingException e) {
+				throw new WebSocketException(WebSocket.INVALID_PAYLOAD, "Invalid UTF-8");
+			}
+		}
+
+		/**
+		 * Method to retrieve the status code of a close frame.
+		 * @return code The status code, NORMAL_CLOSURE if the frame has none.
+		 */
+		public int getCloseCode() {
+			return payload.length >= 2 ? ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF) : WebSocket.NORMAL_CLOSURE;
+		}
+	}
+
+	/**
+	 * Constructor which allows to set the stream and the maximum size of a message.
+	 * @param in Input stream of the client socket.
+	 * @param maxMessageSize Maximum number of bytes of a message, fragments included.
+	 */
+	public WebSocketReader(InputStream in, int maxMessageSize) {
+		this.in = new DataInputStream(in);
+		this.maxMessageSize = maxMessageSize;
+	}
+
+	/**
+	 * This method reads the next complete message or control frame.
+	 * @return message The message, null if the client closed the connection.
+	 * @throws WebSocketException if the client violated the protocol.
+	 * @throws IOException if the connection can't be read.
+	 */
+	public Message next() throws IOException {
+		while (true) {
+			int first = in.read();
+			if (first < 0) {
+				return null;
+			}
+			try {
+				int second = in.readUnsignedByte();
+				boolean fin = (first & 0x80) != 0, masked = (second & 0x80) != 0;
+				int opcode = first & 0x0F;
+				if ((first & 0x70) != 0) {
+					throw new WebSocketException(WebSocket.PROTOCOL_ERROR, "Reserved bits set");
+				}
+				if (!masked) {
+					throw new WebSocketException(WebSocket.PROTOCOL_ERROR, "Client frames must be masked");
+				}
+				long length = second & 0x7F;
+				if (length == 126) {
+					length = in.readUnsignedShort();
+				} else if (length == 127) {
+					length = in.readLong();
+				}
+				boolean control = (opcode & 0x8) != 0;
+				if (control && (!fin || length > 125)) {
+					throw new WebSocketException(WebSocket.PROTOCOL_ERROR, "Invalid control frame");
+				}
+				int buffered = (fragments == null || control) ? 0 : fragments.size();
+				if (length < 0 || length + buffered > maxMessageSize) {
+					// checked before allocating the payload
+					throw new WebSocketException(WebSocket.MESSAGE_TOO_BIG, "Message too big");
+				}
+				byte[] mask = new byte[4];
+				in.readFully(mask);
+				byte[] payload = new byte[(int) length];
+				in.readFully(payload);
+				for (int i = 0; i < payload.length; i++) {
+					payload[i] ^= mask[i & 3];
+				}
+				if (control) {
+					if (opcode != WebSocket.CLOSE && opcode != WebSocket.PING && opcode != WebSocket.PONG) {
+						throw new WebSocketException(WebSocket.PROTOCOL_ERROR, "Unknown opcode");
+					}
+					return new Message(opcode, payload);
+				}
+				if (opcode == WebSocket.CONTINUATION) {
+					if (fragments == null) {
+						throw new WebSocketException(WebSocket.PROTOCOL_ERROR, "Continuation without a message");
+					}
+					fragments.write(payload);
+					if (fin) {
+						Message message = new Message(fragmentedOpcode, fragments.toByteArray());
+						fragments = null;
+						return message;
+					}
+				} else if (opcode == WebSocket.TEXT || opcode == WebSocket.BINARY) {
+					if (fragments != null) {
+						throw new WebSocketException(WebSocket.PROTOCOL_ERROR, "Message interleaved with a fragmented one");
+					}
+					if (fin) {
+						return new Message(opcode, payload);
+					}
+					fragments = new ByteArrayOutputStream();
+					fragments.write(payload);
+					fragmentedOpcode = opcode;
+				} else {
+					throw new WebSocketException(WebSocket.PROTOCOL_ERROR, "Unknown opcode");
+				}
+			} catch (EOFException e) {
+				return null; // connection closed in the middle of a frame
+			}
+		}
+	}
+}
@@ -0,0 +1,30 @@
+package logger;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight recorder event of a read of a log file (the whole file or its last records), callback included. Readers take no lock.
+ * @author Antonio Terpin
+ */
+@Name("logger.Read")
+@Label("Log Read")
+@Category({ "Application Server", "Log" })
+@Description("A read of a log file, callback included")
+@Threshold("10 ms")
+class LogReadEvent extends jdk.jfr.Event {
+	@Label("File")
+	String file;
+
+	@Label("Snapshot Size")
+	@DataAmount
+	long snapshot;
+
+	@Label("Records")
+	@Description("Records read from the end of the file, -1 for the whole file")
+	int records;
+}
@@ -0,0 +1,76 @@
+package logger;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Subscription to the records appended to a log file, obtained through Logger.subscribe.<br>
+ * Each subscription owns a bounded buffer: if the subscriber doesn't keep up, new records are dropped instead of stopping the writers.
+ * @author Antonio Terpin
+ */
+public class LogSubscription {
+	private final Logger logger;
+	private final ArrayBlockingQueue<String> records;
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * Constructor which allows to set the logger and the size of the buffer.
+	 * @param logger Logger the subscription refers to.
+	 * @param capacity Maximum number of records waiting to be consumed.
+	 */
+	LogSubscription(Logger logger, int capacity) {
+		this.logger = logger;
+		this.records = new ArrayBlockingQueue<String>(capacity);
+	}
+
+	// called by the logger for each appended record, never blocks
+	void offer(String record) {
+		if (!records.offer(record)) {
+			dropped.incrementAndGet(); // buffer full, the record is lost for this subscriber
+		}
+	}
+
+	/**
+	 * This method waits for the next record.
+	 * @return record The next appended record, without line terminator.
+	 * @throws InterruptedException if the thread is interrupted while waiting.
+	 */
+	public String take() throws InterruptedException {
+		return records.take();
+	}
+
+	/**
+	 * This method waits at most the given time for the next record.
+	 * @param timeout Maximum time to wait.
+	 * @param unit Unit of the timeout.
+	 * @return record The next appended record, or null if the time elapsed.
+	 * @throws InterruptedException if the thread is interrupted while waiting.
+	 */
+	public String poll(long timeout, TimeUnit unit) throws InterruptedException {
+		return records.poll(timeout, unit);
+	}
+
+	/**
+	 * This method allows to know if records are waiting to be consumed.
+	 * @return empty True if no record is waiting.
+	 */
+	public boolean isEmpty() {
+		return records.isEmpty();
+	}
+
+	/**
+	 * This method allows to retrieve the number of records lost because the buffer was full.
+	 * @return dropped Number of dropped records since the subscription.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * This method stops the subscription, no more records will be received.
+	 */
+	public void cancel() {
+		logger.unsubscribe(this);
+	}
+}
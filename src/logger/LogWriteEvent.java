@@ -0,0 +1,33 @@
+package logger;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight recorder event of a record appended by a Logger, with the time spent waiting for the other writers.
+ * @author Antonio Terpin
+ */
+@Name("logger.Write")
+@Label("Log Write")
+@Category({ "Application Server", "Log" })
+@Description("A record appended to a log file")
+@Threshold("1 ms")
+@StackTrace(false)
+class LogWriteEvent extends jdk.jfr.Event {
+	@Label("File")
+	String file;
+
+	@Label("Record Size")
+	@DataAmount
+	long bytes;
+
+	@Label("Lock Wait")
+	@Timespan(Timespan.NANOSECONDS)
+	long lockWait;
+}
@@ -1,15 +1,30 @@
 package logger;
 
 import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+import logger.utils.BoundedInputStream;
 
 /**
  * Logger class which provides a monitored access to a text file.<br>
- * It allows to do reading and writing customized operation without synchronization errors.
+ * It allows to do reading and writing customized operation without synchronization errors.<br>
+ * Writers append whole records under a short critical section, readers work on a snapshot of the committed part of the file without holding any lock.
  * @author Antonio Terpin
  */
 public class Logger {
 	private String logFilePath = "log.txt";
 	private File logFile;
+	// stream kept open in append mode, so each record costs a single write
+	private FileOutputStream appender = null;
+	// lock of the writers, owned only while a record is appended (not a monitor, so virtual threads are not pinned)
+	private final ReentrantLock appendLock = new ReentrantLock();
+	// length of the completely written part of the file, readers never go beyond it
+	private volatile long committedLength = 0;
+	// subscribers which receive the records as they are appended
+	private CopyOnWriteArrayList<LogSubscription> subscribers = new CopyOnWriteArrayList<LogSubscription>();
 	
 	public Logger() {
 		openOrCreateFile();
@@ -37,39 +52,174 @@ public class Logger {
 				logFile.createNewFile();
 			} catch (IOException e) {}
 		}
+		committedLength = logFile.length();
 	}
 	
-	// synchronized access to log file (manages multiple accesses)
+	// access to log file (manages multiple accesses)
 	
 	/**
 	 * This method allows to perform the reading operations defined in the LoggerCallback implementation of read.<br>
-	 * Provides to the object interfaced to the LoggerCallback a buffered reader and an undefined numbers of Object parameters.
+	 * Provides to the object interfaced to the LoggerCallback a buffered reader and an undefined numbers of Object parameters.<br>
+	 * The buffered reader sees the log file as it was when the method was called: records appended later are not read.
+	 * No lock is held while the callback runs, so a slow reader doesn't stop the writers.
 	 * @param loggerCallback Object which implements the interface LoggerCallback, the read method is called.
 	 * @param args Undefined number of Object parameters to pass to loggerCallback read method.
 	 * @throws IOException when some errors occurs during reading operation. Shouldn't happen :)
 	 */
-	synchronized public void read(LoggerCallback lc, Object... args) throws IOException {
-		// creates the buffered reader
-		BufferedReader br = new BufferedReader(new FileReader(logFile));
-		// call logger callback read with the buffered reader
-		lc.read(br, args);
-		// then close the buffered reader
-		br.close();
+	public void read(LoggerCallback lc, Object... args) throws IOException {
+		LogReadEvent event = new LogReadEvent();
+		event.begin();
+		// take the snapshot: only complete records are part of it
+		long snapshot = committedLength;
+		// creates the buffered reader, limited to the snapshot
+		BufferedReader br = new BufferedReader(new InputStreamReader(new BoundedInputStream(new FileInputStream(logFile), snapshot)));
+		try {
+			// call logger callback read with the buffered reader
+			lc.read(br, args);
+		} finally {
+			// then close the buffered reader
+			br.close();
+			read(event, snapshot, -1);
+		}
+	}
+	
+	/**
+	 * This method allows to perform the reading operations defined in the LoggerCallback implementation of read, only on the last records of the file.<br>
+	 * The beginning of the last records is found scanning backwards a memory-mapped view of the file, so the rest of the file is never read.
+	 * @param loggerCallback Object which implements the interface LoggerCallback, the read method is called.
+	 * @param records Number of records (lines) to read.
+	 * @param args Undefined number of Object parameters to pass to loggerCallback read method.
+	 * @throws IOException when some errors occurs during reading operation.
+	 */
+	public void tail(LoggerCallback lc, int records, Object... args) throws IOException {
+		LogReadEvent event = new LogReadEvent();
+		event.begin();
+		long snapshot = committedLength;
+		FileInputStream in = new FileInputStream(logFile);
+		try {
+			FileChannel channel = in.getChannel();
+			long start = snapshot;
+			if (records > 0 && snapshot > 0) {
+				// a single mapping can't exceed 2GB, older records are not interesting anyway
+				long regionStart = Math.max(0, snapshot - Integer.MAX_VALUE);
+				MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, regionStart, snapshot - regionStart);
+				int pos = region.limit() - 1;
+				if (region.get(pos) == '\n') {
+					pos--; // terminator of the last record
+				}
+				int found = 0;
+				start = regionStart;
+				for (; pos >= 0; pos--) {
+					if (region.get(pos) == '\n' && ++found == records) {
+						start = regionStart + pos + 1; // first byte after the terminator of the previous record
+						break;
+					}
+				}
+			}
+			channel.position(start);
+			BufferedReader br = new BufferedReader(new InputStreamReader(new BoundedInputStream(in, snapshot - start)));
+			lc.read(br, args);
+		} finally {
+			in.close();
+			read(event, snapshot, records);
+		}
+	}
+
+	// commit the event of a read, if recorded
+	private void read(LogReadEvent event, long snapshot, int records) {
+		event.end();
+		if (event.shouldCommit()) {
+			event.file = logFilePath;
+			event.snapshot = snapshot;
+			event.records = records;
+			event.commit();
+		}
+	}
+	
+	/**
+	 * This method allows to receive each record appended from now on.<br>
+	 * Records are pushed to a bounded buffer owned by the subscription: when it is full, records are dropped for that subscriber only.
+	 * @param capacity Maximum number of records buffered for the subscriber.
+	 * @return subscription The subscription to consume records from, to cancel when no more needed.
+	 */
+	public LogSubscription subscribe(int capacity) {
+		LogSubscription subscription = new LogSubscription(this, capacity);
+		subscribers.add(subscription);
+		return subscription;
+	}
+	
+	// called by LogSubscription.cancel
+	void unsubscribe(LogSubscription subscription) {
+		subscribers.remove(subscription);
 	}
 	
 	/**
 	 * This method allows to perform the writing operations defined in the LoggerCallback implementation of write.<br>
-	 * Provides to the object interfaced to the LoggerCallback a buffered writer and an undefined numbers of Object parameters.
+	 * Provides to the object interfaced to the LoggerCallback a buffered writer and an undefined numbers of Object parameters.<br>
+	 * The record is built in memory, then appended to the file at once.
 	 * @param loggerCallback Object which implements the interface LoggerCallback, the write method is called.
 	 * @param args Undefined number of Object parameters to pass to loggerCallback read method.
 	 * @throws IOException when some errors occurs during writing operation. Shouldn't happen :)
 	 */
-	synchronized public void write(LoggerCallback lc, Object... args) throws IOException {
-		// creates the buffered writer
-		BufferedWriter bw = new BufferedWriter(new FileWriter(logFile, true));
+	public void write(LoggerCallback lc, Object... args) throws IOException {
+		LogWriteEvent event = new LogWriteEvent();
+		event.begin();
+		// build the record outside the critical section
+		StringWriter record = new StringWriter();
+		BufferedWriter bw = new BufferedWriter(record);
 		// call logger callback write with the buffered writer
 		lc.write(bw, args);
-		// then close the buffered reader
 		bw.close();
+		byte[] bytes = record.toString().getBytes();
+		if (bytes.length == 0) {
+			return; // nothing to append
+		}
+		// the wait for the other writers is measured only while recording
+		boolean recording = event.isEnabled();
+		long waitStart = recording ? System.nanoTime() : 0;
+		appendLock.lock();
+		if (recording) {
+			event.lockWait = System.nanoTime() - waitStart;
+		}
+		try {
+			if (appender == null) {
+				appender = new FileOutputStream(logFile, true);
+			}
+			appender.write(bytes);
+			// the record is complete, readers can see it
+			committedLength += bytes.length;
+			// push it to the followers, in the same order as in the file
+			if (!subscribers.isEmpty()) {
+				for (String line : record.toString().split("\r?\n")) {
+					for (LogSubscription s : subscribers) {
+						s.offer(line);
+					}
+				}
+			}
+		} finally {
+			appendLock.unlock();
+		}
+		event.end();
+		if (event.shouldCommit()) {
+			event.file = logFilePath;
+			event.bytes = bytes.length;
+			event.commit();
+		}
+	}
+
+	/**
+	 * This method closes the file, the next write opens it again.
+	 */
+	public void close() {
+		appendLock.lock();
+		try {
+			if (appender != null) {
+				appender.close();
+				appender = null;
+			}
+		} catch (IOException e) {
+		} finally {
+			appendLock.unlock();
+		}
 	}
 }
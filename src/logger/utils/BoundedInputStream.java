@@ -0,0 +1,66 @@
+package logger.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream which reads at most a fixed number of bytes from the wrapped stream.<br>
+ * Once the limit is reached it behaves as if the end of the stream was reached, even if the wrapped stream has more data.
+ * @author Antonio Terpin
+ */
+public class BoundedInputStream extends FilterInputStream {
+	private long remaining;
+
+	/**
+	 * Constructor which allows to set the stream to read from and the number of bytes that can be read.
+	 * @param in The wrapped input stream.
+	 * @param limit Maximum number of bytes that can be read.
+	 */
+	public BoundedInputStream(InputStream in, long limit) {
+		super(in);
+		this.remaining = limit;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (remaining <= 0) {
+			return -1;
+		}
+		int b = in.read();
+		if (b != -1) {
+			remaining--;
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (remaining <= 0) {
+			return -1;
+		}
+		int n = in.read(b, off, (int) Math.min(len, remaining));
+		if (n > 0) {
+			remaining -= n;
+		}
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = in.skip(Math.min(n, remaining));
+		remaining -= skipped;
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (int) Math.min(in.available(), remaining);
+	}
+
+	// mark and reset would break the byte count
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+}
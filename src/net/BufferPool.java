@@ -0,0 +1,226 @@
+package net;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of direct buffers for the socket I/O, shared by the HTTP and the chat servers.<br>
+ * Buffers come in size classes (powers of two from 4 KB to 64 KB): a request gets the smallest class that fits, larger requests
+ * are not pooled. Released buffers go back to the free list of their class, up to the maximum pooled bytes.<br>
+ * In leak detection mode (test mode) every lease records where it was taken: a lease garbage collected without being released is reported
+ * with that stack trace, and a lease released twice throws.
+ * @author Antonio Terpin
+ */
+public class BufferPool {
+	// smallest class 4 KB, each class twice the previous one
+	private static final int minShift = 12, classes = 5;
+	private static final Cleaner cleaner = Cleaner.create();
+	private static final BufferPool shared = new BufferPool(Long.getLong("net.bufferPoolMaxBytes", 64 << 20),
+			Boolean.getBoolean("net.bufferLeakDetection"));
+	private final long maxPooledBytes;
+	private final boolean leakDetection;
+	// free buffers of each class, used as stacks so the most recently used (warm) buffer is taken first
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private final ConcurrentLinkedDeque<ByteBuffer>[] free = new ConcurrentLinkedDeque[classes];
+	private final AtomicLong pooledBytes = new AtomicLong();
+	private final LongAdder allocated = new LongAdder(), reused = new LongAdder(), outstanding = new LongAdder(), leaks = new LongAdder();
+
+	/**
+	 * Constructor which allows to set the limits of the pool.
+	 * @param maxPooledBytes Maximum bytes kept in the free lists, buffers released beyond it are left to the garbage collector.
+	 * @param leakDetection True to track the leases (slower, for the tests).
+	 */
+	public BufferPool(long maxPooledBytes, boolean leakDetection) {
+		this.maxPooledBytes = maxPooledBytes;
+		this.leakDetection = leakDetection;
+		for (int i = 0; i < classes; i++) {
+			free[i] = new ConcurrentLinkedDeque<ByteBuffer>();
+		}
+	}
+
+	/**
+	 * Method to retrieve the pool shared by the servers, configured by the system properties net.bufferPoolMaxBytes (64 MB)
+	 * and net.bufferLeakDetection (false).
+	 * @return pool The shared pool.
+	 */
+	public static BufferPool shared() {
+		return shared;
+	}
+
+	/**
+	 * Method to retrieve the capacity of the largest pooled buffer.
+	 * @return capacity Capacity of the largest size class, in bytes.
+	 */
+	public static int getMaxPooledCapacity() {
+		return 1 << (minShift + classes - 1);
+	}
+
+	/**
+	 * This method takes a buffer, to release when the connection using it is closed.
+	 * @param capacity Minimum capacity of the buffer.
+	 * @return lease The lease of the buffer, cleared.
+	 */
+	public Lease acquire(int capacity) {
+		int sizeClass = sizeClass(capacity);
+		ByteBuffer buffer = null;
+		if (sizeClass >= 0) {
+			buffer = free[sizeClass].pollFirst();
+			if (buffer != null) {
+				pooledBytes.addAndGet(-buffer.capacity());
+			}
+		}
+		if (buffer == null) {
+			buffer = ByteBuffer.allocateDirect(sizeClass >= 0 ? 1 << (minShift + sizeClass) : capacity);
+			allocated.increment();
+		} else {
+			buffer.clear();
+			reused.increment();
+		}
+		outstanding.increment();
+		return new Lease(buffer, sizeClass);
+	}
+
+	// index of the smallest class with the given capacity, -1 if larger than all the classes
+	private static int sizeClass(int capacity) {
+		int shift = Math.max(minShift, 32 - Integer.numberOfLeadingZeros(Math.max(1, capacity) - 1));
+		return (shift - minShift < classes) ? shift - minShift : -1;
+	}
+
+	// put back a released buffer: free list or garbage collector
+	private void release(ByteBuffer buffer, int sizeClass) {
+		outstanding.decrement();
+		if (sizeClass < 0) {
+			return; // not pooled
+		}
+		if (pooledBytes.addAndGet(buffer.capacity()) > maxPooledBytes) {
+			pooledBytes.addAndGet(-buffer.capacity());
+			return;
+		}
+		free[sizeClass].addFirst(buffer);
+	}
+
+	/**
+	 * Method to retrieve the number of buffers allocated since the start, pooled or not.
+	 * @return allocated Number of allocated buffers.
+	 */
+	public long getAllocated() {
+		return allocated.sum();
+	}
+
+	/**
+	 * Method to retrieve the number of leases served by a released buffer since the start.
+	 * @return reused Number of reused buffers.
+	 */
+	public long getReused() {
+		return reused.sum();
+	}
+
+	/**
+	 * Method to retrieve the number of leases not released yet.
+	 * @return outstanding Number of buffers in use.
+	 */
+	public long getOutstanding() {
+		return outstanding.sum();
+	}
+
+	/**
+	 * Method to retrieve the bytes kept in the shared free lists.
+	 * @return pooled Bytes of the free buffers.
+	 */
+	public long getPooledBytes() {
+		return pooledBytes.get();
+	}
+
+	/**
+	 * Method to retrieve the number of leases garbage collected without being released (leak detection mode only).
+	 * @return leaks Number of leaked buffers.
+	 */
+	public long getLeaks() {
+		return leaks.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "buffer pool: " + getAllocated() + " allocated, " + getReused() + " reused, " + getOutstanding() + " in use, "
+				+ getPooledBytes() + " bytes free" + (leakDetection ? ", " + getLeaks() + " leaked" : "");
+	}
+
+	/**
+	 * A buffer taken from the pool, to release once (closing the lease).<br>
+	 * The buffer must not be used after the release: the next lease of its class may get it.
+	 */
+	public final class Lease implements AutoCloseable {
+		private final ByteBuffer buffer;
+		private final int sizeClass;
+		private volatile boolean released = false;
+		// leak detection only: where the lease was taken and the check run if it is collected
+		private final Cleaner.Cleanable leakCheck;
+		private final LeakCheck check;
+
+		// see BufferPool.acquire
+		private Lease(ByteBuffer buffer, int sizeClass) {
+			this.buffer = buffer;
+			this.sizeClass = sizeClass;
+			if (leakDetection) {
+				check = new LeakCheck(new Throwable("Buffer of " + buffer.capacity() + " bytes acquired here"));
+				leakCheck = cleaner.register(this, check);
+			} else {
+				check = null;
+				leakCheck = null;
+			}
+		}
+
+		/**
+		 * Method to retrieve the buffer.
+		 * @return buffer The leased buffer, direct.
+		 */
+		public ByteBuffer buffer() {
+			return buffer;
+		}
+
+		/**
+		 * This method gives the buffer back to the pool.
+		 * @throws IllegalStateException if already released, in leak detection mode (otherwise the second release is ignored).
+		 */
+		@Override
+		public void close() {
+			if (released) {
+				if (leakDetection) {
+					throw new IllegalStateException("Buffer released twice");
+				}
+				return;
+			}
+			released = true;
+			if (leakCheck != null) {
+				check.released = true;
+				leakCheck.clean();
+			}
+			release(buffer, sizeClass);
+		}
+	}
+
+	/**
+	 * Check run when a lease is collected: reports it if it was not released.
+	 */
+	private class LeakCheck implements Runnable {
+		private final Throwable origin;
+		private volatile boolean released = false;
+
+		LeakCheck(Throwable origin) {
+			this.origin = origin;
+		}
+
+		@Override
+		public void run() {
+			if (!released) {
+				leaks.increment();
+				outstanding.decrement(); // the buffer is gone with the lease
+				System.err.println("BufferPool: leak, a buffer was never released");
+				origin.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Listening channels of a server, one for each acceptor thread.<br>
+ * Where SO_REUSEPORT is available (Linux) each acceptor gets its own channel bound to the same port, so the kernel spreads
+ * the incoming connections over the acceptors and they don't contend on a single accept queue.
+ * Otherwise all the acceptors share one channel: accepting is serialized, but the work done after the accept is not.
+ * @author Antonio Terpin
+ */
+public class ListenerGroup {
+	private final ServerSocketChannel[] channels;
+	private final int acceptors;
+	private final boolean reusePort;
+
+	// see open
+	private ListenerGroup(ServerSocketChannel[] channels, int acceptors, boolean reusePort) {
+		this.channels = channels;
+		this.acceptors = acceptors;
+		this.reusePort = reusePort;
+	}
+
+	/**
+	 * This method binds the listening channels of a server.
+	 * @param port Port to listen on.
+	 * @param acceptors Number of acceptor threads, at least 1.
+	 * @param backlog Maximum number of connections waiting to be accepted by each channel, 0 for the system default.
+	 * @return group The listening channels.
+	 * @throws IOException if the port can't be bound.
+	 */
+	public static ListenerGroup open(int port, int acceptors, int backlog) throws IOException {
+		acceptors = Math.max(1, acceptors);
+		if (acceptors > 1) {
+			ServerSocketChannel[] channels = new ServerSocketChannel[acceptors];
+			try {
+				for (int i = 0; i < acceptors; i++) {
+					channels[i] = ServerSocketChannel.open();
+					channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+					// with port 0 the first channel picks an ephemeral port, the others join it
+					channels[i].bind(new InetSocketAddress(i == 0 ? port : channels[0].socket().getLocalPort()), backlog);
+				}
+				return new ListenerGroup(channels, acceptors, true);
+			} catch (UnsupportedOperationException | IOException e) {
+				// SO_REUSEPORT not supported (or the port is busy): release what has been bound and share one channel
+				close(channels);
+			}
+		}
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		try {
+			channel.bind(new InetSocketAddress(port), backlog);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return new ListenerGroup(new ServerSocketChannel[] { channel }, acceptors, false);
+	}
+
+	/**
+	 * Method to retrieve the number of acceptor threads.
+	 * @return acceptors Number of acceptors.
+	 */
+	public int getAcceptors() {
+		return acceptors;
+	}
+
+	/**
+	 * Method to retrieve the port the channels are bound to.
+	 * @return port The local port, the ephemeral one chosen by the system if opened with port 0.
+	 */
+	public int getLocalPort() {
+		return channels[0].socket().getLocalPort();
+	}
+
+	/**
+	 * Method to know if each acceptor has its own channel.
+	 * @return reusePort True if the channels are bound with SO_REUSEPORT, false if they share one channel.
+	 */
+	public boolean isReusePort() {
+		return reusePort;
+	}
+
+	/**
+	 * This method waits for the next connection of an acceptor.
+	 * @param acceptor Index of the acceptor, from 0 to getAcceptors() - 1.
+	 * @return channel The accepted connection, in blocking mode.
+	 * @throws IOException if the group has been closed.
+	 */
+	public SocketChannel accept(int acceptor) throws IOException {
+		return channels[reusePort ? acceptor : 0].accept();
+	}
+
+	/**
+	 * This method stops listening, the acceptors waiting for a connection get an exception.
+	 */
+	public void close() {
+		close(channels);
+	}
+
+	/**
+	 * Description of the group, for the startup messages.
+	 * @return description Number of acceptors and how they listen.
+	 */
+	@Override
+	public String toString() {
+		return acceptors + (acceptors == 1 ? " acceptor" : " acceptors") + (reusePort ? ", SO_REUSEPORT" : acceptors > 1 ? ", shared listener" : "");
+	}
+
+	// close the channels opened so far
+	private static void close(ServerSocketChannel[] channels) {
+		for (ServerSocketChannel channel : channels) {
+			try {
+				if (channel != null) {
+					channel.close();
+				}
+			} catch (IOException e) {}
+		}
+	}
+}
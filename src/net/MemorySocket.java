@@ -0,0 +1,65 @@
+package net;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * Socket with no connection: it reads the given bytes and collects what is written.<br>
+ * Used to run synthetic requests through the code serving real clients, for example to warm it up before the server listens.
+ * @author Antonio Terpin
+ */
+public class MemorySocket extends Socket {
+	private final ByteArrayInputStream in;
+	private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+	private boolean closed = false;
+
+	/**
+	 * Constructor which allows to set the bytes the client sends.
+	 * @param input Bytes returned by the input stream, then end of stream.
+	 */
+	public MemorySocket(byte[] input) {
+		this.in = new ByteArrayInputStream(input);
+	}
+
+	/**
+	 * Method to retrieve what has been written to the socket.
+	 * @return output The bytes written so far.
+	 */
+	public byte[] getWritten() {
+		return out.toByteArray();
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return in;
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return out;
+	}
+
+	@Override
+	public InetAddress getInetAddress() {
+		return InetAddress.getLoopbackAddress();
+	}
+
+	@Override
+	public InetAddress getLocalAddress() {
+		return InetAddress.getLoopbackAddress();
+	}
+
+	@Override
+	public boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public synchronized void close() {
+		closed = true;
+	}
+}
@@ -0,0 +1,110 @@
+package net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Buffered input of a socket, in a direct buffer taken from the pool: the channel of the socket reads straight into it, without the
+ * heap buffer of a BufferedInputStream or the temporary direct buffer the JDK uses to read into a heap one.<br>
+ * Sockets without a channel (TLS, in-memory) are read through their stream.<br>
+ * The stream is used by one thread. Closing it gives the buffer back to the pool, the socket is closed by its owner.
+ * @author Antonio Terpin
+ */
+public class PooledInputStream extends InputStream {
+	private final Socket socket;
+	private final ReadableByteChannel channel;
+	private BufferPool.Lease lease;
+	private ByteBuffer buffer; // read mode, null once closed
+
+	/**
+	 * Constructor which allows to set the socket and the size of the buffer.
+	 * @param socket The client socket.
+	 * @param capacity Minimum size of the buffer.
+	 * @throws IOException if the input of the socket can't be opened.
+	 */
+	public PooledInputStream(Socket socket, int capacity) throws IOException {
+		this.socket = socket;
+		this.channel = (socket.getChannel() != null) ? socket.getChannel() : Channels.newChannel(socket.getInputStream());
+		this.lease = BufferPool.shared().acquire(capacity);
+		this.buffer = lease.buffer();
+		this.buffer.flip();
+	}
+
+	/**
+	 * Method to retrieve the buffer, for the decoders which scan the bytes in place (see fill).
+	 * @return buffer The buffer in read mode: its remaining bytes are the bytes received and not consumed yet.
+	 * @throws IOException if the stream is closed.
+	 */
+	public ByteBuffer buffer() throws IOException {
+		if (buffer == null) {
+			throw new IOException("Stream closed");
+		}
+		return buffer;
+	}
+
+	/**
+	 * This method reads more bytes, keeping the ones not consumed yet: it waits for at least one byte, unless the buffer is full.
+	 * @return read False at end of stream.
+	 * @throws IOException if the socket can't be read or the stream is closed.
+	 */
+	public boolean fill() throws IOException {
+		ByteBuffer buffer = buffer();
+		buffer.compact();
+		try {
+			if (!buffer.hasRemaining()) {
+				return true; // full, the caller has to consume first
+			}
+			int n;
+			do {
+				n = channel.read(buffer);
+			} while (n == 0);
+			return n > 0;
+		} finally {
+			buffer.flip();
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		ByteBuffer buffer = buffer();
+		if (!buffer.hasRemaining() && !fill()) {
+			return -1;
+		}
+		return buffer.get() & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		ByteBuffer buffer = buffer();
+		if (!buffer.hasRemaining() && !fill()) {
+			return -1;
+		}
+		int n = Math.min(len, buffer.remaining());
+		buffer.get(b, off, n);
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return buffer().remaining() + socket.getInputStream().available();
+	}
+
+	/**
+	 * This method gives the buffer back to the pool, the bytes not read are lost. The socket stays open.
+	 */
+	@Override
+	public void close() {
+		if (buffer != null) {
+			buffer = null;
+			lease.close();
+			lease = null;
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Buffered output of a socket, in a direct buffer taken from the pool: the buffer is written by the channel of the socket as it is,
+ * without the heap buffer of a BufferedOutputStream or the copy the JDK makes of a heap buffer before writing it.<br>
+ * Sockets without a channel (TLS, in-memory) are written through their stream.<br>
+ * Thread-safe. Closing it flushes and gives the buffer back to the pool, the socket is closed by its owner.
+ * @author Antonio Terpin
+ */
+public class PooledOutputStream extends OutputStream {
+	private final WritableByteChannel channel;
+	private BufferPool.Lease lease;
+	private ByteBuffer buffer; // write mode, null once closed
+	// not a monitor, so virtual threads are not pinned while writing
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Constructor which allows to set the socket and the size of the buffer.
+	 * @param socket The client socket.
+	 * @param capacity Minimum size of the buffer: bytes are written when it is full or flushed.
+	 * @throws IOException if the output of the socket can't be opened.
+	 */
+	public PooledOutputStream(Socket socket, int capacity) throws IOException {
+		this.channel = (socket.getChannel() != null) ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
+		this.lease = BufferPool.shared().acquire(capacity);
+		this.buffer = lease.buffer();
+	}
+
+	// the buffer, owning the lock
+	private ByteBuffer buffer() throws IOException {
+		if (buffer == null) {
+			throw new IOException("Stream closed");
+		}
+		return buffer;
+	}
+
+	// write the buffered bytes, owning the lock
+	private void drain() throws IOException {
+		buffer.flip();
+		try {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		} finally {
+			buffer.clear();
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		lock.lock();
+		try {
+			if (!buffer().hasRemaining()) {
+				drain();
+			}
+			buffer.put((byte) b);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		lock.lock();
+		try {
+			buffer();
+			while (len > 0) {
+				if (!buffer.hasRemaining()) {
+					drain();
+				}
+				int n = Math.min(len, buffer.remaining());
+				buffer.put(b, off, n);
+				off += n;
+				len -= n;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * This method writes the content of a channel (for example a file), read straight into the buffer.
+	 * @param in The channel to copy, read until its end.
+	 * @return bytes Number of bytes copied.
+	 * @throws IOException if the channel can't be read or the socket written.
+	 */
+	public long transferFrom(ReadableByteChannel in) throws IOException {
+		lock.lock();
+		try {
+			buffer();
+			long total = 0;
+			while (true) {
+				if (!buffer.hasRemaining()) {
+					drain();
+				}
+				int n = in.read(buffer);
+				if (n < 0) {
+					return total;
+				}
+				total += n;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		lock.lock();
+		try {
+			if (buffer().position() > 0) {
+				drain();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * This method flushes, then gives the buffer back to the pool (even if the flush fails). The socket stays open.
+	 * @throws IOException if the buffered bytes can't be written.
+	 */
+	@Override
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			if (buffer == null) {
+				return;
+			}
+			try {
+				if (buffer.position() > 0) {
+					drain();
+				}
+			} finally {
+				buffer = null;
+				lease.close();
+				lease = null;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+}
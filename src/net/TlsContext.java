@@ -0,0 +1,234 @@
+package net;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * TLS configuration of a server: key store, protocols, cipher suites, ALPN and session resumption, with the handshake statistics.<br>
+ * A returning client can skip the full handshake in two ways: with TLS 1.2 it presents the id of a session kept in the server session cache,
+ * with a session ticket (TLS 1.3, and TLS 1.2 if the client supports it) it presents the session itself, encrypted by the server,
+ * so the server keeps nothing.
+ * @author Antonio Terpin
+ */
+public class TlsContext implements TlsContextMXBean {
+	private final SSLContext context;
+	private final SSLParameters parameters;
+	private final LongAdder handshakes = new LongAdder(), resumed = new LongAdder(), failed = new LongAdder();
+	private final LongAdder fullNanos = new LongAdder(), resumedNanos = new LongAdder();
+	private ObjectName name = null;
+
+	/**
+	 * Constructor which allows to set the SSL context and the parameters of the connections.
+	 * @param context The SSL context, initialized with the key of the server.
+	 * @param protocols Enabled protocols, null for the defaults of the context.
+	 * @param cipherSuites Enabled cipher suites in order of preference, null for the defaults of the context.
+	 * @param applicationProtocols Application protocols offered with ALPN in order of preference, null or empty for no ALPN.
+	 * @param sessionCacheSize Maximum number of sessions in the server session cache, 0 for no limit.
+	 * @param sessionTimeout Seconds a session can be resumed, 0 for no limit.
+	 */
+	public TlsContext(SSLContext context, String[] protocols, String[] cipherSuites, String[] applicationProtocols, int sessionCacheSize, int sessionTimeout) {
+		this.context = context;
+		this.parameters = context.getDefaultSSLParameters();
+		if (protocols != null) {
+			parameters.setProtocols(protocols);
+		}
+		if (cipherSuites != null) {
+			parameters.setCipherSuites(cipherSuites);
+		}
+		// the order of the server wins, so the list above is a real preference
+		parameters.setUseCipherSuitesOrder(true);
+		if (applicationProtocols != null && applicationProtocols.length > 0) {
+			parameters.setApplicationProtocols(applicationProtocols);
+		}
+		SSLSessionContext sessions = context.getServerSessionContext();
+		sessions.setSessionCacheSize(sessionCacheSize);
+		sessions.setSessionTimeout(sessionTimeout);
+	}
+
+	/**
+	 * <p>This method reads the configuration from the system properties:<br>
+	 * https.keyStore (required), https.keyStorePassword (empty) and https.keyStoreType (PKCS12): the key and certificate of the server<br>
+	 * https.protocols (TLSv1.3,TLSv1.2) and https.cipherSuites (JDK defaults): comma-separated, in order of preference<br>
+	 * https.alpn (http/1.1): comma-separated application protocols, empty for no ALPN<br>
+	 * https.sessionCacheSize (20480) and https.sessionTimeout (86400 seconds): the server session cache<br>
+	 * https.sessionTickets (true): stateless resumption. It is a JDK wide setting (jdk.tls.server.enableSessionTicketExtension),
+	 * read when the TLS classes are loaded, so it is applied only if no TLS connection was opened before.</p>
+	 * @return context The TLS context.
+	 * @throws IOException if the key store can't be read or the configuration is not valid.
+	 */
+	public static TlsContext fromProperties() throws IOException {
+		String keyStore = System.getProperty("https.keyStore");
+		if (keyStore == null) {
+			throw new IOException("No key store, set https.keyStore");
+		}
+		if (System.getProperty("jdk.tls.server.enableSessionTicketExtension") == null) {
+			System.setProperty("jdk.tls.server.enableSessionTicketExtension", System.getProperty("https.sessionTickets", "true"));
+		}
+		char[] password = System.getProperty("https.keyStorePassword", "").toCharArray();
+		try (InputStream in = new FileInputStream(keyStore)) {
+			KeyStore keys = KeyStore.getInstance(System.getProperty("https.keyStoreType", "PKCS12"));
+			keys.load(in, password);
+			KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			factory.init(keys, password);
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(factory.getKeyManagers(), null, null);
+			return new TlsContext(context, list(System.getProperty("https.protocols", "TLSv1.3,TLSv1.2")),
+					list(System.getProperty("https.cipherSuites")), list(System.getProperty("https.alpn", "http/1.1")),
+					Integer.getInteger("https.sessionCacheSize", 20480), Integer.getInteger("https.sessionTimeout", 86400));
+		} catch (GeneralSecurityException | IllegalArgumentException e) {
+			throw new IOException("TLS not configured: " + e.getMessage(), e);
+		}
+	}
+
+	// comma-separated values, null if the property is not set
+	private static String[] list(String property) {
+		if (property == null) {
+			return null;
+		}
+		return Arrays.stream(property.split(",")).map(String::trim).filter(s -> !s.isEmpty()).toArray(String[]::new);
+	}
+
+	/**
+	 * This method wraps an accepted connection, the handshake is done by the first read or write.
+	 * @param channel The accepted connection, in blocking mode.
+	 * @return socket The TLS socket.
+	 * @throws IOException if the socket can't be created.
+	 */
+	public TlsSocket wrap(SocketChannel channel) throws IOException {
+		SSLEngine engine = context.createSSLEngine();
+		engine.setUseClientMode(false);
+		engine.setSSLParameters(parameters);
+		return new TlsSocket(channel, engine, this);
+	}
+
+	/**
+	 * This method records a completed handshake: the session was resumed if it was created before the handshake started.
+	 * @param session The session of the connection.
+	 * @param start Start of the handshake (System.nanoTime), for the duration.
+	 * @param startMillis Start of the handshake (System.currentTimeMillis), compared with the creation time of the session.
+	 */
+	void handshakeDone(SSLSession session, long start, long startMillis) {
+		long nanos = System.nanoTime() - start;
+		handshakes.increment();
+		if (session.getCreationTime() < startMillis) {
+			resumed.increment();
+			resumedNanos.add(nanos);
+		} else {
+			fullNanos.add(nanos);
+		}
+	}
+
+	/**
+	 * This method records a failed handshake.
+	 */
+	void handshakeFailed() {
+		failed.increment();
+	}
+
+	/**
+	 * This method registers the management bean of the context (see TlsContextMXBean).
+	 * @param port Port of the server using the context.
+	 */
+	public void register(int port) {
+		try {
+			name = new ObjectName("net:type=Tls,port=" + port);
+			if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+			}
+		} catch (JMException e) {
+			System.out.println("TLS: Management bean not registered: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * This method removes the management bean, when the server stops.
+	 */
+	public void unregister() {
+		if (name == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException e) {} // already removed
+		name = null;
+	}
+
+	@Override
+	public long getHandshakes() {
+		return handshakes.sum();
+	}
+
+	@Override
+	public long getResumedHandshakes() {
+		return resumed.sum();
+	}
+
+	@Override
+	public long getFailedHandshakes() {
+		return failed.sum();
+	}
+
+	@Override
+	public double getResumptionRate() {
+		long total = handshakes.sum();
+		return (total == 0) ? 0 : (double) resumed.sum() / total;
+	}
+
+	@Override
+	public double getFullHandshakeMicros() {
+		long full = handshakes.sum() - resumed.sum();
+		return (full <= 0) ? 0 : fullNanos.sum() / 1e3 / full;
+	}
+
+	@Override
+	public double getResumedHandshakeMicros() {
+		long count = resumed.sum();
+		return (count == 0) ? 0 : resumedNanos.sum() / 1e3 / count;
+	}
+
+	@Override
+	public int getCachedSessions() {
+		int sessions = 0;
+		for (Enumeration<byte[]> ids = context.getServerSessionContext().getIds(); ids.hasMoreElements(); ids.nextElement()) {
+			sessions++;
+		}
+		return sessions;
+	}
+
+	@Override
+	public String[] getProtocols() {
+		return parameters.getProtocols();
+	}
+
+	@Override
+	public String[] getCipherSuites() {
+		return parameters.getCipherSuites();
+	}
+
+	@Override
+	public String[] getApplicationProtocols() {
+		return parameters.getApplicationProtocols();
+	}
+
+	@Override
+	public String toString() {
+		return String.join("/", parameters.getProtocols()) + ", ALPN " + String.join(",", parameters.getApplicationProtocols());
+	}
+}
@@ -0,0 +1,69 @@
+package net;
+
+/**
+ * Management interface of the TLS of a server, registered as net:type=Tls,port=[port].<br>
+ * A full handshake costs a key exchange and a certificate signature, a resumed one doesn't: the resumption rate tells how much
+ * of that cost the session cache and the session tickets save.
+ * @author Antonio Terpin
+ */
+public interface TlsContextMXBean {
+	/**
+	 * Method to retrieve the number of completed handshakes since the server started.
+	 * @return handshakes Number of completed handshakes, full and resumed.
+	 */
+	long getHandshakes();
+
+	/**
+	 * Method to retrieve the number of handshakes which resumed a previous session.
+	 * @return resumed Number of abbreviated handshakes since the server started.
+	 */
+	long getResumedHandshakes();
+
+	/**
+	 * Method to retrieve the number of failed handshakes since the server started.
+	 * @return failed Number of failed handshakes (bad client, no common cipher suite, connection closed, ...).
+	 */
+	long getFailedHandshakes();
+
+	/**
+	 * Method to retrieve the share of the completed handshakes which resumed a previous session.
+	 * @return rate Resumed handshakes over completed handshakes, 0 if none completed.
+	 */
+	double getResumptionRate();
+
+	/**
+	 * Method to retrieve the mean duration of a full handshake.
+	 * @return micros Mean duration of a full handshake in microseconds, from the first handshake message, 0 if none completed.
+	 */
+	double getFullHandshakeMicros();
+
+	/**
+	 * Method to retrieve the mean duration of a resumed handshake.
+	 * @return micros Mean duration of a resumed handshake in microseconds, from the first handshake message, 0 if none completed.
+	 */
+	double getResumedHandshakeMicros();
+
+	/**
+	 * Method to retrieve the number of sessions kept by the server session cache.
+	 * @return sessions Number of sessions in the cache (with session tickets, the sessions are kept by the clients instead).
+	 */
+	int getCachedSessions();
+
+	/**
+	 * Method to retrieve the enabled protocols.
+	 * @return protocols Enabled protocols, in order of preference.
+	 */
+	String[] getProtocols();
+
+	/**
+	 * Method to retrieve the enabled cipher suites.
+	 * @return cipherSuites Enabled cipher suites, in order of preference.
+	 */
+	String[] getCipherSuites();
+
+	/**
+	 * Method to retrieve the application protocols offered with ALPN.
+	 * @return protocols Application protocols, in order of preference.
+	 */
+	String[] getApplicationProtocols();
+}
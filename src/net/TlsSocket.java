@@ -0,0 +1,390 @@
+package net;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * Socket speaking TLS over an accepted channel, built on an SSLEngine: the code serving plaintext sockets serves it unchanged.<br>
+ * The handshake is done by the first read or write, so by the thread serving the client and not by the acceptor.
+ * The same engine, buffers and state machine can drive a non-blocking channel, only the waiting for data would change.<br>
+ * The socket has no channel (getChannel returns null): the bytes written must go through the engine.
+ * @author Antonio Terpin
+ */
+public class TlsSocket extends java.net.Socket {
+	private static final ByteBuffer empty = ByteBuffer.allocate(0);
+	private final SocketChannel channel;
+	private final SSLEngine engine;
+	private final TlsContext context;
+	// encrypted bytes received (read mode), encrypted bytes to send, decrypted bytes not read yet (read mode)
+	private ByteBuffer netIn, netOut, appIn;
+	private volatile boolean handshaken = false, closed = false;
+	private final InputStream in = new TlsInputStream();
+	private final OutputStream out = new TlsOutputStream();
+	// the engine is used by one reader and one writer at a time (not monitors, so virtual threads are not pinned while waiting for data)
+	private final ReentrantLock readLock = new ReentrantLock(), writeLock = new ReentrantLock();
+
+	/**
+	 * Constructor which allows to set the accepted connection and the engine (see TlsContext.wrap).
+	 * @param channel The accepted connection, in blocking mode.
+	 * @param engine The engine, in server mode.
+	 * @param context The context collecting the handshake statistics.
+	 * @throws SocketException never, required by the Socket constructor.
+	 */
+	TlsSocket(SocketChannel channel, SSLEngine engine, TlsContext context) throws SocketException {
+		this.channel = channel;
+		this.engine = engine;
+		this.context = context;
+		int packet = engine.getSession().getPacketBufferSize();
+		this.netIn = ByteBuffer.allocate(packet);
+		this.netIn.flip();
+		this.netOut = ByteBuffer.allocate(packet);
+		this.appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+		this.appIn.flip();
+	}
+
+	/**
+	 * Method to retrieve the engine, for example to know the negotiated protocol and cipher suite once the handshake is done.
+	 * @return engine The SSL engine of the connection.
+	 */
+	public SSLEngine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * This method does the handshake, if not done yet. Reads and writes call it, calling it before is optional.
+	 * @throws IOException if the handshake fails.
+	 */
+	public void startHandshake() throws IOException {
+		if (handshaken) {
+			return; // without waiting for a reader blocked on the connection
+		}
+		readLock.lock();
+		writeLock.lock();
+		try {
+			if (handshaken) {
+				return;
+			}
+			long start = System.nanoTime(), startMillis = System.currentTimeMillis();
+			try {
+				engine.beginHandshake();
+				handshake();
+			} catch (IOException e) {
+				context.handshakeFailed();
+				if (e instanceof SSLException) {
+					// tell the client why (the alert is the pending output of the engine)
+					try {
+						engine.closeOutbound();
+						wrap(empty);
+					} catch (IOException alertNotSent) {}
+				}
+				throw e;
+			}
+			handshaken = true;
+			context.handshakeDone(engine.getSession(), start, startMillis);
+		} finally {
+			writeLock.unlock();
+			readLock.unlock();
+		}
+	}
+
+	// drive the engine until the handshake is finished, called owning both the locks
+	private void handshake() throws IOException {
+		while (true) {
+			switch (engine.getHandshakeStatus()) {
+			case NEED_WRAP:
+				wrap(empty);
+				break;
+			case NEED_UNWRAP:
+			case NEED_UNWRAP_AGAIN:
+				if (!unwrap()) {
+					throw new EOFException("Connection closed during the TLS handshake");
+				}
+				break;
+			case NEED_TASK:
+				Runnable task;
+				while ((task = engine.getDelegatedTask()) != null) {
+					task.run();
+				}
+				break;
+			default: // FINISHED, NOT_HANDSHAKING
+				return;
+			}
+		}
+	}
+
+	// encrypt the given bytes (or a handshake message) and send them, called owning the write lock
+	private void wrap(ByteBuffer data) throws IOException {
+		while (true) {
+			netOut.clear();
+			SSLEngineResult result = engine.wrap(data, netOut);
+			switch (result.getStatus()) {
+			case BUFFER_OVERFLOW:
+				netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize() + netOut.capacity());
+				continue;
+			case CLOSED:
+				if (result.bytesProduced() == 0) {
+					if (data.hasRemaining()) {
+						throw new SocketException("TLS connection closed");
+					}
+					return;
+				}
+				break;
+			default:
+			}
+			netOut.flip();
+			while (netOut.hasRemaining()) {
+				channel.write(netOut);
+			}
+			return;
+		}
+	}
+
+	// decrypt the next record into appIn, reading from the channel if needed: returns false at end of stream
+	// called owning the read lock (and the write lock during the handshake)
+	private boolean unwrap() throws IOException {
+		while (true) {
+			appIn.compact();
+			SSLEngineResult result;
+			try {
+				result = engine.unwrap(netIn, appIn);
+			} finally {
+				appIn.flip();
+			}
+			switch (result.getStatus()) {
+			case OK:
+				if (result.bytesConsumed() > 0 || result.bytesProduced() > 0) {
+					return true;
+				}
+				break; // nothing decrypted, needs more bytes
+			case BUFFER_OVERFLOW:
+				appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+				continue;
+			case BUFFER_UNDERFLOW:
+				if (netIn.capacity() < engine.getSession().getPacketBufferSize()) {
+					netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+				}
+				break; // read more
+			case CLOSED:
+				return false;
+			}
+			netIn.compact();
+			int n;
+			try {
+				n = channel.read(netIn);
+			} finally {
+				netIn.flip();
+			}
+			if (n < 0) {
+				try {
+					engine.closeInbound(); // no close_notify: possible truncation attack, reported as an exception
+				} catch (SSLException e) {}
+				return false;
+			}
+		}
+	}
+
+	// a larger buffer with the same content, in read mode
+	private static ByteBuffer grow(ByteBuffer buffer, int more) {
+		ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() + more);
+		larger.put(buffer);
+		larger.flip();
+		return larger;
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return in;
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return out;
+	}
+
+	/**
+	 * No channel: the bytes must be encrypted by the engine.
+	 * @return channel Always null.
+	 */
+	@Override
+	public SocketChannel getChannel() {
+		return null;
+	}
+
+	@Override
+	public InetAddress getInetAddress() {
+		return channel.socket().getInetAddress();
+	}
+
+	@Override
+	public InetAddress getLocalAddress() {
+		return channel.socket().getLocalAddress();
+	}
+
+	@Override
+	public int getPort() {
+		return channel.socket().getPort();
+	}
+
+	@Override
+	public int getLocalPort() {
+		return channel.socket().getLocalPort();
+	}
+
+	@Override
+	public SocketAddress getRemoteSocketAddress() {
+		return channel.socket().getRemoteSocketAddress();
+	}
+
+	@Override
+	public void setSoTimeout(int timeout) throws SocketException {
+		channel.socket().setSoTimeout(timeout);
+	}
+
+	@Override
+	public void setTcpNoDelay(boolean on) throws SocketException {
+		channel.socket().setTcpNoDelay(on);
+	}
+
+	@Override
+	public void setSendBufferSize(int size) throws SocketException {
+		channel.socket().setSendBufferSize(size);
+	}
+
+	@Override
+	public boolean isConnected() {
+		return channel.isConnected();
+	}
+
+	@Override
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * This method sends the close_notify alert, then closes the connection.
+	 * If a write is in progress (it may be blocked by a peer which doesn't read) the connection is closed without the alert, ending the write.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (!writeLock.tryLock()) {
+			closed = true;
+			channel.close();
+			return;
+		}
+		try {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				if (handshaken) {
+					engine.closeOutbound();
+					wrap(empty);
+				}
+			} catch (IOException e) {} // the peer is gone
+			channel.close();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Decrypted input of the connection.
+	 */
+	private class TlsInputStream extends InputStream {
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			startHandshake();
+			readLock.lock();
+			try {
+				while (!appIn.hasRemaining()) {
+					if (!unwrap()) {
+						return -1;
+					}
+					if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+						// for example a key update of the client, answered between two records
+						writeLock.lock();
+						try {
+							handshake();
+						} finally {
+							writeLock.unlock();
+						}
+					}
+				}
+				int n = Math.min(len, appIn.remaining());
+				appIn.get(b, off, n);
+				return n;
+			} finally {
+				readLock.unlock();
+			}
+		}
+
+		@Override
+		public int available() {
+			readLock.lock();
+			try {
+				return appIn.remaining();
+			} finally {
+				readLock.unlock();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			TlsSocket.this.close();
+		}
+	}
+
+	/**
+	 * Output of the connection, encrypted record by record: buffer it to avoid tiny records.
+	 */
+	private class TlsOutputStream extends OutputStream {
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			startHandshake();
+			writeLock.lock();
+			try {
+				if (closed) {
+					throw new SocketException("Socket closed");
+				}
+				ByteBuffer data = ByteBuffer.wrap(b, off, len);
+				while (data.hasRemaining()) {
+					wrap(data);
+				}
+			} finally {
+				writeLock.unlock();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			TlsSocket.this.close();
+		}
+	}
+}